@@ -8,6 +8,18 @@ public class Constant {
     // Kafka消息的topic
     public static final String TOPIC = "study_user_coupon_op";
 
+    // 无法处理的优惠券状态变更消息的死信topic
+    public static final String TOPIC_DLT = "study_user_coupon_op_dlt";
+
+    // 新领取优惠券的Kafka消息topic(异步落库)
+    public static final String COUPON_ACQUIRE_TOPIC = "study_user_coupon_acquire";
+
+    // 无法落库的新领取优惠券消息(id冲突)的死信topic
+    public static final String COUPON_ACQUIRE_TOPIC_DLT = "study_user_coupon_acquire_dlt";
+
+    // 用户优惠券本地缓存失效通知的Redis频道
+    public static final String USER_COUPON_INVALIDATE_CHANNEL = "study_user_coupon_invalidate";
+
     /**
      * Redis Key前缀定义
      */
@@ -24,5 +36,35 @@ public class Constant {
 
         // 用户当前所有已过期的优惠券key前缀
         public static final String USER_COUPON_EXPIRED = "study_user_coupon_expired_";
+
+        // 用户领取计数key前缀(field:模板id value:用户持有的该模板可用优惠券数 field -1表示已从数据库初始化)
+        public static final String USER_COUPON_CLAIM = "study_user_coupon_claim_";
+
+        // 用户已领取但还没有落库的write-behind优惠券key前缀(field:优惠券id value:模板id:领取时间)
+        public static final String USER_COUPON_CLAIM_PENDING = "study_user_coupon_claim_pending_";
+
+        // 用户已达领取上限的模板位图key前缀(offset:模板id 第0位为1表示已初始化)
+        public static final String USER_COUPON_FULL_TEMPLATES = "study_user_coupon_full_templates_";
+
+        // 优惠券id号段分配key
+        public static final String COUPON_ID_BLOCK = "study_coupon_id_block";
+
+        // 优惠券过期扫描任务的分布式锁key
+        public static final String COUPON_EXPIRE_LOCK = "study_coupon_expire_lock";
+
+        // 优惠券过期扫描任务的进度key(上一次扫描到的优惠券id)
+        public static final String COUPON_EXPIRE_CURSOR = "study_coupon_expire_cursor";
+
+        // 优惠券到期队列key(zset member:优惠券id:用户id:模板id score:过期时间)
+        public static final String COUPON_EXPIRE_QUEUE = "study_coupon_expire_queue";
+
+        // 优惠券模板目录版本号key
+        public static final String TEMPLATE_CATALOG_VERSION = "study_coupon_template_catalog_version";
+
+        // 优惠券模板目录变更记录key(zset member:模板id score:最后一次变更时的目录版本号)
+        public static final String TEMPLATE_CATALOG_CHANGELOG = "study_coupon_template_catalog_changelog";
+
+        // 变更记录被裁剪掉的最大版本号key 比它更旧的客户端只能全量同步
+        public static final String TEMPLATE_CATALOG_FLOOR = "study_coupon_template_catalog_floor";
     }
 }
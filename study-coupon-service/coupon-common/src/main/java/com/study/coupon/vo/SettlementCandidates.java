@@ -0,0 +1,25 @@
+package com.study.coupon.vo;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.util.List;
+
+/**
+ * 同一个购物车的多组候选优惠券 一次请求计算每一组的结算结果
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class SettlementCandidates {
+
+    // 用户id
+    private Long userId;
+
+    // 商品信息 所有候选组共用
+    private List<GoodsInfo> goodsInfos;
+
+    // 候选的优惠券组合 每一组对应一个结算结果
+    private List<List<SettlementInfo.CouponAndTemplateInfo>> candidates;
+}
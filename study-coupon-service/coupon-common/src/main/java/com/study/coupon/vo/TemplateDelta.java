@@ -0,0 +1,52 @@
+package com.study.coupon.vo;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * 优惠券模板目录的增量同步结果
+ * 客户端带上本地的目录版本号 服务端只返回该版本之后新增/变更/下线的模板
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class TemplateDelta {
+
+    // 服务端当前的目录版本号 客户端下次同步时带上
+    private Long version;
+
+    // 客户端版本已是最新 没有任何变更
+    private Boolean notModified;
+
+    // 是否为全量数据 为true时客户端需要用templates替换本地的全部模板
+    private Boolean full;
+
+    // 新增或变更的可用模板(全量时为所有可用模板)
+    private List<CouponTemplateSDK> templates;
+
+    // 已下线(过期/不可用/被删除)的模板ids
+    private List<Integer> removedIds;
+
+    /**
+     * 版本未变化
+     * @param version
+     * @return
+     */
+    public static TemplateDelta notModified(Long version) {
+        return new TemplateDelta(version, true, false, Collections.emptyList(), Collections.emptyList());
+    }
+
+    /**
+     * 全量数据
+     * @param version
+     * @param templates
+     * @return
+     */
+    public static TemplateDelta full(Long version, List<CouponTemplateSDK> templates) {
+        return new TemplateDelta(version, false, true, templates, Collections.emptyList());
+    }
+}
@@ -0,0 +1,195 @@
+package com.study.coupon.cache;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.study.coupon.constant.Constant;
+import com.study.coupon.constant.CouponStatus;
+import com.study.coupon.entity.Coupon;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.GuavaCacheMetrics;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 用户优惠券本地缓存(L1) 位于Redis用户优惠券缓存之前
+ * key为userId:status 按容量和写入时间淘汰
+ * 用户优惠券发生变化时通过Redis频道通知所有分发服务实例删除该用户的本地缓存
+ * 加载期间收到过失效通知的结果不会写入本地缓存 避免把旧数据写回
+ * 默认关闭 打开后所有分发服务实例都需要打开
+ */
+@Slf4j
+@Component
+public class CouponNearCache implements MessageListener {
+
+    @Autowired
+    private StringRedisTemplate redisTemplate;
+
+    @Autowired
+    private RedisMessageListenerContainer listenerContainer;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    // 是否开启本地缓存
+    @Value("${coupon.near-cache.enabled:false}")
+    private boolean enabled;
+
+    // 最大缓存条数
+    @Value("${coupon.near-cache.max-size:10000}")
+    private long maxSize;
+
+    // 缓存有效时间 也是失效通知丢失时数据最多陈旧的时间
+    @Value("${coupon.near-cache.ttl-ms:2000}")
+    private long ttlMs;
+
+    // 失效通知的次数 用于判断加载期间是否发生过失效
+    private final AtomicLong invalidations = new AtomicLong();
+
+    // key:userId:status value:缓存的优惠券
+    private Cache<String, Entry> cache;
+
+    // 命中时缓存数据的年龄
+    private DistributionSummary hitAge;
+
+    // 失效通知从发布到收到的延迟
+    private DistributionSummary invalidationLag;
+
+    @PostConstruct
+    public void init() {
+        if (!enabled) {
+            return;
+        }
+        cache = CacheBuilder.newBuilder().maximumSize(maxSize).expireAfterWrite(ttlMs, TimeUnit.MILLISECONDS).recordStats().build();
+        GuavaCacheMetrics.monitor(meterRegistry, cache, "coupon.near.cache");
+        hitAge = DistributionSummary.builder("coupon.near.cache.hit.age").baseUnit("milliseconds").publishPercentileHistogram().register(meterRegistry);
+        invalidationLag = DistributionSummary.builder("coupon.near.cache.invalidation.lag").baseUnit("milliseconds").publishPercentileHistogram().register(meterRegistry);
+        listenerContainer.addMessageListener(this, new ChannelTopic(Constant.USER_COUPON_INVALIDATE_CHANNEL));
+        log.info("用户优惠券本地缓存已开启:{},{}ms", maxSize, ttlMs);
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * 当前的失效次数 加载前获取 写入时作为put的参数
+     * @return
+     */
+    public long stamp() {
+        return invalidations.get();
+    }
+
+    /**
+     * 获取本地缓存的优惠券
+     * @param userId
+     * @param status
+     * @return 没有缓存时返回null
+     */
+    public List<Coupon> get(Long userId, Integer status) {
+        if (!enabled) {
+            return null;
+        }
+        Entry entry = cache.getIfPresent(key(userId, status));
+        if (null == entry) {
+            return null;
+        }
+        hitAge.record(System.currentTimeMillis() - entry.loadTime);
+        return entry.coupons;
+    }
+
+    /**
+     * 写入本地缓存 加载期间发生过失效时不写入
+     * @param userId
+     * @param status
+     * @param coupons
+     * @param stamp 加载前通过{@link #stamp()}获取的值
+     */
+    public void put(Long userId, Integer status, List<Coupon> coupons, long stamp) {
+        if (enabled && stamp == invalidations.get()) {
+            cache.put(key(userId, status), new Entry(Collections.unmodifiableList(coupons)));
+        }
+    }
+
+    /**
+     * 删除本实例中用户的本地缓存 并通知其他实例
+     * @param userId
+     */
+    public void invalidate(Long userId) {
+        invalidate(Collections.singletonList(userId));
+    }
+
+    /**
+     * 删除本实例中这些用户的本地缓存 并通知其他实例
+     * @param userIds
+     */
+    public void invalidate(Collection<Long> userIds) {
+        if (!enabled || userIds.isEmpty()) {
+            return;
+        }
+        userIds.forEach(this::invalidateLocal);
+        long now = System.currentTimeMillis();
+        try {
+            userIds.forEach(userId -> redisTemplate.convertAndSend(Constant.USER_COUPON_INVALIDATE_CHANNEL, userId + ":" + now));
+        } catch (Exception ex) {
+            log.error("发布用户优惠券缓存失效通知失败:{}", userIds, ex);
+        }
+    }
+
+    /**
+     * 收到其他实例(包括本实例)的失效通知
+     * @param message userId:发布时间
+     * @param pattern
+     */
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        String body = new String(message.getBody(), StandardCharsets.UTF_8);
+        int split = body.indexOf(':');
+        try {
+            invalidateLocal(Long.valueOf(body.substring(0, split)));
+            invalidationLag.record(Math.max(0, System.currentTimeMillis() - Long.parseLong(body.substring(split + 1))));
+        } catch (RuntimeException ex) {
+            log.error("无法解析用户优惠券缓存失效通知:{}", body);
+        }
+    }
+
+    private void invalidateLocal(Long userId) {
+        invalidations.incrementAndGet();
+        for (CouponStatus status : CouponStatus.values()) {
+            cache.invalidate(key(userId, status.getCode()));
+        }
+    }
+
+    private static String key(Long userId, Integer status) {
+        return userId + ":" + status;
+    }
+
+    /**
+     * 缓存的数据和加载时间
+     */
+    private static class Entry {
+
+        final List<Coupon> coupons;
+
+        final long loadTime = System.currentTimeMillis();
+
+        Entry(List<Coupon> coupons) {
+            this.coupons = coupons;
+        }
+    }
+}
@@ -0,0 +1,190 @@
+package com.study.coupon.cache;
+
+import com.study.coupon.feign.TemplateClient;
+import com.study.coupon.vo.CommonResponse;
+import com.study.coupon.vo.CouponTemplateSDK;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * 优惠券模板批量加载器
+ * 把并发请求中的模板id查询在一个很短的时间窗口内收集起来 去重后合并成一次findIds2TemplateSDK调用 再把结果分发给各个调用方
+ * 1.窗口内第一个id到达时开始计时 窗口结束时发出批次
+ * 2.待发送的id达到最大批次大小时立即发出批次 并取消该批次的窗口计时 下一个批次重新计时
+ * 3.同一个id正在等待时 后来的调用方共享同一个结果
+ */
+@Slf4j
+@Component
+public class TemplateBatchLoader {
+
+    // 模板微服务客户端
+    @Autowired
+    private TemplateClient templateClient;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    // 批次收集窗口
+    @Value("${coupon.template.batch.window-ms:5}")
+    private long windowMs;
+
+    // 最大批次大小
+    @Value("${coupon.template.batch.max-size:200}")
+    private int maxBatchSize;
+
+    // 调用方等待结果的最长时间
+    @Value("${coupon.template.batch.timeout-ms:3000}")
+    private long timeoutMs;
+
+    // 发送批次的线程数
+    @Value("${coupon.template.batch.dispatch-threads:4}")
+    private int dispatchThreads;
+
+    // 等待发送的id key:模板id value:等待该模板的结果
+    private Map<Integer, CompletableFuture<CouponTemplateSDK>> pending = new LinkedHashMap<>();
+
+    // 窗口计时
+    private ScheduledExecutorService windowTimer;
+
+    // 当前批次的窗口计时 批次因达到最大大小提前发出时取消
+    private ScheduledFuture<?> windowFuture;
+
+    // 发送批次
+    private ExecutorService dispatcher;
+
+    // 批次大小分布
+    private DistributionSummary batchSize;
+
+    @PostConstruct
+    public void init() {
+        windowTimer = Executors.newSingleThreadScheduledExecutor(daemon("template-batch-window"));
+        dispatcher = Executors.newFixedThreadPool(dispatchThreads, daemon("template-batch-dispatch"));
+        batchSize = DistributionSummary.builder("coupon.template.batch.size")
+                .description("findIds2TemplateSDK每个批次的模板id个数")
+                .publishPercentileHistogram()
+                .register(meterRegistry);
+    }
+
+    /**
+     * 批量获取模板ids到CouponTemplateSDK的映射 模板不存在或加载失败的id不会出现在结果中
+     * @param ids
+     * @return
+     */
+    public Map<Integer, CouponTemplateSDK> load(Collection<Integer> ids) {
+        Map<Integer, CompletableFuture<CouponTemplateSDK>> futures = new HashMap<>(ids.size());
+        for (Integer id : ids) {
+            if (!futures.containsKey(id)) {
+                futures.put(id, enqueue(id));
+            }
+        }
+
+        Map<Integer, CouponTemplateSDK> result = new HashMap<>(futures.size());
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+        for (Map.Entry<Integer, CompletableFuture<CouponTemplateSDK>> entry : futures.entrySet()) {
+            try {
+                CouponTemplateSDK template = entry.getValue().get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+                if (null != template) {
+                    result.put(entry.getKey(), template);
+                }
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                break;
+            } catch (ExecutionException | TimeoutException ex) {
+                log.error("批量加载优惠券模板失败:{}", entry.getKey(), ex);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * 将id加入待发送批次
+     * @param id
+     * @return
+     */
+    private CompletableFuture<CouponTemplateSDK> enqueue(Integer id) {
+        Map<Integer, CompletableFuture<CouponTemplateSDK>> full = null;
+        CompletableFuture<CouponTemplateSDK> future;
+        synchronized (this) {
+            future = pending.get(id);
+            if (null == future) {
+                future = new CompletableFuture<>();
+                pending.put(id, future);
+                if (pending.size() >= maxBatchSize) {
+                    full = pending;
+                    pending = new LinkedHashMap<>();
+                    if (null != windowFuture) {
+                        windowFuture.cancel(false);
+                        windowFuture = null;
+                    }
+                } else if (pending.size() == 1) {
+                    Map<Integer, CompletableFuture<CouponTemplateSDK>> batch = pending;
+                    windowFuture = windowTimer.schedule(() -> flush(batch), windowMs, TimeUnit.MILLISECONDS);
+                }
+            }
+        }
+        if (null != full) {
+            dispatch(full);
+        }
+        return future;
+    }
+
+    /**
+     * 窗口结束 发出计时对应的批次
+     * 取消计时和计时触发可能同时发生 批次已经提前发出时不能发出下一个批次(它的窗口还没有结束)
+     * @param batch 开始计时时的批次
+     */
+    private void flush(Map<Integer, CompletableFuture<CouponTemplateSDK>> batch) {
+        synchronized (this) {
+            if (pending != batch) {
+                return;
+            }
+            pending = new LinkedHashMap<>();
+            windowFuture = null;
+        }
+        dispatch(batch);
+    }
+
+    /**
+     * 发送一个批次 并把结果分发给等待的调用方
+     * @param batch
+     */
+    private void dispatch(Map<Integer, CompletableFuture<CouponTemplateSDK>> batch) {
+        batchSize.record(batch.size());
+        try {
+            dispatcher.execute(() -> {
+                try {
+                    CommonResponse<Map<Integer, CouponTemplateSDK>> response = templateClient.findIds2TemplateSDK(new ArrayList<>(batch.keySet()));
+                    Map<Integer, CouponTemplateSDK> data = null == response || null == response.getData() ? Collections.emptyMap() : response.getData();
+                    batch.forEach((id, future) -> future.complete(data.get(id)));
+                } catch (Throwable ex) {
+                    batch.values().forEach(future -> future.completeExceptionally(ex));
+                }
+            });
+        } catch (RejectedExecutionException ex) {
+            batch.values().forEach(future -> future.completeExceptionally(ex));
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        windowTimer.shutdownNow();
+        dispatcher.shutdownNow();
+    }
+
+    private static ThreadFactory daemon(String name) {
+        return r -> {
+            Thread thread = new Thread(r, name);
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+}
@@ -0,0 +1,153 @@
+package com.study.coupon.cache;
+
+import com.study.coupon.service.IRedisService;
+import com.study.coupon.vo.CouponTemplateSDK;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.util.*;
+
+/**
+ * 用户可领取模板的索引
+ * 1.可用模板按截止时间排序 二分查找得到未过期的模板 并缓存这些模板id的位图
+ * 2.每个用户在Redis中有一个已达领取上限的模板位图(offset为模板id) 由领取/使用/过期的Lua脚本维护
+ * 3.用户可以领取的模板 = 未过期模板位图 AND NOT 用户已达上限模板位图
+ * 位图按模板id编址 模板id是连续的小整数 每个用户的位图只有模板个数/8个字节 用户数量不影响单个位图的大小
+ */
+@Component
+public class TemplateEligibilityIndex {
+
+    // 优惠券模板本地副本
+    @Autowired
+    private TemplateReplica templateReplica;
+
+    @Autowired
+    private IRedisService redisService;
+
+    // 当前的索引 模板副本变化时重建
+    private volatile Index index = Index.EMPTY;
+
+    /**
+     * 查找用户当前可以领取的模板
+     * @param userId
+     * @return
+     */
+    public List<CouponTemplateSDK> findClaimable(Long userId) {
+        Index current = currentIndex();
+        long curTime = System.currentTimeMillis();
+        int from = current.firstActive(curTime);
+        if (from >= current.templates.length) {
+            return Collections.emptyList();
+        }
+
+        BitSet claimable = (BitSet) current.activeIds(from).clone();
+        claimable.andNot(redisService.getFullTemplates(userId));
+
+        List<CouponTemplateSDK> result = new ArrayList<>(claimable.cardinality());
+        for (int id = claimable.nextSetBit(0); id >= 0; id = claimable.nextSetBit(id + 1)) {
+            result.add(current.byId.get(id));
+        }
+        return result;
+    }
+
+    /**
+     * 模板副本的数据是不可变的 列表对象变化说明副本已更新
+     * @return
+     */
+    private Index currentIndex() {
+        List<CouponTemplateSDK> templates = templateReplica.findAllUsable();
+        Index current = index;
+        if (current.source != templates) {
+            current = new Index(templates);
+            index = current;
+        }
+        return current;
+    }
+
+    /**
+     * 一个模板副本版本对应的索引
+     */
+    private static class Index {
+
+        static final Index EMPTY = new Index(Collections.emptyList());
+
+        // 建立索引时的模板列表
+        final List<CouponTemplateSDK> source;
+
+        // 按截止时间升序排列的模板
+        final CouponTemplateSDK[] templates;
+
+        // 与templates对应的截止时间
+        final long[] deadlines;
+
+        // key:模板id value:模板
+        final Map<Integer, CouponTemplateSDK> byId;
+
+        // 上一次计算的未过期模板起始下标和对应的模板id位图
+        volatile ActiveIds active;
+
+        Index(List<CouponTemplateSDK> source) {
+            this.source = source;
+            this.templates = source.toArray(new CouponTemplateSDK[0]);
+            Arrays.sort(templates, Comparator.comparingLong(t -> t.getRule().getExpiration().getDeadline()));
+            this.deadlines = new long[templates.length];
+            this.byId = new HashMap<>(templates.length * 2);
+            for (int i = 0; i < templates.length; ++i) {
+                deadlines[i] = templates[i].getRule().getExpiration().getDeadline();
+                byId.put(templates[i].getId(), templates[i]);
+            }
+        }
+
+        /**
+         * 第一个截止时间晚于当前时间的模板下标
+         * @param curTime
+         * @return
+         */
+        int firstActive(long curTime) {
+            int low = 0;
+            int high = deadlines.length;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (deadlines[mid] <= curTime) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            return low;
+        }
+
+        /**
+         * 下标from之后的模板id位图 起始下标不变时复用上一次的结果
+         * @param from
+         * @return
+         */
+        BitSet activeIds(int from) {
+            ActiveIds cached = active;
+            if (null != cached && cached.from == from) {
+                return cached.ids;
+            }
+            BitSet ids = new BitSet();
+            for (int i = from; i < templates.length; ++i) {
+                ids.set(templates[i].getId());
+            }
+            active = new ActiveIds(from, ids);
+            return ids;
+        }
+    }
+
+    /**
+     * 未过期模板的起始下标和模板id位图
+     */
+    private static class ActiveIds {
+
+        final int from;
+
+        final BitSet ids;
+
+        ActiveIds(int from, BitSet ids) {
+            this.from = from;
+            this.ids = ids;
+        }
+    }
+}
@@ -0,0 +1,288 @@
+package com.study.coupon.cache;
+
+import com.study.coupon.feign.TemplateClient;
+import com.study.coupon.vo.CommonResponse;
+import com.study.coupon.vo.CouponTemplateSDK;
+import com.study.coupon.vo.TemplateDelta;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Collectors;
+
+/**
+ * 优惠券模板本地副本
+ * 保存上一次同步到的目录版本号 每次同步只拉取该版本之后的变更并合并到本地
+ * 副本数据不可变 合并时整体替换 读操作不需要加锁
+ * 1.后台定时同步(启动后立即执行第一次) 最大陈旧时间以内请求线程不调用模板服务 也不等待同步锁
+ * 2.数据超过刷新间隔未同步时 先返回当前数据再异步同步(stale-while-revalidate)
+ * 3.还没有数据或超过最大陈旧时间时 由一个请求线程同步执行一次同步 其他请求最多等待inline-sync-wait-ms
+ *   之后仍然没有数据或超过最大陈旧时间则抛出{@link IllegalStateException} 不返回超过最大陈旧时间的数据
+ * 熔断降级时使用不做同步也不校验陈旧时间的{@link #currentUsable()}和{@link #currentByIds(Collection)}
+ */
+@Slf4j
+@Component
+public class TemplateReplica {
+
+    // 模板微服务客户端
+    @Autowired
+    private TemplateClient templateClient;
+
+    // 优惠券模板批量加载器
+    @Autowired
+    private TemplateBatchLoader batchLoader;
+
+    // 后台同步间隔
+    @Value("${coupon.template.replica.refresh-interval-ms:5000}")
+    private long refreshIntervalMs;
+
+    // 最大陈旧时间
+    @Value("${coupon.template.replica.max-staleness-ms:60000}")
+    private long maxStalenessMs;
+
+    // 超过最大陈旧时间时请求线程等待同步完成的最长时间
+    @Value("${coupon.template.replica.inline-sync-wait-ms:3000}")
+    private long inlineSyncWaitMs;
+
+    // 当前的副本数据
+    private volatile Snapshot snapshot = Snapshot.EMPTY;
+
+    // 最近一次同步成功(包括没有变更)的时间
+    private volatile long lastSyncTime = 0;
+
+    // 同步锁 同一时刻只有一个同步在进行
+    private final ReentrantLock syncLock = new ReentrantLock();
+
+    // 是否有异步同步正在进行
+    private final AtomicBoolean revalidating = new AtomicBoolean(false);
+
+    // 异步同步线程
+    private final ExecutorService revalidateExecutor = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "template-replica-revalidate");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * 查找所有可用的优惠券模板
+     * @return
+     */
+    public List<CouponTemplateSDK> findAllUsable() {
+        return ensureFresh().templates;
+    }
+
+    /**
+     * 获取模板ids到CouponTemplateSDK的映射
+     * 副本中只有可用的模板 已过期/不可用的模板(例如已使用/已过期优惠券对应的模板)需要再通过批量加载器从模板服务获取
+     * @param ids
+     * @return
+     */
+    public Map<Integer, CouponTemplateSDK> findByIds(Collection<Integer> ids) {
+        Map<Integer, CouponTemplateSDK> result = lookup(ensureFresh(), ids);
+        if (result.size() < ids.size()) {
+            List<Integer> missIds = ids.stream().filter(id -> !result.containsKey(id)).distinct().collect(Collectors.toList());
+            if (!missIds.isEmpty()) {
+                result.putAll(batchLoader.load(missIds));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * 不做任何同步 直接返回当前副本中所有可用的模板 用于熔断降级
+     * @return
+     */
+    public List<CouponTemplateSDK> currentUsable() {
+        return snapshot.templates;
+    }
+
+    /**
+     * 不做任何同步 直接从当前副本中查找模板 用于熔断降级
+     * @param ids
+     * @return
+     */
+    public Map<Integer, CouponTemplateSDK> currentByIds(Collection<Integer> ids) {
+        return lookup(snapshot, ids);
+    }
+
+    /**
+     * 后台定时同步
+     */
+    @Scheduled(fixedDelayString = "${coupon.template.replica.refresh-interval-ms:5000}")
+    public void refresh() {
+        try {
+            sync();
+        } catch (Exception ex) {
+            log.error("定时同步优惠券模板目录失败", ex);
+        }
+    }
+
+    /**
+     * 与模板服务同步一次 同步失败时保留当前副本
+     * @return 是否同步成功
+     */
+    public boolean sync() {
+        syncLock.lock();
+        try {
+            return doSync();
+        } finally {
+            syncLock.unlock();
+        }
+    }
+
+    private boolean doSync() {
+        Snapshot current = snapshot;
+        CommonResponse<TemplateDelta> response = templateClient.findTemplateDelta(current.version);
+        TemplateDelta delta = null == response ? null : response.getData();
+        if (null == delta || null == delta.getVersion()) {
+            log.warn("同步优惠券模板目录失败,继续使用版本:{}", current.version);
+            return false;
+        }
+        if (!Boolean.TRUE.equals(delta.getNotModified())) {
+            snapshot = current.apply(delta);
+            log.info("优惠券模板目录已同步:{}->{},可用模板数量:{}", current.version, delta.getVersion(), snapshot.templates.size());
+        }
+        lastSyncTime = System.currentTimeMillis();
+        return true;
+    }
+
+    /**
+     * 根据数据的陈旧程度决定是否需要同步
+     * 最大陈旧时间以内只触发异步同步 不阻塞请求线程
+     * @return
+     */
+    private Snapshot ensureFresh() {
+        Snapshot current = snapshot;
+        if (current == Snapshot.EMPTY || isTooStale()) {
+            return syncInline();
+        }
+        if (System.currentTimeMillis() - lastSyncTime > refreshIntervalMs && revalidating.compareAndSet(false, true)) {
+            revalidateExecutor.execute(() -> {
+                try {
+                    syncQuietly();
+                } finally {
+                    revalidating.set(false);
+                }
+            });
+        }
+        return current;
+    }
+
+    /**
+     * 还没有数据或超过最大陈旧时间时在请求线程中同步
+     * 拿到同步锁的线程执行一次同步 其他线程等待它完成后直接使用结果 不重复同步
+     * @return
+     */
+    private Snapshot syncInline() {
+        try {
+            if (syncLock.tryLock(inlineSyncWaitMs, TimeUnit.MILLISECONDS)) {
+                try {
+                    // 等待期间其他线程可能已经同步完成
+                    if (snapshot == Snapshot.EMPTY || isTooStale()) {
+                        doSync();
+                    }
+                } catch (Exception ex) {
+                    log.error("同步优惠券模板目录失败", ex);
+                } finally {
+                    syncLock.unlock();
+                }
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+
+        Snapshot current = snapshot;
+        if (current == Snapshot.EMPTY || isTooStale()) {
+            log.error("优惠券模板副本不可用,版本:{},上一次同步:{}", current.version, lastSyncTime);
+            throw new IllegalStateException("template replica is unavailable or exceeds max staleness");
+        }
+        return current;
+    }
+
+    private boolean isTooStale() {
+        return System.currentTimeMillis() - lastSyncTime > maxStalenessMs;
+    }
+
+    /**
+     * 同步一次 不抛出异常 已有同步在进行时直接返回
+     */
+    private void syncQuietly() {
+        if (!syncLock.tryLock()) {
+            return;
+        }
+        try {
+            if (!doSync() && System.currentTimeMillis() - lastSyncTime > maxStalenessMs) {
+                log.warn("优惠券模板副本已超过最大陈旧时间,版本:{}", snapshot.version);
+            }
+        } catch (Exception ex) {
+            log.error("同步优惠券模板目录失败", ex);
+        } finally {
+            syncLock.unlock();
+        }
+    }
+
+    private static Map<Integer, CouponTemplateSDK> lookup(Snapshot snapshot, Collection<Integer> ids) {
+        Map<Integer, CouponTemplateSDK> result = new HashMap<>(ids.size());
+        ids.forEach(id -> {
+            CouponTemplateSDK template = snapshot.byId.get(id);
+            if (null != template) {
+                result.put(id, template);
+            }
+        });
+        return result;
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        revalidateExecutor.shutdownNow();
+    }
+
+    /**
+     * 副本数据
+     */
+    private static class Snapshot {
+
+        // 尚未同步过 版本号-1会让服务端返回全量数据
+        static final Snapshot EMPTY = new Snapshot(-1L, Collections.emptyMap());
+
+        // 目录版本号
+        final long version;
+
+        // key:模板id value:CouponTemplateSDK
+        final Map<Integer, CouponTemplateSDK> byId;
+
+        // 所有可用模板
+        final List<CouponTemplateSDK> templates;
+
+        Snapshot(long version, Map<Integer, CouponTemplateSDK> byId) {
+            this.version = version;
+            this.byId = Collections.unmodifiableMap(byId);
+            this.templates = Collections.unmodifiableList(new ArrayList<>(byId.values()));
+        }
+
+        /**
+         * 合并增量/全量数据 生成新的副本
+         * @param delta
+         * @return
+         */
+        Snapshot apply(TemplateDelta delta) {
+            Map<Integer, CouponTemplateSDK> merged = Boolean.TRUE.equals(delta.getFull()) ? new LinkedHashMap<>() : new LinkedHashMap<>(byId);
+            if (null != delta.getRemovedIds()) {
+                delta.getRemovedIds().forEach(merged::remove);
+            }
+            if (null != delta.getTemplates()) {
+                delta.getTemplates().forEach(t -> merged.put(t.getId(), t));
+            }
+            return new Snapshot(delta.getVersion(), merged);
+        }
+    }
+}
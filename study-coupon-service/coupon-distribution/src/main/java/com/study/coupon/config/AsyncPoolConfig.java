@@ -0,0 +1,65 @@
+package com.study.coupon.config;
+
+import com.alibaba.fastjson.JSON;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.aop.interceptor.AsyncUncaughtExceptionHandler;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.scheduling.annotation.AsyncConfigurer;
+import org.springframework.scheduling.annotation.EnableAsync;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadPoolExecutor;
+
+/**
+ * 自定义异步任务线程池
+ */
+@Slf4j
+@EnableAsync
+@Configuration
+public class AsyncPoolConfig implements AsyncConfigurer {
+
+    @Bean
+    @Override
+    public Executor getAsyncExecutor() {
+        // 创建一个线程池任务执行器
+        ThreadPoolTaskExecutor executor = new ThreadPoolTaskExecutor();
+        // 核心线程池大小
+        executor.setCorePoolSize(10);
+        // 最大线程池大小
+        executor.setMaxPoolSize(20);
+        // 任务队列容量
+        executor.setQueueCapacity(20);
+        // 线程空闲时间
+        executor.setKeepAliveSeconds(60);
+        // 线程名称前缀
+        executor.setThreadNamePrefix("StudyDistributionAsync_");
+        // 是否等待任务完成后再关闭线程池
+        executor.setWaitForTasksToCompleteOnShutdown(true);
+        // 等待终止时间
+        executor.setAwaitTerminationSeconds(60);
+        // 拒绝策略 CallerRunsPolicy(如果任务无法提交到线程池 则由调用者自己执行该任务)
+        executor.setRejectedExecutionHandler(new ThreadPoolExecutor.CallerRunsPolicy());
+        // 初始化线程池
+        executor.initialize();
+        return executor;
+    }
+
+    @Override
+    public AsyncUncaughtExceptionHandler getAsyncUncaughtExceptionHandler() {
+        return new AsyncExceptionHandler();
+    }
+
+    @SuppressWarnings("all")
+    class AsyncExceptionHandler implements AsyncUncaughtExceptionHandler{
+
+        @Override
+        public void handleUncaughtException(Throwable throwable, Method method, Object... objects) {
+            throwable.printStackTrace();
+            log.error("AsyncError:{},Method:{},Param:{}", throwable.getMessage(), method.getName(), JSON.toJSONString(objects));
+            // todo 发送邮件或短信 进行进一步处理
+        }
+    }
+}
@@ -0,0 +1,82 @@
+package com.study.coupon.config;
+
+import lombok.extern.slf4j.Slf4j;
+import org.apache.kafka.clients.consumer.Consumer;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.consumer.ConsumerRecords;
+import org.apache.kafka.common.TopicPartition;
+import org.springframework.kafka.KafkaException;
+import org.springframework.kafka.listener.ContainerAwareBatchErrorHandler;
+import org.springframework.kafka.listener.MessageListenerContainer;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.BiConsumer;
+
+/**
+ * 有次数上限的批量消费错误处理器
+ * 处理失败时回退到这一批的起始位置重新消费 同一批连续失败maxFailures次后
+ * 把这一批的消息逐条交给recoverer(例如发送到死信topic) 然后继续消费后面的消息
+ * 避免一条无法处理的消息让整个分区永远停在原地
+ * 失败次数按消费线程记录 一个容器的消费线程同时只处理一批
+ */
+@Slf4j
+public class BoundedSeekToCurrentBatchErrorHandler implements ContainerAwareBatchErrorHandler {
+
+    // 处理同一批消息最多失败的次数
+    private final int maxFailures;
+
+    // 超过失败次数后逐条处理消息
+    private final BiConsumer<ConsumerRecord<?, ?>, Exception> recoverer;
+
+    // 当前消费线程上一次失败的批次
+    private final ThreadLocal<FailedBatch> failures = new ThreadLocal<>();
+
+    public BoundedSeekToCurrentBatchErrorHandler(BiConsumer<ConsumerRecord<?, ?>, Exception> recoverer, int maxFailures) {
+        this.recoverer = recoverer;
+        this.maxFailures = maxFailures;
+    }
+
+    @Override
+    public void handle(Exception thrownException, ConsumerRecords<?, ?> data, Consumer<?, ?> consumer, MessageListenerContainer container) {
+        // 每个分区这一批的起始位置 同时用来识别是不是同一批消息
+        Map<TopicPartition, Long> offsets = new LinkedHashMap<>();
+        data.partitions().forEach(tp -> offsets.put(tp, data.records(tp).get(0).offset()));
+
+        FailedBatch failed = failures.get();
+        if (null == failed || !failed.offsets.equals(offsets)) {
+            failed = new FailedBatch(offsets);
+            failures.set(failed);
+        }
+        if (++failed.count < maxFailures) {
+            offsets.forEach(consumer::seek);
+            throw new KafkaException("Seek to current after exception", thrownException);
+        }
+
+        failures.remove();
+        log.error("同一批消息连续处理失败{}次,逐条交给恢复处理:{}", failed.count, offsets, thrownException);
+        try {
+            data.forEach(record -> recoverer.accept(record, thrownException));
+        } catch (RuntimeException ex) {
+            // 恢复处理失败时仍回退 下一次重新计数
+            offsets.forEach(consumer::seek);
+            throw new KafkaException("Recovery failed after exception", ex);
+        }
+    }
+
+    /**
+     * 处理失败的批次
+     */
+    private static class FailedBatch {
+
+        // 每个分区这一批的起始位置
+        final Map<TopicPartition, Long> offsets;
+
+        // 连续失败次数
+        int count;
+
+        FailedBatch(Map<TopicPartition, Long> offsets) {
+            this.offsets = offsets;
+        }
+    }
+}
@@ -0,0 +1,126 @@
+package com.study.coupon.config;
+
+import com.study.coupon.constant.Constant;
+import org.apache.kafka.clients.consumer.ConsumerConfig;
+import com.study.coupon.serialization.CouponKafkaMessageDeserializer;
+import com.study.coupon.serialization.CouponKafkaMessageSerializer;
+import com.study.coupon.vo.CouponKafkaMessage;
+import org.apache.kafka.common.serialization.StringDeserializer;
+import org.apache.kafka.common.serialization.StringSerializer;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.kafka.KafkaProperties;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Primary;
+import org.springframework.kafka.KafkaException;
+import org.springframework.kafka.config.ConcurrentKafkaListenerContainerFactory;
+import org.springframework.kafka.core.ConsumerFactory;
+import org.springframework.kafka.core.DefaultKafkaConsumerFactory;
+import org.springframework.kafka.core.DefaultKafkaProducerFactory;
+import org.springframework.kafka.core.KafkaTemplate;
+import org.springframework.kafka.core.ProducerFactory;
+import org.springframework.kafka.listener.ContainerProperties;
+import org.springframework.kafka.listener.SeekToCurrentBatchErrorHandler;
+
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Kafka相关的配置
+ */
+@Configuration
+public class KafkaConfig {
+
+    /**
+     * 批量消费新领取优惠券消息的监听容器工厂 每次拉取的最大条数由spring.kafka.consumer.max-poll-records控制
+     * 处理失败时回退到这一批的起始位置重新消费 消息处理需要是幂等的
+     * 同一批连续失败maxFailures次后 把这一批的消息原样发送到死信topic 不再阻塞后面的消息
+     * @param consumerFactory
+     * @param kafkaTemplate
+     * @param maxFailures
+     * @return
+     */
+    @Bean
+    public ConcurrentKafkaListenerContainerFactory<Object, Object> batchKafkaListenerContainerFactory(ConsumerFactory<Object, Object> consumerFactory,
+                                                                                               KafkaTemplate<String, String> kafkaTemplate,
+                                                                                               @Value("${coupon.acquire.max-failures:5}") int maxFailures) {
+        ConcurrentKafkaListenerContainerFactory<Object, Object> factory = new ConcurrentKafkaListenerContainerFactory<>();
+        factory.setConsumerFactory(consumerFactory);
+        factory.setBatchListener(true);
+        factory.setBatchErrorHandler(new BoundedSeekToCurrentBatchErrorHandler((record, ex) -> {
+            try {
+                kafkaTemplate.send(Constant.COUPON_ACQUIRE_TOPIC_DLT, null == record.value() ? null : record.value().toString()).get();
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                throw new KafkaException("Interrupted while sending to dead letter topic", ie);
+            } catch (ExecutionException ee) {
+                throw new KafkaException("Failed to send to dead letter topic", ee);
+            }
+        }, maxFailures));
+        return factory;
+    }
+
+    /**
+     * 批量消费优惠券状态变更消息的监听容器工厂
+     * 每次拉取最多maxRecords条 broker端最多等待maxWaitMs凑够minBytes 处理成功后手动提交位移
+     * @param kafkaProperties
+     * @param maxRecords
+     * @param maxWaitMs
+     * @param minBytes
+     * @return
+     */
+    @Bean
+    public ConcurrentKafkaListenerContainerFactory<String, CouponKafkaMessage> statusBatchKafkaListenerContainerFactory(KafkaProperties kafkaProperties,
+                                                                                                      @Value("${coupon.status-consumer.max-records:2000}") int maxRecords,
+                                                                                                      @Value("${coupon.status-consumer.max-wait-ms:200}") int maxWaitMs,
+                                                                                                      @Value("${coupon.status-consumer.min-bytes:65536}") int minBytes) {
+        Map<String, Object> props = kafkaProperties.buildConsumerProperties();
+        props.put(ConsumerConfig.MAX_POLL_RECORDS_CONFIG, maxRecords);
+        props.put(ConsumerConfig.FETCH_MAX_WAIT_MS_CONFIG, maxWaitMs);
+        props.put(ConsumerConfig.FETCH_MIN_BYTES_CONFIG, minBytes);
+        props.put(ConsumerConfig.ENABLE_AUTO_COMMIT_CONFIG, false);
+
+        ConcurrentKafkaListenerContainerFactory<String, CouponKafkaMessage> factory = new ConcurrentKafkaListenerContainerFactory<>();
+        factory.setConsumerFactory(new DefaultKafkaConsumerFactory<>(props, new StringDeserializer(), new CouponKafkaMessageDeserializer()));
+        factory.setBatchListener(true);
+        factory.getContainerProperties().setAckMode(ContainerProperties.AckMode.MANUAL);
+        factory.setBatchErrorHandler(new SeekToCurrentBatchErrorHandler());
+        return factory;
+    }
+
+    /**
+     * 逐条消费优惠券状态变更消息的监听容器工厂 同时支持二进制格式和JSON格式的消息
+     * @param kafkaProperties
+     * @return
+     */
+    @Bean
+    public ConcurrentKafkaListenerContainerFactory<String, CouponKafkaMessage> statusKafkaListenerContainerFactory(KafkaProperties kafkaProperties) {
+        ConcurrentKafkaListenerContainerFactory<String, CouponKafkaMessage> factory = new ConcurrentKafkaListenerContainerFactory<>();
+        factory.setConsumerFactory(new DefaultKafkaConsumerFactory<>(kafkaProperties.buildConsumerProperties(), new StringDeserializer(), new CouponKafkaMessageDeserializer()));
+        return factory;
+    }
+
+    /**
+     * 默认的KafkaTemplate 定义了其他KafkaTemplate后Spring Boot不再自动创建 需要显式声明
+     * @param kafkaProducerFactory
+     * @param kafkaProperties
+     * @return
+     */
+    @Bean
+    @Primary
+    public KafkaTemplate<String, String> kafkaTemplate(ProducerFactory<String, String> kafkaProducerFactory, KafkaProperties kafkaProperties) {
+        KafkaTemplate<String, String> template = new KafkaTemplate<>(kafkaProducerFactory);
+        template.setDefaultTopic(kafkaProperties.getTemplate().getDefaultTopic());
+        return template;
+    }
+
+    /**
+     * 发送二进制格式优惠券状态变更消息的KafkaTemplate
+     * @param kafkaProperties
+     * @return
+     */
+    @Bean
+    public KafkaTemplate<String, CouponKafkaMessage> couponKafkaMessageTemplate(KafkaProperties kafkaProperties) {
+        return new KafkaTemplate<>(new DefaultKafkaProducerFactory<>(kafkaProperties.buildProducerProperties(), new StringSerializer(), new CouponKafkaMessageSerializer()));
+    }
+}
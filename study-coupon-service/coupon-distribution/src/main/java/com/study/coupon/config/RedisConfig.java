@@ -0,0 +1,44 @@
+package com.study.coupon.config;
+
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.data.redis.connection.RedisConnectionFactory;
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.data.redis.serializer.RedisSerializer;
+
+/**
+ * Redis相关的配置
+ */
+@Configuration
+public class RedisConfig {
+
+    /**
+     * 用户优惠券缓存使用的RedisTemplate
+     * key和hash key为字符串 hash value为{@link com.study.coupon.serialization.CouponCacheCodec}编码后的字节
+     * @param connectionFactory
+     * @return
+     */
+    @Bean
+    public RedisTemplate<String, byte[]> couponCacheRedisTemplate(RedisConnectionFactory connectionFactory) {
+        RedisTemplate<String, byte[]> template = new RedisTemplate<>();
+        template.setConnectionFactory(connectionFactory);
+        template.setKeySerializer(RedisSerializer.string());
+        template.setHashKeySerializer(RedisSerializer.string());
+        // value不设置序列化器 直接读写原始字节
+        template.setEnableDefaultSerializer(false);
+        return template;
+    }
+
+    /**
+     * Redis频道消息的监听容器
+     * @param connectionFactory
+     * @return
+     */
+    @Bean
+    public RedisMessageListenerContainer redisMessageListenerContainer(RedisConnectionFactory connectionFactory) {
+        RedisMessageListenerContainer container = new RedisMessageListenerContainer();
+        container.setConnectionFactory(connectionFactory);
+        return container;
+    }
+}
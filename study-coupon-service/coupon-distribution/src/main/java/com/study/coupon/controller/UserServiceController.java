@@ -0,0 +1,41 @@
+package com.study.coupon.controller;
+
+import com.study.coupon.exception.CouponException;
+import com.study.coupon.service.IUserService;
+import com.study.coupon.vo.CouponPage;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+
+/**
+ * 用户服务Controller
+ */
+@Slf4j
+@RestController
+public class UserServiceController {
+
+    // 用户服务
+    @Autowired
+    private IUserService userService;
+
+    /**
+     * 根据用户id和状态分页查询优惠券记录
+     * 127.0.0.1:7002/coupon-distribution/coupons/page?userId=1&status=1&size=20
+     * @param userId
+     * @param status
+     * @param cursor 上一页返回的nextCursor 第一页不传
+     * @param size 每页条数 超过上限时按上限返回
+     * @return
+     * @throws CouponException
+     */
+    @GetMapping("/coupons/page")
+    public CouponPage findCouponsByStatusPage(@RequestParam("userId") Long userId,
+                                              @RequestParam("status") Integer status,
+                                              @RequestParam(value = "cursor", required = false) Integer cursor,
+                                              @RequestParam(value = "size", required = false) Integer size) throws CouponException {
+        log.info("分页查询用户优惠券:{},{},{},{}", userId, status, cursor, size);
+        return userService.findCouponsByStatusPage(userId, status, cursor, size);
+    }
+}
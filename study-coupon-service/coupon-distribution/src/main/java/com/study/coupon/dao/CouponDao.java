@@ -4,7 +4,12 @@ import com.study.coupon.constant.CouponStatus;
 import com.study.coupon.entity.Coupon;
 import com.study.coupon.exception.CouponException;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.transaction.annotation.Transactional;
 
+import java.util.Collection;
 import java.util.List;
 
 /**
@@ -15,6 +20,38 @@ public interface CouponDao extends JpaRepository<Coupon, Integer> {
     // 根据userId和status找到缓存的优惠券列表数据
     List<Coupon> findAllByUserIdAndStatus(Long userId, CouponStatus status);
 
+    // 批量更新优惠券状态
+    @Modifying
+    @Transactional
+    @Query(value = "UPDATE coupon SET status = :status WHERE id IN (:ids)", nativeQuery = true)
+    int updateStatusByIds(@Param("status") Integer status, @Param("ids") Collection<Integer> ids);
+
+    // 只更新仍处于指定状态的优惠券 避免覆盖并发写入的其他状态
+    @Modifying
+    @Transactional
+    @Query(value = "UPDATE coupon SET status = :status WHERE status = :fromStatus AND id IN (:ids)", nativeQuery = true)
+    int updateStatusByIdsAndStatus(@Param("status") Integer status, @Param("fromStatus") Integer fromStatus, @Param("ids") Collection<Integer> ids);
+
+    // 查找用户指定状态的优惠券的模板id和领取时间 [template_id, assign_time]
+    @Query(value = "SELECT template_id, assign_time FROM coupon WHERE user_id = :userId AND status = :status", nativeQuery = true)
+    List<Object[]> findTemplateIdAndAssignTimeByUserIdAndStatus(@Param("userId") Long userId, @Param("status") Integer status);
+
+    // 按id倒序分页查找用户指定状态的优惠券 使用(user_id, status, id)索引
+    @Query(value = "SELECT * FROM coupon WHERE user_id = :userId AND status = :status AND id < :beforeId ORDER BY id DESC LIMIT :limit", nativeQuery = true)
+    List<Coupon> findPageByUserIdAndStatus(@Param("userId") Long userId, @Param("status") Integer status, @Param("beforeId") Integer beforeId, @Param("limit") Integer limit);
+
+    // 按id顺序分段查找指定状态的优惠券
+    @Query(value = "SELECT * FROM coupon WHERE status = :status AND id > :afterId ORDER BY id LIMIT :limit", nativeQuery = true)
+    List<Coupon> findByStatusAfterId(@Param("status") Integer status, @Param("afterId") Integer afterId, @Param("limit") Integer limit);
+
+    // 查找存在的优惠券id
+    @Query("select c.id from Coupon c where c.id in :ids")
+    List<Integer> findExistingIds(@Param("ids") Collection<Integer> ids);
+
+    // 当前最大的优惠券id
+    @Query("select max(c.id) from Coupon c")
+    Integer findMaxId();
+
     // 保存空的优惠券列表到缓存中
     void saveEmptyCouponListToCache(Long userId, List<Integer> status);
 
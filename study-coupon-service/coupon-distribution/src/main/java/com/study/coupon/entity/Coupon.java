@@ -20,7 +20,7 @@ import java.util.Date;
 @Entity
 @NoArgsConstructor
 @AllArgsConstructor
-@Table(name = "coupon")
+@Table(name = "coupon", indexes = {@Index(name = "idx_user_status_id", columnList = "user_id, status, id")})
 @JsonSerialize(using = CouponSerialize.class)
 @EntityListeners(AuditingEntityListener.class)
 public class Coupon {
@@ -56,6 +56,10 @@ public class Coupon {
     @Transient
     private CouponTemplateSDK templateSDK;
 
+    // 过期时间(毫秒) 由模板的过期规则和领取时间计算 随缓存保存 不落库
+    @Transient
+    private Long expireAt;
+
     /**
      * 返回一个无效的Coupon对象
      * @return
@@ -3,6 +3,7 @@ package com.study.coupon.feign;
 import com.study.coupon.feign.hystrix.TemplateClientHystrix;
 import com.study.coupon.vo.CommonResponse;
 import com.study.coupon.vo.CouponTemplateSDK;
+import com.study.coupon.vo.TemplateDelta;
 import org.springframework.cloud.openfeign.FeignClient;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestMethod;
@@ -25,4 +26,8 @@ public interface TemplateClient {
     // 获取模板ids到CouponTemplateSDK的映射
     @RequestMapping(value = "/coupon-template/template/sdk/infos", method = RequestMethod.GET)
     CommonResponse<Map<Integer,CouponTemplateSDK>> findIds2TemplateSDK(@RequestParam("ids") Collection<Integer> ids);
+
+    // 获取某个目录版本之后的模板变更
+    @RequestMapping(value = "/coupon-template/template/sdk/delta", method = RequestMethod.GET)
+    CommonResponse<TemplateDelta> findTemplateDelta(@RequestParam("version") Long version);
 }
@@ -1,12 +1,18 @@
 package com.study.coupon.feign.hystrix;
 
+import com.study.coupon.cache.TemplateReplica;
 import com.study.coupon.feign.TemplateClient;
 import com.study.coupon.vo.CommonResponse;
 import com.study.coupon.vo.CouponTemplateSDK;
+import com.study.coupon.vo.TemplateDelta;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.annotation.Lazy;
 import org.springframework.stereotype.Component;
 
-import java.util.*;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
 
 /**
  * 优惠券模板Feign接口的熔断降级策略
@@ -15,6 +21,11 @@ import java.util.*;
 @Component
 public class TemplateClientHystrix implements TemplateClient {
 
+    // 优惠券模板本地副本 降级时返回副本中的数据
+    @Lazy
+    @Autowired
+    private TemplateReplica templateReplica;
+
     /**
      * 查找所有可用的优惠券模板
      * @return
@@ -22,7 +33,7 @@ public class TemplateClientHystrix implements TemplateClient {
     @Override
     public CommonResponse<List<CouponTemplateSDK>> findAllUsableTemplate() {
         log.error("[eureka-client-coupon-template]findAllUsableTemplate当前服务不可用");
-        return new CommonResponse<>(-1, "[eureka-client-coupon-template]当前服务不可用", Collections.emptyList());
+        return new CommonResponse<>(-1, "[eureka-client-coupon-template]当前服务不可用", templateReplica.currentUsable());
     }
 
     /**
@@ -33,6 +44,17 @@ public class TemplateClientHystrix implements TemplateClient {
     @Override
     public CommonResponse<Map<Integer, CouponTemplateSDK>> findIds2TemplateSDK(Collection<Integer> ids) {
         log.error("[eureka-client-coupon-template]findIds2Template当前服务不可用");
-        return new CommonResponse<>(-1, "[eureka-client-coupon-template]当前服务不可用", new HashMap<>());
+        return new CommonResponse<>(-1, "[eureka-client-coupon-template]当前服务不可用", templateReplica.currentByIds(ids));
+    }
+
+    /**
+     * 获取某个目录版本之后的模板变更
+     * @param version
+     * @return
+     */
+    @Override
+    public CommonResponse<TemplateDelta> findTemplateDelta(Long version) {
+        log.error("[eureka-client-coupon-template]findTemplateDelta当前服务不可用");
+        return new CommonResponse<>(-1, "[eureka-client-coupon-template]当前服务不可用", null);
     }
 }
@@ -0,0 +1,96 @@
+package com.study.coupon.generator;
+
+import com.study.coupon.constant.Constant;
+import com.study.coupon.dao.CouponDao;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Component;
+
+import java.util.List;
+
+/**
+ * 优惠券id号段分配器
+ * 每个实例每次通过Redis INCRBY申请一段连续的id 在本地依次分配 号段用完再申请下一段
+ * 每个号段在使用前先把上限持久化到号段表(coupon_id_segment)
+ * Redis中的计数不存在(首次使用或数据丢失)时 以号段表记录的上限和coupon表最大id中较大的为起点
+ * 这样已分配但还没有落库(异步落库)的id不会被再次分配
+ * 实例重启时未用完的号段会被丢弃 id单调递增但不连续
+ * 使用号段分配id时 所有实例都不能再依赖数据库自增主键插入优惠券
+ */
+@Slf4j
+@Component
+public class CouponIdAllocator {
+
+    @Autowired
+    private StringRedisTemplate redisTemplate;
+
+    @Autowired
+    private CouponDao couponDao;
+
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+
+    // 号段表中优惠券id的号段名称
+    private static final String SEGMENT_NAME = "coupon";
+
+    private static final String SELECT_CEILING = "SELECT max_id FROM coupon_id_segment WHERE name = ?";
+
+    // 号段上限只增不减 多个实例并发写入时保留最大的
+    private static final String SAVE_CEILING = "INSERT INTO coupon_id_segment (name, max_id) VALUES (?, ?) ON DUPLICATE KEY UPDATE max_id = GREATEST(max_id, VALUES(max_id))";
+
+    // 每次申请的号段大小
+    @Value("${coupon.acquire.id-block-size:1000}")
+    private int blockSize;
+
+    // 下一个可分配的id
+    private long next = 0;
+
+    // 当前号段的上限(包含)
+    private long limit = -1;
+
+    /**
+     * 分配一个优惠券id
+     * @return
+     */
+    public synchronized Integer nextId() {
+        if (next > limit) {
+            allocateBlock();
+        }
+        return Math.toIntExact(next++);
+    }
+
+    /**
+     * 从Redis申请一个新的号段
+     */
+    private void allocateBlock() {
+        String key = Constant.RedisPrefix.COUPON_ID_BLOCK;
+        if (!Boolean.TRUE.equals(redisTemplate.hasKey(key))) {
+            Integer maxId = couponDao.findMaxId();
+            long ceiling = findCeiling();
+            long start = Math.max(null == maxId ? 0 : maxId, ceiling);
+            Boolean seeded = redisTemplate.opsForValue().setIfAbsent(key, String.valueOf(start));
+            log.info("初始化优惠券id号段起点:{},{},{}", maxId, ceiling, seeded);
+        }
+        Long end = redisTemplate.opsForValue().increment(key, blockSize);
+        if (null == end) {
+            throw new IllegalStateException("failed to allocate coupon id block");
+        }
+        // 上限落库后才能使用这个号段 落库失败时抛出异常 号段作废
+        jdbcTemplate.update(SAVE_CEILING, SEGMENT_NAME, end);
+        limit = end;
+        next = end - blockSize + 1;
+        log.info("申请优惠券id号段:[{},{}]", next, limit);
+    }
+
+    /**
+     * 号段表中记录的已分配出去的最大id
+     * @return
+     */
+    private long findCeiling() {
+        List<Long> ceilings = jdbcTemplate.queryForList(SELECT_CEILING, Long.class, SEGMENT_NAME);
+        return ceilings.isEmpty() || null == ceilings.get(0) ? 0 : ceilings.get(0);
+    }
+}
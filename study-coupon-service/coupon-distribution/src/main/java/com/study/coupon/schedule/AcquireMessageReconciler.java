@@ -0,0 +1,100 @@
+package com.study.coupon.schedule;
+
+import com.study.coupon.constant.Constant;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.kafka.common.errors.RetriableException;
+import org.apache.kafka.common.errors.TimeoutException;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.kafka.core.KafkaTemplate;
+import org.springframework.kafka.support.SendResult;
+import org.springframework.stereotype.Component;
+import org.springframework.util.concurrent.ListenableFuture;
+
+import javax.annotation.PreDestroy;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 发送结果未知的领取记录的补偿
+ * 等待Kafka确认超时(或失败原因是超时等可重试的错误)时 消息可能已经写入broker 不能撤销领取
+ * 领取按成功处理 这里继续跟踪原来的发送结果 确认失败时用同一个优惠券id重新发送直到成功
+ * 消费方按id插入 同一张优惠券重复的消息只会插入一次 所以重发不会产生重复的优惠券
+ * 实例在重发成功之前退出时这张优惠券不会落库 只会记录日志
+ */
+@Slf4j
+@Component
+public class AcquireMessageReconciler {
+
+    @Autowired
+    private KafkaTemplate<String, String> kafkaTemplate;
+
+    // 第一次重发的等待时间 之后每次翻倍
+    @Value("${coupon.acquire.resend-initial-interval-ms:1000}")
+    private long initialIntervalMs;
+
+    // 重发的最大等待时间
+    @Value("${coupon.acquire.resend-max-interval-ms:60000}")
+    private long maxIntervalMs;
+
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "acquire-message-resend");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * 发送失败的原因是否无法确定消息有没有写入broker
+     * @param cause
+     * @return
+     */
+    public static boolean isIndeterminate(Throwable cause) {
+        for (Throwable t = cause; null != t; t = t.getCause()) {
+            if (t instanceof TimeoutException || t instanceof RetriableException) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 跟踪一条发送结果未知的领取记录 确认失败时重发
+     * @param key
+     * @param message
+     * @param future 原来的发送结果
+     */
+    public void reconcile(String key, String message, ListenableFuture<SendResult<String, String>> future) {
+        future.addCallback(
+                result -> log.info("发送结果未知的领取记录已确认写入:{}", message),
+                ex -> scheduleResend(key, message, 1, initialIntervalMs));
+    }
+
+    private void scheduleResend(String key, String message, int attempt, long delayMs) {
+        log.warn("领取记录发送失败,{}ms后第{}次重发:{}", delayMs, attempt, message);
+        scheduler.schedule(() -> resend(key, message, attempt, delayMs), delayMs, TimeUnit.MILLISECONDS);
+    }
+
+    private void resend(String key, String message, int attempt, long delayMs) {
+        long nextDelayMs = Math.min(delayMs * 2, maxIntervalMs);
+        try {
+            kafkaTemplate.send(Constant.COUPON_ACQUIRE_TOPIC, key, message).addCallback(
+                    result -> log.info("领取记录第{}次重发成功:{}", attempt, message),
+                    ex -> {
+                        log.error("领取记录第{}次重发失败:{}", attempt, message, ex);
+                        scheduleResend(key, message, attempt + 1, nextDelayMs);
+                    });
+        } catch (RuntimeException ex) {
+            log.error("领取记录第{}次重发失败:{}", attempt, message, ex);
+            scheduleResend(key, message, attempt + 1, nextDelayMs);
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        int pending = scheduler.shutdownNow().size();
+        if (pending > 0) {
+            log.error("实例退出时还有{}条领取记录没有重发成功", pending);
+        }
+    }
+}
@@ -0,0 +1,156 @@
+package com.study.coupon.schedule;
+
+import com.study.coupon.constant.Constant;
+import com.study.coupon.constant.CouponStatus;
+import com.study.coupon.entity.Coupon;
+import com.study.coupon.service.IKafkaService;
+import com.study.coupon.service.IRedisService;
+import com.study.coupon.vo.CouponClassify;
+import com.study.coupon.vo.CouponKafkaMessage;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.util.*;
+import java.util.stream.Collectors;
+
+/**
+ * 优惠券到期队列
+ * 领取优惠券时过期时间就已经确定 把它放入Redis有序集合(score为过期时间)
+ * 每秒取出已到期的优惠券 从用户的可用缓存转移到已过期缓存 并通过Kafka批量更新数据库
+ * 取出是原子的 多个实例同时轮询时每张优惠券只会被处理一次
+ * 取出后实例异常退出会丢失这部分到期事件 由定时扫描任务({@link CouponExpireTask})和读路径兜底
+ */
+@Slf4j
+@Component
+public class CouponExpireQueue {
+
+    // 取出到期元素的脚本
+    @SuppressWarnings("rawtypes")
+    private static final DefaultRedisScript<List> POLL_SCRIPT = new DefaultRedisScript<>();
+
+    static {
+        POLL_SCRIPT.setLocation(new ClassPathResource("lua/expire_queue_poll.lua"));
+        POLL_SCRIPT.setResultType(List.class);
+    }
+
+    @Autowired
+    private StringRedisTemplate redisTemplate;
+
+    @Autowired
+    private IRedisService redisService;
+
+    @Autowired
+    private IKafkaService kafkaService;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    // 是否开启到期队列
+    @Value("${coupon.expire-queue.enabled:false}")
+    private boolean enabled;
+
+    // 每次取出的最大个数
+    @Value("${coupon.expire-queue.batch-size:500}")
+    private int batchSize;
+
+    // 每次轮询最多取出的批数 积压时下一次轮询继续
+    @Value("${coupon.expire-queue.max-batches-per-poll:20}")
+    private int maxBatchesPerPoll;
+
+    // 到期处理的优惠券个数
+    private Counter expiredCounter;
+
+    @PostConstruct
+    public void init() {
+        expiredCounter = meterRegistry.counter("coupon.expire.queue.expired");
+    }
+
+    /**
+     * 登记新领取的优惠券的过期时间
+     * 登记失败不影响领取 由定时扫描任务兜底
+     * @param coupon 已经有id和模板信息的优惠券
+     */
+    public void register(Coupon coupon) {
+        if (!enabled || null == coupon.getId() || null == coupon.getTemplateSDK()) {
+            return;
+        }
+        Date assignTime = null == coupon.getAssignTime() ? new Date() : coupon.getAssignTime();
+        long expireTime = CouponClassify.expireTime(coupon.getTemplateSDK().getRule().getExpiration(), assignTime);
+        try {
+            redisTemplate.opsForZSet().add(Constant.RedisPrefix.COUPON_EXPIRE_QUEUE, member(coupon), expireTime);
+        } catch (Exception ex) {
+            log.error("登记优惠券过期时间失败:{},{}", coupon.getId(), expireTime, ex);
+        }
+    }
+
+    /**
+     * 处理已到期的优惠券
+     */
+    @Scheduled(fixedDelayString = "${coupon.expire-queue.poll-interval-ms:1000}")
+    @SuppressWarnings("unchecked")
+    public void poll() {
+        if (!enabled) {
+            return;
+        }
+        try {
+            for (int i = 0; i < maxBatchesPerPoll; ++i) {
+                List<String> items = redisTemplate.execute(POLL_SCRIPT, Collections.singletonList(Constant.RedisPrefix.COUPON_EXPIRE_QUEUE), String.valueOf(System.currentTimeMillis()), String.valueOf(batchSize));
+                if (null == items || items.isEmpty()) {
+                    return;
+                }
+                expire(items);
+                if (items.size() < batchSize) {
+                    return;
+                }
+            }
+        } catch (Exception ex) {
+            log.error("处理到期的优惠券失败", ex);
+        }
+    }
+
+    /**
+     * 转移缓存并发送过期消息
+     * 已使用的优惠券不在可用缓存中 Kafka消费方也不会把已使用的优惠券改为过期
+     * @param items
+     */
+    private void expire(List<String> items) {
+        List<Coupon> coupons = items.stream().map(CouponExpireQueue::parse).filter(Objects::nonNull).collect(Collectors.toList());
+        if (coupons.isEmpty()) {
+            return;
+        }
+        coupons.stream().collect(Collectors.groupingBy(Coupon::getUserId)).forEach((userId, userCoupons) -> {
+            try {
+                redisService.expireCachedCoupons(userId, userCoupons);
+            } catch (Exception ex) {
+                log.error("移除用户缓存中已过期的优惠券失败:{}", userId, ex);
+            }
+        });
+        kafkaService.sendCouponKafkaMessage(new CouponKafkaMessage(CouponStatus.EXPIRED.getCode(), coupons.stream().map(Coupon::getId).collect(Collectors.toList())));
+        expiredCounter.increment(coupons.size());
+        log.info("处理到期的优惠券:{}张", coupons.size());
+    }
+
+    private static String member(Coupon coupon) {
+        return coupon.getId() + ":" + coupon.getUserId() + ":" + coupon.getTemplateId();
+    }
+
+    private static Coupon parse(String member) {
+        String[] parts = member.split(":");
+        if (parts.length != 3) {
+            log.error("无法解析的到期队列元素:{}", member);
+            return null;
+        }
+        Coupon coupon = new Coupon(Integer.valueOf(parts[2]), Long.valueOf(parts[1]), null, CouponStatus.USABLE);
+        coupon.setId(Integer.valueOf(parts[0]));
+        return coupon;
+    }
+}
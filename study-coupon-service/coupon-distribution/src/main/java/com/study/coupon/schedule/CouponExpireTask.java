@@ -0,0 +1,180 @@
+package com.study.coupon.schedule;
+
+import com.google.common.util.concurrent.RateLimiter;
+import com.study.coupon.cache.TemplateReplica;
+import com.study.coupon.constant.Constant;
+import com.study.coupon.constant.CouponStatus;
+import com.study.coupon.dao.CouponDao;
+import com.study.coupon.entity.Coupon;
+import com.study.coupon.service.IRedisService;
+import com.study.coupon.vo.CouponClassify;
+import com.study.coupon.vo.CouponTemplateSDK;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.StringUtils;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * 定时把已过期的用户优惠券标记为过期
+ * 1.按id顺序分段扫描可用的优惠券(id随领取时间递增) 进度保存在Redis中 扫描到末尾后下一轮从头开始
+ * 2.每段按模板的过期规则(固定日期/领取后天数)批量判断 过期的优惠券一条UPDATE改为已过期
+ * 3.从这些用户的可用缓存中移除已过期的优惠券 并通知本地缓存失效
+ * 多个实例之间通过Redis锁保证同一时刻只有一个实例在扫描 扫描速度由限流器控制
+ */
+@Slf4j
+@Component
+public class CouponExpireTask {
+
+    // 释放锁的脚本
+    private static final DefaultRedisScript<Long> LOCK_RELEASE_SCRIPT = new DefaultRedisScript<>();
+
+    static {
+        LOCK_RELEASE_SCRIPT.setLocation(new ClassPathResource("lua/lock_release.lua"));
+        LOCK_RELEASE_SCRIPT.setResultType(Long.class);
+    }
+
+    @Autowired
+    private CouponDao couponDao;
+
+    @Autowired
+    private IRedisService redisService;
+
+    // 优惠券模板本地副本
+    @Autowired
+    private TemplateReplica templateReplica;
+
+    @Autowired
+    private StringRedisTemplate redisTemplate;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    // 是否开启过期扫描
+    @Value("${coupon.expire.enabled:false}")
+    private boolean enabled;
+
+    // 每段扫描的优惠券条数
+    @Value("${coupon.expire.batch-size:500}")
+    private int batchSize;
+
+    // 每秒最多扫描的优惠券条数
+    @Value("${coupon.expire.rows-per-second:2000}")
+    private double rowsPerSecond;
+
+    // 每一轮最多扫描的优惠券条数
+    @Value("${coupon.expire.max-rows-per-run:200000}")
+    private int maxRowsPerRun;
+
+    // 锁的有效时间 需要大于一轮扫描的耗时
+    @Value("${coupon.expire.lock-ttl-ms:300000}")
+    private long lockTtlMs;
+
+    // 扫描限流器
+    private RateLimiter rateLimiter;
+
+    // 扫描的优惠券条数
+    private Counter scannedCounter;
+
+    // 标记为过期的优惠券条数
+    private Counter expiredCounter;
+
+    @PostConstruct
+    public void init() {
+        rateLimiter = RateLimiter.create(rowsPerSecond);
+        scannedCounter = meterRegistry.counter("coupon.expire.scanned");
+        expiredCounter = meterRegistry.counter("coupon.expire.expired");
+    }
+
+    /**
+     * 扫描并标记已过期的优惠券
+     */
+    @Scheduled(fixedDelayString = "${coupon.expire.interval-ms:60000}")
+    public void expireCoupons() {
+        if (!enabled) {
+            return;
+        }
+        String token = UUID.randomUUID().toString();
+        Boolean locked = redisTemplate.opsForValue().setIfAbsent(Constant.RedisPrefix.COUPON_EXPIRE_LOCK, token, lockTtlMs, TimeUnit.MILLISECONDS);
+        if (!Boolean.TRUE.equals(locked)) {
+            log.debug("其他实例正在扫描已过期的优惠券");
+            return;
+        }
+
+        long start = System.currentTimeMillis();
+        int scanned = 0;
+        int expired = 0;
+        try {
+            String cursorValue = redisTemplate.opsForValue().get(Constant.RedisPrefix.COUPON_EXPIRE_CURSOR);
+            int cursor = StringUtils.isEmpty(cursorValue) ? 0 : Integer.parseInt(cursorValue);
+            log.info("开始扫描已过期的优惠券:{}", cursor);
+
+            while (scanned < maxRowsPerRun) {
+                rateLimiter.acquire(batchSize);
+                List<Coupon> coupons = couponDao.findByStatusAfterId(CouponStatus.USABLE.getCode(), cursor, batchSize);
+                scanned += coupons.size();
+                if (!coupons.isEmpty()) {
+                    expired += expireBatch(coupons, System.currentTimeMillis());
+                    cursor = coupons.get(coupons.size() - 1).getId();
+                }
+                if (coupons.size() < batchSize) {
+                    // 已扫描到末尾 下一轮从头开始
+                    cursor = 0;
+                    break;
+                }
+            }
+            redisTemplate.opsForValue().set(Constant.RedisPrefix.COUPON_EXPIRE_CURSOR, String.valueOf(cursor));
+        } catch (Exception ex) {
+            log.error("扫描已过期的优惠券失败", ex);
+        } finally {
+            redisTemplate.execute(LOCK_RELEASE_SCRIPT, Collections.singletonList(Constant.RedisPrefix.COUPON_EXPIRE_LOCK), token);
+            scannedCounter.increment(scanned);
+            expiredCounter.increment(expired);
+        }
+        log.info("结束扫描已过期的优惠券:扫描{}条,过期{}条,耗时{}ms", scanned, expired, System.currentTimeMillis() - start);
+    }
+
+    /**
+     * 处理一段优惠券
+     * @param coupons
+     * @param curTime 当前时间 同一段使用同一个时间判断
+     * @return 标记为过期的优惠券条数
+     */
+    private int expireBatch(List<Coupon> coupons, long curTime) {
+        Map<Integer, CouponTemplateSDK> id2Template = templateReplica.findByIds(coupons.stream().map(Coupon::getTemplateId).collect(Collectors.toSet()));
+
+        List<Coupon> expiredCoupons = coupons.stream().filter(c -> {
+            CouponTemplateSDK template = id2Template.get(c.getTemplateId());
+            // 找不到模板的优惠券无法判断 留给下一轮
+            return null != template && CouponClassify.isTimeExpire(template.getRule().getExpiration(), c.getAssignTime(), curTime);
+        }).collect(Collectors.toList());
+        if (expiredCoupons.isEmpty()) {
+            return 0;
+        }
+
+        // 先改数据库 缓存之后从数据库重建时不会再把这些优惠券当作可用
+        int updated = couponDao.updateStatusByIdsAndStatus(CouponStatus.EXPIRED.getCode(), CouponStatus.USABLE.getCode(), expiredCoupons.stream().map(Coupon::getId).collect(Collectors.toList()));
+
+        Map<Long, List<Coupon>> user2Coupons = expiredCoupons.stream().collect(Collectors.groupingBy(Coupon::getUserId));
+        user2Coupons.forEach((userId, userCoupons) -> {
+            try {
+                redisService.expireCachedCoupons(userId, userCoupons);
+            } catch (Exception ex) {
+                // 缓存会在过期后从数据库重建 读路径也会再次判断过期
+                log.error("移除用户缓存中已过期的优惠券失败:{}", userId, ex);
+            }
+        });
+        return updated;
+    }
+}
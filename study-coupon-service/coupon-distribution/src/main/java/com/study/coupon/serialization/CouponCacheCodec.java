@@ -0,0 +1,228 @@
+package com.study.coupon.serialization;
+
+import com.alibaba.fastjson.JSON;
+import com.study.coupon.constant.CouponStatus;
+import com.study.coupon.entity.Coupon;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Date;
+
+/**
+ * 用户优惠券缓存的二进制编码
+ * 只保存优惠券自身的字段 模板信息只保存模板id 读取时再从本地模板副本中补全
+ * 格式: [版本号][状态][id][templateId][userId][assignTime][couponCode][expireAt]
+ * 1.版本号和状态各占一个字节 状态固定在第二个字节 Lua脚本可以直接改写
+ * 2.整数字段为zigzag变长编码 值加一保存 0表示null
+ * 3.18位纯数字的优惠券码按数字保存 其他优惠券码按UTF-8保存
+ * 4.expireAt在末尾 之前写入的缓存没有该字段 读取时为null
+ * 首字节为'{'的是旧的fastjson格式 仍然可以读取
+ */
+public class CouponCacheCodec {
+
+    // 当前编码版本
+    public static final byte VERSION = 1;
+
+    // 状态所在的字节偏移
+    public static final int STATUS_OFFSET = 1;
+
+    // 优惠券码为null
+    private static final int CODE_NULL = 0;
+
+    // 优惠券码按数字保存
+    private static final int CODE_NUMERIC = 1;
+
+    // 按数字保存的优惠券码长度
+    private static final int NUMERIC_CODE_LENGTH = 18;
+
+    /**
+     * 编码优惠券
+     * @param coupon
+     * @param status 缓存中的状态 为null时使用优惠券自身的状态
+     * @return
+     */
+    public static byte[] encode(Coupon coupon, CouponStatus status) {
+        Writer writer = new Writer();
+        CouponStatus s = null == status ? coupon.getStatus() : status;
+        writer.writeByte(VERSION);
+        writer.writeByte(null == s ? 0 : s.getCode());
+        writer.writeNullable(null == coupon.getId() ? null : coupon.getId().longValue());
+        writer.writeNullable(null == coupon.getTemplateId() ? null : coupon.getTemplateId().longValue());
+        writer.writeNullable(coupon.getUserId());
+        writer.writeNullable(null == coupon.getAssignTime() ? null : coupon.getAssignTime().getTime());
+        writeCode(writer, coupon.getCouponCode());
+        writer.writeNullable(coupon.getExpireAt());
+        return writer.toByteArray();
+    }
+
+    /**
+     * 解码优惠券 不包含模板信息(旧格式除外)
+     * @param bytes
+     * @return
+     */
+    public static Coupon decode(byte[] bytes) {
+        if (bytes.length > 0 && bytes[0] == '{') {
+            return JSON.parseObject(new String(bytes, StandardCharsets.UTF_8), Coupon.class);
+        }
+        if (bytes.length < 2 || bytes[0] != VERSION) {
+            throw new IllegalArgumentException("unsupported coupon cache encoding: " + (bytes.length > 0 ? bytes[0] : -1));
+        }
+        Reader reader = new Reader(bytes, 2);
+        Coupon coupon = new Coupon();
+        coupon.setStatus(0 == bytes[STATUS_OFFSET] ? null : CouponStatus.of((int) bytes[STATUS_OFFSET]));
+        Long id = reader.readNullable();
+        coupon.setId(null == id ? null : id.intValue());
+        Long templateId = reader.readNullable();
+        coupon.setTemplateId(null == templateId ? null : templateId.intValue());
+        coupon.setUserId(reader.readNullable());
+        Long assignTime = reader.readNullable();
+        coupon.setAssignTime(null == assignTime ? null : new Date(assignTime));
+        coupon.setCouponCode(readCode(reader));
+        if (reader.hasRemaining()) {
+            coupon.setExpireAt(reader.readNullable());
+        }
+        return coupon;
+    }
+
+    private static void writeCode(Writer writer, String code) {
+        if (null == code) {
+            writer.writeVarLong(CODE_NULL);
+        } else if (isNumericCode(code)) {
+            writer.writeVarLong(CODE_NUMERIC);
+            writer.writeVarLong(Long.parseLong(code));
+        } else {
+            byte[] raw = code.getBytes(StandardCharsets.UTF_8);
+            writer.writeVarLong(raw.length + 2);
+            writer.writeBytes(raw);
+        }
+    }
+
+    private static String readCode(Reader reader) {
+        int kind = (int) reader.readVarLong();
+        if (kind == CODE_NULL) {
+            return null;
+        }
+        if (kind == CODE_NUMERIC) {
+            return Long.toString(reader.readVarLong());
+        }
+        return new String(reader.readBytes(kind - 2), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * 18位且首位不为0的纯数字优惠券码 转成数字后不会丢失信息
+     * @param code
+     * @return
+     */
+    private static boolean isNumericCode(String code) {
+        if (code.length() != NUMERIC_CODE_LENGTH || code.charAt(0) == '0') {
+            return false;
+        }
+        for (int i = 0; i < code.length(); ++i) {
+            char c = code.charAt(i);
+            if (c < '0' || c > '9') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 写缓冲区
+     */
+    private static class Writer {
+
+        private byte[] buffer = new byte[48];
+
+        private int position = 0;
+
+        void writeByte(int b) {
+            ensure(1);
+            buffer[position++] = (byte) b;
+        }
+
+        void writeBytes(byte[] bytes) {
+            ensure(bytes.length);
+            System.arraycopy(bytes, 0, buffer, position, bytes.length);
+            position += bytes.length;
+        }
+
+        void writeNullable(Long value) {
+            writeVarLong(null == value ? 0 : zigzag(value) + 1);
+        }
+
+        void writeVarLong(long value) {
+            ensure(10);
+            while ((value & ~0x7FL) != 0) {
+                buffer[position++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            buffer[position++] = (byte) value;
+        }
+
+        byte[] toByteArray() {
+            return Arrays.copyOf(buffer, position);
+        }
+
+        private void ensure(int n) {
+            if (position + n > buffer.length) {
+                buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, position + n));
+            }
+        }
+
+        private static long zigzag(long v) {
+            return (v << 1) ^ (v >> 63);
+        }
+    }
+
+    /**
+     * 读缓冲区
+     */
+    private static class Reader {
+
+        private final byte[] buffer;
+
+        private int position;
+
+        Reader(byte[] buffer, int position) {
+            this.buffer = buffer;
+            this.position = position;
+        }
+
+        boolean hasRemaining() {
+            return position < buffer.length;
+        }
+
+        Long readNullable() {
+            long raw = readVarLong();
+            if (raw == 0) {
+                return null;
+            }
+            long v = raw - 1;
+            return (v >>> 1) ^ -(v & 1);
+        }
+
+        long readVarLong() {
+            long result = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                if (position >= buffer.length) {
+                    throw new IllegalArgumentException("truncated coupon cache value");
+                }
+                byte b = buffer[position++];
+                result |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return result;
+                }
+            }
+            throw new IllegalArgumentException("malformed varint in coupon cache value");
+        }
+
+        byte[] readBytes(int n) {
+            if (n < 0 || position + n > buffer.length) {
+                throw new IllegalArgumentException("truncated coupon cache value");
+            }
+            byte[] bytes = Arrays.copyOfRange(buffer, position, position + n);
+            position += n;
+            return bytes;
+        }
+    }
+}
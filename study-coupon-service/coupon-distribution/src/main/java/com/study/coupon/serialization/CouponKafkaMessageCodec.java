@@ -0,0 +1,184 @@
+package com.study.coupon.serialization;
+
+import com.alibaba.fastjson.JSON;
+import com.study.coupon.vo.CouponKafkaMessage;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * 优惠券Kafka消息的二进制编码
+ * 格式: [魔数][版本号][状态][标志位][正文]
+ * 正文: [id个数][第一个id][与前一个id的差值]... 均为变长编码 id去重并升序排列
+ * 标志位最低位为1时正文经过Deflater压缩 只有压缩后更小才会压缩
+ * 首字节为'{'的是旧的fastjson格式 仍然可以读取
+ * 注意: 编码后的id是去重升序的 不保留原始顺序
+ */
+public class CouponKafkaMessageCodec {
+
+    // 魔数
+    public static final byte MAGIC = (byte) 0xC5;
+
+    // 当前编码版本
+    public static final byte VERSION = 1;
+
+    // 正文经过压缩
+    private static final int FLAG_DEFLATE = 1;
+
+    // id个数达到该值时尝试压缩
+    private static final int DEFLATE_THRESHOLD = 256;
+
+    // 头部长度
+    private static final int HEADER_LENGTH = 4;
+
+    /**
+     * 编码消息
+     * @param message
+     * @return
+     */
+    public static byte[] encode(CouponKafkaMessage message) {
+        int[] ids = sortedDistinctIds(message.getIds());
+
+        ByteArrayOutputStream body = new ByteArrayOutputStream(ids.length * 2 + 8);
+        writeVarLong(body, ids.length);
+        long prev = 0;
+        for (int id : ids) {
+            writeVarLong(body, id - prev);
+            prev = id;
+        }
+        byte[] raw = body.toByteArray();
+
+        int flags = 0;
+        if (ids.length >= DEFLATE_THRESHOLD) {
+            byte[] deflated = deflate(raw);
+            if (deflated.length < raw.length) {
+                raw = deflated;
+                flags |= FLAG_DEFLATE;
+            }
+        }
+
+        byte[] bytes = new byte[HEADER_LENGTH + raw.length];
+        bytes[0] = MAGIC;
+        bytes[1] = VERSION;
+        bytes[2] = (byte) message.getStatus().intValue();
+        bytes[3] = (byte) flags;
+        System.arraycopy(raw, 0, bytes, HEADER_LENGTH, raw.length);
+        return bytes;
+    }
+
+    /**
+     * 解码消息
+     * @param bytes
+     * @return
+     */
+    public static CouponKafkaMessage decode(byte[] bytes) {
+        if (bytes.length > 0 && bytes[0] == '{') {
+            return JSON.parseObject(new String(bytes, StandardCharsets.UTF_8), CouponKafkaMessage.class);
+        }
+        if (bytes.length < HEADER_LENGTH || bytes[0] != MAGIC || bytes[1] != VERSION) {
+            throw new IllegalArgumentException("unsupported coupon kafka message encoding");
+        }
+
+        byte[] raw = Arrays.copyOfRange(bytes, HEADER_LENGTH, bytes.length);
+        if ((bytes[3] & FLAG_DEFLATE) != 0) {
+            raw = inflate(raw);
+        }
+
+        int[] position = {0};
+        int count = (int) readVarLong(raw, position);
+        List<Integer> ids = new ArrayList<>(count);
+        long prev = 0;
+        for (int i = 0; i < count; ++i) {
+            prev += readVarLong(raw, position);
+            ids.add((int) prev);
+        }
+        return new CouponKafkaMessage((int) bytes[2], ids);
+    }
+
+    private static int[] sortedDistinctIds(List<Integer> ids) {
+        if (null == ids || ids.isEmpty()) {
+            return new int[0];
+        }
+        int[] sorted = new int[ids.size()];
+        for (int i = 0; i < sorted.length; ++i) {
+            sorted[i] = ids.get(i);
+        }
+        Arrays.sort(sorted);
+        int n = 0;
+        for (int i = 0; i < sorted.length; ++i) {
+            if (i == 0 || sorted[i] != sorted[n - 1]) {
+                sorted[n++] = sorted[i];
+            }
+        }
+        if (sorted[0] < 0) {
+            throw new IllegalArgumentException("negative coupon id: " + sorted[0]);
+        }
+        return Arrays.copyOf(sorted, n);
+    }
+
+    private static void writeVarLong(ByteArrayOutputStream out, long value) {
+        while ((value & ~0x7FL) != 0) {
+            out.write((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    private static long readVarLong(byte[] buffer, int[] position) {
+        long result = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            if (position[0] >= buffer.length) {
+                throw new IllegalArgumentException("truncated coupon kafka message");
+            }
+            byte b = buffer[position[0]++];
+            result |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return result;
+            }
+        }
+        throw new IllegalArgumentException("malformed varint in coupon kafka message");
+    }
+
+    private static byte[] deflate(byte[] raw) {
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            deflater.setInput(raw);
+            deflater.finish();
+            ByteArrayOutputStream out = new ByteArrayOutputStream(raw.length / 2 + 16);
+            byte[] buffer = new byte[4096];
+            while (!deflater.finished()) {
+                out.write(buffer, 0, deflater.deflate(buffer));
+            }
+            return out.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private static byte[] inflate(byte[] raw) {
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(raw);
+            ByteArrayOutputStream out = new ByteArrayOutputStream(raw.length * 4);
+            byte[] buffer = new byte[4096];
+            while (!inflater.finished()) {
+                int n = inflater.inflate(buffer);
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new IllegalArgumentException("truncated compressed coupon kafka message");
+                }
+                out.write(buffer, 0, n);
+            }
+            return out.toByteArray();
+        } catch (DataFormatException ex) {
+            throw new IllegalArgumentException("corrupt compressed coupon kafka message", ex);
+        } finally {
+            inflater.end();
+        }
+    }
+}
@@ -0,0 +1,36 @@
+package com.study.coupon.serialization;
+
+import com.study.coupon.vo.CouponKafkaMessage;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.kafka.common.serialization.Deserializer;
+
+import java.util.Map;
+
+/**
+ * 优惠券Kafka消息的反序列化器 同时支持二进制格式和旧的JSON格式
+ * 无法解析的消息返回null 由监听方跳过 避免一直卡在同一条消息上
+ */
+@Slf4j
+public class CouponKafkaMessageDeserializer implements Deserializer<CouponKafkaMessage> {
+
+    @Override
+    public void configure(Map<String, ?> configs, boolean isKey) {
+    }
+
+    @Override
+    public CouponKafkaMessage deserialize(String topic, byte[] data) {
+        if (null == data) {
+            return null;
+        }
+        try {
+            return CouponKafkaMessageCodec.decode(data);
+        } catch (RuntimeException ex) {
+            log.error("无法解析的优惠券Kafka消息:{},{}字节", topic, data.length, ex);
+            return null;
+        }
+    }
+
+    @Override
+    public void close() {
+    }
+}
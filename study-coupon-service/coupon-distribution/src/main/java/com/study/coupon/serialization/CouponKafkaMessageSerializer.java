@@ -0,0 +1,25 @@
+package com.study.coupon.serialization;
+
+import com.study.coupon.vo.CouponKafkaMessage;
+import org.apache.kafka.common.serialization.Serializer;
+
+import java.util.Map;
+
+/**
+ * 优惠券Kafka消息的序列化器
+ */
+public class CouponKafkaMessageSerializer implements Serializer<CouponKafkaMessage> {
+
+    @Override
+    public void configure(Map<String, ?> configs, boolean isKey) {
+    }
+
+    @Override
+    public byte[] serialize(String topic, CouponKafkaMessage message) {
+        return null == message ? null : CouponKafkaMessageCodec.encode(message);
+    }
+
+    @Override
+    public void close() {
+    }
+}
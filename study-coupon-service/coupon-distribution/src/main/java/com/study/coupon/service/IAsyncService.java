@@ -0,0 +1,16 @@
+package com.study.coupon.service;
+
+import com.study.coupon.entity.Coupon;
+
+/**
+ * 异步服务接口定义
+ */
+public interface IAsyncService {
+
+    /**
+     * 异步从数据库加载用户某个状态的全部优惠券并写入缓存
+     * @param userId 用户id
+     * @param status 优惠券状态
+     */
+    void asyncLoadCouponCache(Long userId, Integer status);
+}
@@ -1,12 +1,25 @@
 package com.study.coupon.service;
 
+import com.study.coupon.vo.CouponKafkaMessage;
 import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.springframework.kafka.support.Acknowledgment;
+
+import java.util.List;
 
 /**
  * Kafka相关的服务接口定义
  */
 public interface IKafkaService {
 
+    // 发送优惠券状态变更消息
+    void sendCouponKafkaMessage(CouponKafkaMessage message);
+
     // 消费优惠券Kafka消息
     void consumeCouponKafkaMessage(ConsumerRecord<?, ?> record);
+
+    // 批量消费优惠券Kafka消息
+    void consumeCouponKafkaMessages(List<ConsumerRecord<String, CouponKafkaMessage>> records, Acknowledgment ack) throws Exception;
+
+    // 批量消费新领取优惠券的Kafka消息
+    void consumeCouponAcquireMessages(List<ConsumerRecord<String, String>> records) throws Exception;
 }
@@ -2,8 +2,11 @@ package com.study.coupon.service;
 
 import com.study.coupon.entity.Coupon;
 import com.study.coupon.exception.CouponException;
+import com.study.coupon.vo.CouponTemplateSDK;
 
+import java.util.BitSet;
 import java.util.List;
+import java.util.Map;
 
 /**
  * Redis相关的操作服务接口定义
@@ -15,6 +18,12 @@ public interface IRedisService {
     // 根据userId和status找到缓存的优惠券列表数据
     List<Coupon> getCachedCoupons(Long userId, Integer status);
 
+    // 按id倒序分页读取缓存的优惠券 缓存不存在时返回null
+    List<Coupon> getCachedCouponPage(Long userId, Integer status, Integer beforeId, int limit);
+
+    // 把从数据库加载的优惠券完整写入缓存 缓存已存在时不写入
+    void fillCouponCache(Long userId, List<Coupon> coupons, Integer status);
+
     // 保存空的优惠券列表到缓存中
     void saveEmptyCouponListToCache(Long userId, List<Integer> status);
 
@@ -23,4 +32,25 @@ public interface IRedisService {
 
     // 将优惠券保存到Cache中
     Integer addCouponToCache(Long userId, List<Coupon> coupons, Integer status) throws CouponException;
+
+    // 将数据库中已过期的优惠券从可用缓存中移除 不在缓存中的优惠券忽略
+    Integer expireCachedCoupons(Long userId, List<Coupon> coupons);
+
+    // 原子地校验领取上限并领取一个优惠券码 领取计数不存在时从数据库重建
+    String claimCouponCode(Long userId, CouponTemplateSDK template) throws CouponException;
+
+    // 用户持有的每个模板未过期的可用优惠券数 不存在时从数据库重建
+    Map<Integer, Integer> getClaimCounts(Long userId);
+
+    // 用户已达领取上限的模板(按模板id置位) 不存在时从数据库重建
+    BitSet getFullTemplates(Long userId);
+
+    // 撤销一次领取 优惠券码放回缓存并减少领取计数
+    void releaseClaimedCouponCode(Long userId, Integer templateId, String couponCode);
+
+    // 记录一张已领取但还没有落库的write-behind优惠券 重建领取计数时计入
+    void addPendingClaim(Coupon coupon);
+
+    // 删除已落库(或确定不会落库)的write-behind优惠券记录 key:用户id value:优惠券id
+    void removePendingClaims(Map<Long, List<Integer>> userId2CouponIds);
 }
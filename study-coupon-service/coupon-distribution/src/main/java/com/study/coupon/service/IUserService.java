@@ -3,6 +3,7 @@ package com.study.coupon.service;
 import com.study.coupon.entity.Coupon;
 import com.study.coupon.exception.CouponException;
 import com.study.coupon.vo.AcquireTemplateRequest;
+import com.study.coupon.vo.CouponPage;
 import com.study.coupon.vo.CouponTemplateSDK;
 import com.study.coupon.vo.SettlementInfo;
 
@@ -20,6 +21,9 @@ public interface IUserService {
     // 根据userId和status查询优惠券记录
     List<Coupon> findCouponsByStatus(Long userId, Integer status) throws CouponException;
 
+    // 根据userId和status分页查询优惠券记录
+    CouponPage findCouponsByStatusPage(Long userId, Integer status, Integer cursor, Integer size) throws CouponException;
+
     // 根据userId查找当前可以领取的优惠券模板
     List<CouponTemplateSDK> findAvailableTemplate(Long userId) throws CouponException;
 
@@ -0,0 +1,60 @@
+package com.study.coupon.service.impl;
+
+import com.study.coupon.constant.CouponStatus;
+import com.study.coupon.dao.CouponDao;
+import com.study.coupon.entity.Coupon;
+import com.study.coupon.service.IAsyncService;
+import com.study.coupon.service.IRedisService;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.scheduling.annotation.Async;
+import org.springframework.stereotype.Service;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 异步服务接口实现
+ */
+@Slf4j
+@Service
+public class AsyncServiceImpl implements IAsyncService {
+
+    @Autowired
+    private CouponDao couponDao;
+
+    @Autowired
+    private IRedisService redisService;
+
+    // 正在加载缓存的userId:status 同一个缓存只加载一次
+    private final Set<String> loadingCaches = ConcurrentHashMap.newKeySet();
+
+    /**
+     * 异步从数据库加载用户某个状态的全部优惠券并写入缓存
+     * 分页查询在缓存不存在时直接查数据库 缓存由这里在后台补全
+     * @param userId 用户id
+     * @param status 优惠券状态
+     */
+    @Async("getAsyncExecutor")
+    @Override
+    public void asyncLoadCouponCache(Long userId, Integer status) {
+        String loadingKey = userId + ":" + status;
+        if (!loadingCaches.add(loadingKey)) {
+            return;
+        }
+        try {
+            List<Coupon> coupons = couponDao.findAllByUserIdAndStatus(userId, CouponStatus.of(status));
+            if (coupons.isEmpty()) {
+                redisService.saveEmptyCouponListToCache(userId, Collections.singletonList(status));
+            } else {
+                redisService.fillCouponCache(userId, coupons, status);
+            }
+        } catch (Exception ex) {
+            log.error("加载用户优惠券缓存失败:{},{}", userId, status, ex);
+        } finally {
+            loadingCaches.remove(loadingKey);
+        }
+    }
+}
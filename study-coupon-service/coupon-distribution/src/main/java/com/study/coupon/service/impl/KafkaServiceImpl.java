@@ -1,21 +1,34 @@
 package com.study.coupon.service.impl;
 
 import com.alibaba.fastjson.JSON;
+import com.study.coupon.cache.CouponNearCache;
 import com.study.coupon.constant.Constant;
 import com.study.coupon.constant.CouponStatus;
 import com.study.coupon.dao.CouponDao;
 import com.study.coupon.entity.Coupon;
 import com.study.coupon.service.IKafkaService;
+import com.study.coupon.service.IRedisService;
+import com.study.coupon.vo.CouponAcquireMessage;
 import com.study.coupon.vo.CouponKafkaMessage;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.collections4.CollectionUtils;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
 import org.apache.kafka.clients.consumer.ConsumerRecord;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DataAccessException;
+import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.kafka.annotation.KafkaListener;
+import org.springframework.kafka.core.KafkaTemplate;
+import org.springframework.kafka.support.Acknowledgment;
 import org.springframework.stereotype.Service;
 
-import java.util.List;
-import java.util.Optional;
+import javax.annotation.PostConstruct;
+import java.sql.Timestamp;
+import java.util.*;
+import java.util.stream.Collectors;
 
 /**
  * Kafka相关的服务接口实现
@@ -28,19 +41,95 @@ public class KafkaServiceImpl implements IKafkaService {
     @Autowired
     private CouponDao couponDao;
 
+    // 用户优惠券本地缓存
+    @Autowired
+    private CouponNearCache nearCache;
+
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+
+    // 新领取的优惠券落库后删除对应的未落库领取记录
+    @Autowired
+    private IRedisService redisService;
+
+    // 新领取优惠券每条INSERT语句包含的最大行数
+    @Value("${coupon.acquire.insert-batch-size:500}")
+    private int insertBatchSize;
+
+    // 新领取优惠券的多行插入语句 主键重复(消息重放)时不修改已有的行 其他错误照常抛出
+    private static final String INSERT_PREFIX = "INSERT INTO coupon (id, template_id, user_id, coupon_code, assign_time, status) VALUES ";
+
+    private static final String INSERT_ROW = "(?, ?, ?, ?, ?, ?)";
+
+    // 连接参数需要useAffectedRows=true 主键重复的行影响行数才为0
+    private static final String INSERT_SUFFIX = " ON DUPLICATE KEY UPDATE id = id";
+
+    // Kafka客户端 用于发送JSON格式的消息和死信
+    @Autowired
+    private KafkaTemplate<String, String> kafkaTemplate;
+
+    // Kafka客户端 用于发送二进制格式的状态变更消息
+    @Autowired
+    private KafkaTemplate<String, CouponKafkaMessage> couponKafkaMessageTemplate;
+
+    // 状态变更消息是否使用二进制格式发送 需要所有消费方都已升级后再开启
+    @Value("${coupon.kafka.binary-message:false}")
+    private boolean binaryMessage;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    // 每条UPDATE语句包含的最大id个数
+    @Value("${coupon.status-consumer.update-batch-size:1000}")
+    private int updateBatchSize;
+
+    // 批量消费的消息条数
+    private Counter consumedRecords;
+
+    // 批量消费每一批的处理耗时
+    private Timer batchTimer;
+
+    // 进入死信topic的优惠券id个数
+    private Counter deadLetterIds;
+
+    // 新领取的优惠券与已有的行id冲突 进入死信topic的条数
+    private Counter acquireDeadLetters;
+
+    @PostConstruct
+    public void init() {
+        consumedRecords = meterRegistry.counter("coupon.status.consumer.records");
+        deadLetterIds = meterRegistry.counter("coupon.status.consumer.dead.letter.ids");
+        acquireDeadLetters = meterRegistry.counter("coupon.acquire.consumer.dead.letter.ids");
+        batchTimer = Timer.builder("coupon.status.consumer.batch").publishPercentileHistogram().register(meterRegistry);
+    }
+
+    /**
+     * 发送优惠券状态变更消息
+     * @param message
+     */
+    @Override
+    public void sendCouponKafkaMessage(CouponKafkaMessage message) {
+        if (binaryMessage) {
+            couponKafkaMessageTemplate.send(Constant.TOPIC, message);
+        } else {
+            kafkaTemplate.send(Constant.TOPIC, JSON.toJSONString(message));
+        }
+    }
+
     /**
      * 消息优惠券Kafka消息
+     * 消息可能是二进制格式或JSON格式 由反序列化器统一解析
      * @param record
      */
     @Override
-    @KafkaListener(topics = {Constant.TOPIC},groupId = "study-coupon-1")
+    @KafkaListener(topics = {Constant.TOPIC},groupId = "study-coupon-1", containerFactory = "statusKafkaListenerContainerFactory", autoStartup = "#{!${coupon.status-consumer.batch-enabled:false}}")
     public void consumeCouponKafkaMessage(ConsumerRecord<?, ?> record) {
         Optional<?> kafkaMessage = Optional.ofNullable(record.value());
         if (kafkaMessage.isPresent()) {
             Object messange = kafkaMessage.get();
-            CouponKafkaMessage couponInfo = JSON.parseObject(messange.toString(), CouponKafkaMessage.class);
+            CouponKafkaMessage couponInfo = messange instanceof CouponKafkaMessage ? (CouponKafkaMessage) messange : JSON.parseObject(messange.toString(), CouponKafkaMessage.class);
 
-            log.info("在Kafka中获取优惠券信息:{}", messange.toString());
+            log.info("在Kafka中获取优惠券信息:{}", JSON.toJSONString(couponInfo));
 
             CouponStatus status = CouponStatus.of(couponInfo.getStatus());
             switch (status) {
@@ -56,6 +145,90 @@ public class KafkaServiceImpl implements IKafkaService {
         }
     }
 
+    /**
+     * 批量消费优惠券Kafka消息
+     * 1.同一张优惠券在一批中出现多次时已使用优先 其余以最后一条消息为准 见{@link #mergeStatus(List)}
+     * 2.按目标状态分组 每组分段执行UPDATE coupon SET status=? WHERE id IN (...)
+     * 3.更新行数与id个数不一致时 把不存在的id发送到死信topic
+     * 4.全部成功后手动提交位移 失败时整批重新消费(UPDATE是幂等的)
+     * 不加载优惠券实体 所以不会通知用户优惠券本地缓存失效 写缓存的一方已经通知过
+     * @param records
+     * @param ack
+     */
+    @Override
+    @KafkaListener(topics = {Constant.TOPIC}, groupId = "study-coupon-1", containerFactory = "statusBatchKafkaListenerContainerFactory", autoStartup = "${coupon.status-consumer.batch-enabled:false}")
+    public void consumeCouponKafkaMessages(List<ConsumerRecord<String, CouponKafkaMessage>> records, Acknowledgment ack) throws Exception {
+        Timer.Sample sample = Timer.start(meterRegistry);
+
+        Map<CouponStatus, List<Integer>> status2Ids = mergeStatus(records);
+        int couponCount = 0;
+        // 按USED EXPIRED的顺序执行 已使用先落库 之后的过期更新只会修改仍然可用的优惠券
+        for (Map.Entry<CouponStatus, List<Integer>> entry : status2Ids.entrySet()) {
+            updateStatus(entry.getKey(), entry.getValue());
+            couponCount += entry.getValue().size();
+        }
+
+        ack.acknowledge();
+        consumedRecords.increment(records.size());
+        sample.stop(batchTimer);
+        log.info("批量处理优惠券状态变更:消息{}条,优惠券{}张", records.size(), couponCount);
+    }
+
+    /**
+     * 合并一批状态变更消息 按目标状态分组
+     * 同一张优惠券既有已使用又有已过期时(例如使用后到期队列马上触发)以已使用为准
+     * 否则只按最后一条处理会先把仍是可用的优惠券标记为过期 已使用的状态丢失
+     * @param records
+     * @return key:目标状态(按枚举顺序) value:优惠券ids
+     */
+    static Map<CouponStatus, List<Integer>> mergeStatus(List<ConsumerRecord<String, CouponKafkaMessage>> records) {
+        // key:优惠券id value:目标状态
+        Map<Integer, CouponStatus> id2Status = new HashMap<>();
+        for (ConsumerRecord<String, CouponKafkaMessage> record : records) {
+            CouponKafkaMessage message = record.value();
+            // 无法解析的消息由反序列化器记录日志后跳过
+            if (null == message) {
+                continue;
+            }
+            CouponStatus status = CouponStatus.of(message.getStatus());
+            if (status == CouponStatus.USABLE || CollectionUtils.isEmpty(message.getIds())) {
+                continue;
+            }
+            message.getIds().forEach(id -> id2Status.merge(id, status, (old, cur) -> old == CouponStatus.USED ? old : cur));
+        }
+
+        Map<CouponStatus, List<Integer>> status2Ids = new EnumMap<>(CouponStatus.class);
+        id2Status.forEach((id, status) -> status2Ids.computeIfAbsent(status, s -> new ArrayList<>()).add(id));
+        return status2Ids;
+    }
+
+    /**
+     * 分段批量更新优惠券状态
+     * @param status
+     * @param ids
+     * @throws Exception
+     */
+    private void updateStatus(CouponStatus status, List<Integer> ids) throws Exception {
+        for (int from = 0; from < ids.size(); from += updateBatchSize) {
+            List<Integer> batch = ids.subList(from, Math.min(from + updateBatchSize, ids.size()));
+            // 已使用的优惠券不能再被标记为过期
+            int updated = status == CouponStatus.EXPIRED
+                    ? couponDao.updateStatusByIdsAndStatus(status.getCode(), CouponStatus.USABLE.getCode(), batch)
+                    : couponDao.updateStatusByIds(status.getCode(), batch);
+            meterRegistry.counter("coupon.status.consumer.updated", "status", status.name()).increment(updated);
+            if (updated != batch.size()) {
+                Set<Integer> missing = new HashSet<>(batch);
+                missing.removeAll(couponDao.findExistingIds(batch));
+                if (!missing.isEmpty()) {
+                    CouponKafkaMessage deadLetter = new CouponKafkaMessage(status.getCode(), new ArrayList<>(missing));
+                    log.error("没有找到正确的优惠券信息,发送到死信topic:{}", JSON.toJSONString(deadLetter));
+                    kafkaTemplate.send(Constant.TOPIC_DLT, JSON.toJSONString(deadLetter)).get();
+                    deadLetterIds.increment(missing.size());
+                }
+            }
+        }
+    }
+
     /**
      * 处理已使用的用户优惠券
      * @param kafkaMessage
@@ -86,7 +259,178 @@ public class KafkaServiceImpl implements IKafkaService {
             return;
         }
 
+        if (status == CouponStatus.EXPIRED) {
+            // 已使用的优惠券不能再被标记为过期
+            coupons = coupons.stream().filter(c -> c.getStatus() != CouponStatus.USED).collect(Collectors.toList());
+        }
         coupons.forEach(c -> c.setStatus(status));
         log.info("Kafka优惠券信息中优惠券操作数量:{}", couponDao.saveAll(coupons).size());
+        // 状态已落库 通知所有实例删除这些用户的本地缓存
+        nearCache.invalidate(coupons.stream().map(Coupon::getUserId).collect(Collectors.toSet()));
+    }
+
+    /**
+     * 批量消费新领取优惠券的Kafka消息
+     * 按id去重后分段做多行INSERT 消息重放时已插入的行保持不变
+     * 1.无法解析的消息直接发送到死信topic 不影响其他消息落库
+     * 2.一段INSERT失败时逐条插入 只有部分失败时把失败的消息发送到死信topic 全部失败时(多半是数据库不可用)整批重新消费
+     *   重新消费的次数有上限 超过后由错误处理器把整批消息发送到死信topic 见KafkaConfig
+     * 3.插入的行数少于本段条数时 与已有的行比对 不是同一张优惠券的(id冲突)发送到死信topic
+     * @param records
+     * @throws Exception
+     */
+    @Override
+    @KafkaListener(topics = {Constant.COUPON_ACQUIRE_TOPIC}, groupId = "study-coupon-acquire", containerFactory = "batchKafkaListenerContainerFactory")
+    public void consumeCouponAcquireMessages(List<ConsumerRecord<String, String>> records) throws Exception {
+        Map<Integer, CouponAcquireMessage> id2Message = new LinkedHashMap<>(records.size());
+        for (ConsumerRecord<String, String> record : records) {
+            CouponAcquireMessage message = parseAcquireMessage(record.value());
+            if (null == message) {
+                log.error("无法解析的新领取优惠券消息,发送到死信topic:{}-{},{}", record.partition(), record.offset(), record.value());
+                sendAcquireDeadLetter(record.value());
+                continue;
+            }
+            id2Message.put(message.getId(), message);
+        }
+        List<CouponAcquireMessage> messages = new ArrayList<>(id2Message.values());
+
+        int inserted = 0;
+        for (int from = 0; from < messages.size(); from += insertBatchSize) {
+            inserted += insertAcquiredChunk(messages.subList(from, Math.min(from + insertBatchSize, messages.size())));
+        }
+        log.info("批量插入新领取的优惠券:消息{}条,插入{}条", records.size(), inserted);
+    }
+
+    /**
+     * 解析新领取优惠券消息
+     * @param value
+     * @return 无法解析或缺少必要字段时返回null
+     */
+    private static CouponAcquireMessage parseAcquireMessage(String value) {
+        if (null == value) {
+            return null;
+        }
+        try {
+            CouponAcquireMessage message = JSON.parseObject(value, CouponAcquireMessage.class);
+            if (null == message || null == message.getId() || null == message.getUserId() || null == message.getAssignTime()) {
+                return null;
+            }
+            return message;
+        } catch (RuntimeException ex) {
+            return null;
+        }
+    }
+
+    /**
+     * 插入一段新领取的优惠券
+     * @param batch
+     * @return 实际插入的行数
+     * @throws Exception
+     */
+    private int insertAcquiredChunk(List<CouponAcquireMessage> batch) throws Exception {
+        List<CouponAcquireMessage> written = batch;
+        int inserted;
+        try {
+            inserted = insertAcquiredCoupons(batch);
+        } catch (DataAccessException ex) {
+            if (batch.size() == 1) {
+                throw ex;
+            }
+            log.warn("批量插入新领取的优惠券失败,逐条插入:{}", ex.getMessage());
+            written = new ArrayList<>(batch.size());
+            List<CouponAcquireMessage> failed = new ArrayList<>();
+            inserted = 0;
+            for (CouponAcquireMessage m : batch) {
+                try {
+                    inserted += insertAcquiredCoupons(Collections.singletonList(m));
+                    written.add(m);
+                } catch (DataAccessException rowEx) {
+                    log.error("新领取的优惠券插入失败:{}", JSON.toJSONString(m), rowEx);
+                    failed.add(m);
+                }
+            }
+            if (written.isEmpty()) {
+                // 全部失败 不是个别消息的问题 交给错误处理器重新消费
+                throw ex;
+            }
+            for (CouponAcquireMessage m : failed) {
+                sendAcquireDeadLetter(JSON.toJSONString(m));
+            }
+        }
+        if (inserted != written.size()) {
+            sendConflictsToDeadLetter(written);
+        }
+        removePendingClaims(written);
+        return inserted;
+    }
+
+    /**
+     * 删除已落库的优惠券对应的未落库领取记录 删除失败时不影响消费
+     * @param written
+     */
+    private void removePendingClaims(List<CouponAcquireMessage> written) {
+        try {
+            redisService.removePendingClaims(written.stream().collect(Collectors.groupingBy(
+                    CouponAcquireMessage::getUserId, Collectors.mapping(CouponAcquireMessage::getId, Collectors.toList()))));
+        } catch (RuntimeException ex) {
+            log.warn("删除未落库的领取记录失败,重建领取计数时按id排除:{}", ex.getMessage());
+        }
+    }
+
+    /**
+     * 多行插入新领取的优惠券
+     * @param batch
+     * @return 实际插入的行数
+     */
+    private int insertAcquiredCoupons(List<CouponAcquireMessage> batch) {
+        StringBuilder sql = new StringBuilder(INSERT_PREFIX.length() + batch.size() * (INSERT_ROW.length() + 1));
+        sql.append(INSERT_PREFIX);
+        Object[] args = new Object[batch.size() * 6];
+        int i = 0;
+        for (CouponAcquireMessage m : batch) {
+            if (i > 0) {
+                sql.append(',');
+            }
+            sql.append(INSERT_ROW);
+            args[i++] = m.getId();
+            args[i++] = m.getTemplateId();
+            args[i++] = m.getUserId();
+            args[i++] = m.getCouponCode();
+            args[i++] = new Timestamp(m.getAssignTime());
+            args[i++] = m.getStatus();
+        }
+        sql.append(INSERT_SUFFIX);
+        return jdbcTemplate.update(sql.toString(), args);
+    }
+
+    /**
+     * 找出与已有的行id相同但不是同一张优惠券的消息 发送到死信topic
+     * 用户和优惠券码都相同的是消息重放 不需要处理
+     * @param batch
+     * @throws Exception
+     */
+    private void sendConflictsToDeadLetter(List<CouponAcquireMessage> batch) throws Exception {
+        Map<Integer, Coupon> existing = couponDao.findAllById(
+                batch.stream().map(CouponAcquireMessage::getId).collect(Collectors.toList())
+        ).stream().collect(Collectors.toMap(Coupon::getId, c -> c));
+        for (CouponAcquireMessage m : batch) {
+            Coupon coupon = existing.get(m.getId());
+            if (null != coupon && Objects.equals(coupon.getUserId(), m.getUserId())
+                    && Objects.equals(coupon.getCouponCode(), m.getCouponCode())) {
+                continue;
+            }
+            log.error("新领取的优惠券没有正确落库,发送到死信topic:{},{}", JSON.toJSONString(m), null == coupon ? null : coupon.getUserId());
+            sendAcquireDeadLetter(JSON.toJSONString(m));
+        }
+    }
+
+    /**
+     * 把新领取优惠券消息发送到死信topic 等待Kafka确认
+     * @param value 原始消息
+     * @throws Exception
+     */
+    private void sendAcquireDeadLetter(String value) throws Exception {
+        kafkaTemplate.send(Constant.COUPON_ACQUIRE_TOPIC_DLT, value).get();
+        acquireDeadLetters.increment();
     }
 }
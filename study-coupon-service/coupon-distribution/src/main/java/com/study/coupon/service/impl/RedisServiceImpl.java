@@ -1,21 +1,32 @@
 package com.study.coupon.service.impl;
 
 import com.alibaba.fastjson.JSON;
+import com.study.coupon.cache.CouponNearCache;
+import com.study.coupon.cache.TemplateReplica;
 import com.study.coupon.constant.Constant;
 import com.study.coupon.constant.CouponStatus;
+import com.study.coupon.dao.CouponDao;
 import com.study.coupon.entity.Coupon;
 import com.study.coupon.exception.CouponException;
+import com.study.coupon.serialization.CouponCacheCodec;
 import com.study.coupon.service.IRedisService;
+import com.study.coupon.vo.CouponClassify;
+import com.study.coupon.vo.CouponTemplateSDK;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.collections4.CollectionUtils;
 import org.apache.commons.lang3.RandomUtils;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ClassPathResource;
 import org.springframework.dao.DataAccessException;
 import org.springframework.data.redis.core.RedisOperations;
+import org.springframework.data.redis.core.RedisTemplate;
 import org.springframework.data.redis.core.SessionCallback;
 import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
 import org.springframework.stereotype.Service;
 
+import java.nio.charset.StandardCharsets;
 import java.util.*;
 import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
@@ -27,9 +38,81 @@ import java.util.stream.Collectors;
 @Service
 public class RedisServiceImpl implements IRedisService {
 
+    // 优惠券状态转移脚本
+    private static final DefaultRedisScript<Long> TRANSITION_SCRIPT = new DefaultRedisScript<>();
+
+    // 领取优惠券脚本
+    private static final DefaultRedisScript<String> CLAIM_SCRIPT = new DefaultRedisScript<>();
+
+    // 撤销领取脚本
+    private static final DefaultRedisScript<Long> CLAIM_RELEASE_SCRIPT = new DefaultRedisScript<>();
+
+    // 初始化领取计数脚本
+    private static final DefaultRedisScript<Long> CLAIM_INIT_SCRIPT = new DefaultRedisScript<>();
+
+    // 写入优惠券缓存和id索引脚本
+    private static final DefaultRedisScript<Long> CACHE_PUT_SCRIPT = new DefaultRedisScript<>();
+
+    // 分页读取优惠券缓存脚本
+    @SuppressWarnings("rawtypes")
+    private static final DefaultRedisScript<List> CACHE_PAGE_SCRIPT = new DefaultRedisScript<>();
+
+    static {
+        TRANSITION_SCRIPT.setLocation(new ClassPathResource("lua/coupon_cache_transition.lua"));
+        TRANSITION_SCRIPT.setResultType(Long.class);
+        CLAIM_SCRIPT.setLocation(new ClassPathResource("lua/coupon_claim.lua"));
+        CLAIM_SCRIPT.setResultType(String.class);
+        CLAIM_RELEASE_SCRIPT.setLocation(new ClassPathResource("lua/coupon_claim_release.lua"));
+        CLAIM_RELEASE_SCRIPT.setResultType(Long.class);
+        CLAIM_INIT_SCRIPT.setLocation(new ClassPathResource("lua/coupon_claim_init.lua"));
+        CLAIM_INIT_SCRIPT.setResultType(Long.class);
+        CACHE_PUT_SCRIPT.setLocation(new ClassPathResource("lua/coupon_cache_put.lua"));
+        CACHE_PUT_SCRIPT.setResultType(Long.class);
+        CACHE_PAGE_SCRIPT.setLocation(new ClassPathResource("lua/coupon_cache_page.lua"));
+        CACHE_PAGE_SCRIPT.setResultType(List.class);
+    }
+
+    // 优惠券id索引(zset)key后缀 与对应的优惠券缓存同步增删
+    private static final String COUPON_INDEX_SUFFIX = "_ids";
+
+    // 领取计数中表示已从数据库初始化的field
+    private static final String CLAIM_LOADED_FIELD = "-1";
+
+    // 领取脚本返回: 达到领取上限
+    private static final String CLAIM_LIMITED = "-1";
+
+    // 领取脚本返回: 领取计数未初始化
+    private static final String CLAIM_UNINITIALIZED = "-2";
+
+    // 领取脚本返回: 优惠券码已领完
+    private static final String CLAIM_SOLD_OUT = "-3";
+
+    // 未落库领取记录的过期时间(小时) 每次写入时重置 需要长于Kafka积压和死信处理的时间
+    private static final long PENDING_CLAIM_TTL_HOURS = 24;
+
     @Autowired
     private StringRedisTemplate redisTemplate;
 
+    // 用户优惠券缓存 hash value为二进制编码的优惠券
+    @Autowired
+    private RedisTemplate<String, byte[]> couponCacheRedisTemplate;
+
+    // 优惠券模板本地副本 读取缓存时用于补全模板信息
+    @Autowired
+    private TemplateReplica templateReplica;
+
+    // 用户优惠券本地缓存
+    @Autowired
+    private CouponNearCache nearCache;
+
+    // 领取计数不存在时从数据库重建
+    @Autowired
+    private CouponDao couponDao;
+
+    // 开启write-behind时 重建领取计数要计入还没有落库的领取
+    @Value("${coupon.acquire.write-behind:false}")
+    private boolean writeBehind;
+
     /**
      * 根据userId和status找到缓存的优惠券列表数据
      * @param userId
@@ -39,21 +122,67 @@ public class RedisServiceImpl implements IRedisService {
     @Override
     public List<Coupon> getCachedCoupons(Long userId, Integer status) {
         log.info("从缓存中得到优惠券数据:{},{}", userId, status);
+        List<Coupon> nearCached = nearCache.get(userId, status);
+        if (null != nearCached) {
+            return nearCached;
+        }
+        long stamp = nearCache.stamp();
         String redisKey = status2RedisKey(status, userId);
 
-        // redisTemplate.opsForHash().values(redisKey).stream().map(o -> Objects.toString(o,null)).collect(Collectors.toList());
-        // 1.通过redisTemplate.opsForHash()获取Redis中哈希数据结构的API
-        // 2.使用values(redisKey)方法获取指定键（redisKey）下的所有值
-        // 3.将获取到的值转换为Stream流
-        // 4.使用map操作将每个值转换为字符串表示，如果值为null，则返回null
-        // 5.使用collect操作将转换后的字符串收集到一个List中
-        List<String> couponStrs = redisTemplate.opsForHash().values(redisKey).stream().map(o -> Objects.toString(o,null)).collect(Collectors.toList());
+        List<byte[]> couponBytes = couponCacheRedisTemplate.<String, byte[]>opsForHash().values(redisKey);
 
-        if (CollectionUtils.isEmpty(couponStrs)) {
+        if (CollectionUtils.isEmpty(couponBytes)) {
             saveEmptyCouponListToCache(userId, Collections.singletonList(status));
             return Collections.emptyList();
         }
-        return couponStrs.stream().map(cs -> JSON.parseObject(cs, Coupon.class)).collect(Collectors.toList());
+        List<Coupon> coupons = couponBytes.stream().map(CouponCacheCodec::decode).collect(Collectors.toList());
+        fillTemplateSDK(coupons);
+        // 可用优惠券按过期时间排序 分类时可以二分找到已过期的部分
+        if (CouponStatus.of(status) == CouponStatus.USABLE) {
+            CouponClassify.sortByExpireAt(coupons);
+        }
+        nearCache.put(userId, status, coupons, stamp);
+        return coupons;
+    }
+
+    /**
+     * 按id倒序分页读取缓存的优惠券
+     * 通过Lua脚本在优惠券id索引(zset)上ZREVRANGEBYSCORE LIMIT找到当前页的id 再HMGET 只读取和解码当前页的优惠券
+     * @param userId
+     * @param status
+     * @param beforeId 只返回id小于该值的优惠券
+     * @param limit 最多返回的条数
+     * @return 缓存不存在时返回null
+     */
+    @Override
+    @SuppressWarnings("unchecked")
+    public List<Coupon> getCachedCouponPage(Long userId, Integer status, Integer beforeId, int limit) {
+        String redisKey = status2RedisKey(status, userId);
+        List<byte[]> couponBytes = couponCacheRedisTemplate.execute(CACHE_PAGE_SCRIPT, Arrays.asList(redisKey, redisKey + COUPON_INDEX_SUFFIX),
+                toBytes(beforeId - 1L), toBytes(limit));
+        if (null == couponBytes) {
+            return null;
+        }
+        List<Coupon> coupons = couponBytes.stream().map(CouponCacheCodec::decode).collect(Collectors.toList());
+        fillTemplateSDK(coupons);
+        return coupons;
+    }
+
+    /**
+     * 把从数据库加载的优惠券完整写入缓存 缓存已存在时不写入
+     * 判断和写入在同一个Lua脚本中完成 不会覆盖同时由addCouponToCache写入的数据
+     * @param userId
+     * @param coupons
+     * @param status
+     */
+    @Override
+    public void fillCouponCache(Long userId, List<Coupon> coupons, Integer status) {
+        String redisKey = status2RedisKey(status, userId);
+        Long written = putCouponsToCache(redisKey, coupons, CouponStatus.of(status), true);
+        if (null == written || written < 0) {
+            return;
+        }
+        log.info("从数据库加载{}张优惠券到缓存:{},{}", written, userId, redisKey);
     }
 
     /**
@@ -66,9 +195,9 @@ public class RedisServiceImpl implements IRedisService {
     public void saveEmptyCouponListToCache(Long userId, List<Integer> status) {
         log.info("保存用户空的优惠券列表到缓存中:{},状态:{}", userId, JSON.toJSONString(status));
 
-        // key:coupon_id value:序列化的Coupon
-        Map<String, String> invaildCouponMap = new HashMap<>();
-        invaildCouponMap.put("-1", JSON.toJSONString(Coupon.invalidCoupon()));
+        // key:coupon_id value:编码后的Coupon
+        Map<String, byte[]> invaildCouponMap = new HashMap<>();
+        invaildCouponMap.put("-1", CouponCacheCodec.encode(Coupon.invalidCoupon(), null));
 
         // 用户优惠券缓存信息
         // K:status -> redisKey V:{coupon_id:序列化的Coupon}
@@ -85,7 +214,7 @@ public class RedisServiceImpl implements IRedisService {
             }
         };
 
-        log.info("Pipeline:{}", JSON.toJSONString(redisTemplate.executePipelined(sessionCallback)));
+        log.info("Pipeline:{}", JSON.toJSONString(couponCacheRedisTemplate.executePipelined(sessionCallback)));
     }
 
     /**
@@ -130,9 +259,271 @@ public class RedisServiceImpl implements IRedisService {
                 result = addCouponToCacheForExpired(userId, coupons);
                 break;
         }
+        // 通知所有实例删除该用户的本地缓存
+        nearCache.invalidate(userId);
+        return result;
+    }
+
+    /**
+     * 将数据库中已过期的优惠券从可用缓存转移到已过期缓存
+     * 不在可用缓存中的优惠券直接忽略 已过期缓存不存在时只从可用缓存中删除
+     * @param userId
+     * @param coupons
+     * @return 实际转移的优惠券个数
+     */
+    @Override
+    public Integer expireCachedCoupons(Long userId, List<Coupon> coupons) {
+        Integer result;
+        try {
+            result = transferUsableCoupons(userId, coupons, CouponStatus.EXPIRED, false);
+        } catch (CouponException ex) {
+            // 不严格校验时脚本不会返回失败
+            result = 0;
+        }
+        nearCache.invalidate(userId);
+        return result;
+    }
+
+    /**
+     * 原子地校验领取上限并领取一个优惠券码
+     * 一次Redis调用完成: 校验用户持有的该模板可用优惠券数 弹出优惠券码 领取计数加一
+     * 领取计数不存在时从数据库重建后重试一次
+     * @param userId
+     * @param template 领取的优惠券模板
+     * @return 优惠券码
+     * @throws CouponException 达到领取上限或优惠券码已领完
+     */
+    @Override
+    public String claimCouponCode(Long userId, CouponTemplateSDK template) throws CouponException {
+        Integer templateId = template.getId();
+        // 新领取的优惠券过期时领取计数也要失效
+        long expireAt = CouponClassify.expireTime(template.getRule().getExpiration(), new Date());
+        String result = executeClaim(userId, templateId, template.getRule().getLimitation(), claimCountsTtl(expireAt));
+        if (CLAIM_UNINITIALIZED.equals(result)) {
+            loadClaimCounts(userId);
+            result = executeClaim(userId, templateId, template.getRule().getLimitation(), claimCountsTtl(expireAt));
+        }
+
+        if (CLAIM_LIMITED.equals(result)) {
+            log.error("优惠券领取上限:{},{}", userId, templateId);
+            throw new CouponException("优惠券领取上限");
+        }
+        if (CLAIM_SOLD_OUT.equals(result) || CLAIM_UNINITIALIZED.equals(result) || null == result) {
+            log.error("优惠券已领取完毕:{}", templateId);
+            throw new CouponException("优惠券已领取完毕");
+        }
+        log.info("领取优惠券编码:{},{},{}", userId, templateId, result);
+        return result;
+    }
+
+    /**
+     * 用户持有的每个模板未过期的可用优惠券数 不存在时从数据库重建
+     * @param userId
+     * @return key:模板id value:未过期的可用优惠券数 没有可用优惠券的模板不在其中
+     */
+    @Override
+    public Map<Integer, Integer> getClaimCounts(Long userId) {
+        String claimKey = String.format("%s%s", Constant.RedisPrefix.USER_COUPON_CLAIM, userId);
+        Map<String, String> counts = redisTemplate.<String, String>opsForHash().entries(claimKey);
+        if (!counts.containsKey(CLAIM_LOADED_FIELD)) {
+            return loadClaimCounts(userId);
+        }
+
+        Map<Integer, Integer> result = new HashMap<>(counts.size());
+        counts.forEach((templateId, count) -> {
+            if (!CLAIM_LOADED_FIELD.equals(templateId)) {
+                result.put(Integer.valueOf(templateId), Integer.valueOf(count));
+            }
+        });
+        return result;
+    }
+
+    /**
+     * 用户已达领取上限的模板 不存在时从数据库重建
+     * @param userId
+     * @return 按模板id置位的位图
+     */
+    @Override
+    public BitSet getFullTemplates(Long userId) {
+        byte[] bitmap = couponCacheRedisTemplate.opsForValue().get(fullTemplatesKey(userId));
+        if (null == bitmap || bitmap.length == 0 || (bitmap[0] & 0x80) == 0) {
+            loadClaimCounts(userId);
+            bitmap = couponCacheRedisTemplate.opsForValue().get(fullTemplatesKey(userId));
+        }
+        BitSet full = redisBitmapToBitSet(bitmap);
+        // 第0位是初始化标记
+        full.clear(0);
+        return full;
+    }
+
+    /**
+     * 从数据库统计用户每个模板未过期的可用优惠券数并初始化领取计数 同时重建已达领取上限的模板位图
+     * 过期扫描默认关闭 数据库中状态为可用的优惠券可能已经过期 这些优惠券不占用领取上限
+     * 领取计数在其中最早过期的优惠券过期时失效 因此计数中不会包含已过期的优惠券
+     * 开启write-behind时还要计入已领取但还没有落库的优惠券 否则Kafka中积压的领取会被漏算
+     * 先读未落库记录 再排除其中已落库的 最后查询数据库 中途落库的优惠券最多被重复计算 不会被漏算
+     * @param userId
+     * @return
+     */
+    private Map<Integer, Integer> loadClaimCounts(Long userId) {
+        List<Object[]> rows = new ArrayList<>();
+        if (writeBehind) {
+            rows.addAll(findPendingClaims(userId));
+        }
+        rows.addAll(couponDao.findTemplateIdAndAssignTimeByUserIdAndStatus(userId, CouponStatus.USABLE.getCode()));
+        Set<Integer> templateIds = rows.stream().map(row -> ((Number) row[0]).intValue()).collect(Collectors.toSet());
+        Map<Integer, CouponTemplateSDK> id2Template = templateIds.isEmpty() ? Collections.emptyMap() : templateReplica.currentByIds(templateIds);
+
+        long curTime = System.currentTimeMillis();
+        long earliestExpireAt = Long.MAX_VALUE;
+        Map<Integer, Integer> result = new HashMap<>();
+        for (Object[] row : rows) {
+            Integer templateId = ((Number) row[0]).intValue();
+            CouponTemplateSDK template = id2Template.get(templateId);
+            if (null != template && null != row[1]) {
+                long expireAt = CouponClassify.expireTime(template.getRule().getExpiration(), (Date) row[1]);
+                if (expireAt <= curTime) {
+                    continue;
+                }
+                earliestExpireAt = Math.min(earliestExpireAt, expireAt);
+            }
+            // 找不到模板的优惠券无法判断是否过期 按未过期计算
+            result.merge(templateId, 1, Integer::sum);
+        }
+
+        String claimKey = String.format("%s%s", Constant.RedisPrefix.USER_COUPON_CLAIM, userId);
+        List<String> args = new ArrayList<>(result.size() * 3 + 1);
+        args.add(claimCountsTtl(earliestExpireAt).toString());
+        result.forEach((templateId, count) -> {
+            CouponTemplateSDK template = id2Template.get(templateId);
+            args.add(templateId.toString());
+            args.add(count.toString());
+            args.add(null == template ? "0" : template.getRule().getLimitation().toString());
+        });
+        Long loaded = redisTemplate.execute(CLAIM_INIT_SCRIPT, Arrays.asList(claimKey, fullTemplatesKey(userId)), args.toArray());
+        log.info("从数据库初始化用户领取计数:{},{},{}", userId, result, loaded);
         return result;
     }
 
+    /**
+     * 已领取但还没有落库的write-behind优惠券 已经落库的由数据库查询统计
+     * @param userId
+     * @return [template_id, assign_time] 与数据库查询的格式相同
+     */
+    private List<Object[]> findPendingClaims(Long userId) {
+        String pendingKey = String.format("%s%s", Constant.RedisPrefix.USER_COUPON_CLAIM_PENDING, userId);
+        Map<String, String> pending = redisTemplate.<String, String>opsForHash().entries(pendingKey);
+        if (pending.isEmpty()) {
+            return Collections.emptyList();
+        }
+        Map<Integer, String> id2Claim = new HashMap<>(pending.size());
+        pending.forEach((id, claim) -> id2Claim.put(Integer.valueOf(id), claim));
+        // 已落库的不论状态都不再从这里计算 可用的由数据库查询统计
+        List<Integer> persisted = couponDao.findExistingIds(id2Claim.keySet());
+        persisted.forEach(id2Claim::remove);
+        if (!persisted.isEmpty()) {
+            redisTemplate.opsForHash().delete(pendingKey, persisted.stream().map(String::valueOf).toArray());
+        }
+
+        List<Object[]> rows = new ArrayList<>(id2Claim.size());
+        id2Claim.values().forEach(claim -> {
+            String[] parts = claim.split(":");
+            rows.add(new Object[]{Integer.valueOf(parts[0]), new Date(Long.parseLong(parts[1]))});
+        });
+        return rows;
+    }
+
+    /**
+     * 记录一张已领取但还没有落库的write-behind优惠券 落库后由消费者删除
+     * @param coupon 已分配id的优惠券
+     */
+    @Override
+    @SuppressWarnings("all")
+    public void addPendingClaim(Coupon coupon) {
+        String pendingKey = String.format("%s%s", Constant.RedisPrefix.USER_COUPON_CLAIM_PENDING, coupon.getUserId());
+        String claim = coupon.getTemplateId() + ":" + coupon.getAssignTime().getTime();
+        redisTemplate.executePipelined(new SessionCallback<Object>() {
+            @Override
+            public Object execute(RedisOperations operations) throws DataAccessException {
+                operations.opsForHash().put(pendingKey, coupon.getId().toString(), claim);
+                operations.expire(pendingKey, PENDING_CLAIM_TTL_HOURS, TimeUnit.HOURS);
+                return null;
+            }
+        });
+    }
+
+    /**
+     * 删除已落库的write-behind优惠券记录
+     * 删除失败时记录只会多留一段时间 重建领取计数时会按id排除已落库的
+     * @param userId2CouponIds key:用户id value:优惠券id
+     */
+    @Override
+    @SuppressWarnings("all")
+    public void removePendingClaims(Map<Long, List<Integer>> userId2CouponIds) {
+        if (userId2CouponIds.isEmpty()) {
+            return;
+        }
+        redisTemplate.executePipelined(new SessionCallback<Object>() {
+            @Override
+            public Object execute(RedisOperations operations) throws DataAccessException {
+                userId2CouponIds.forEach((userId, ids) -> operations.opsForHash().delete(
+                        String.format("%s%s", Constant.RedisPrefix.USER_COUPON_CLAIM_PENDING, userId),
+                        ids.stream().map(String::valueOf).toArray()));
+                return null;
+            }
+        });
+    }
+
+    /**
+     * 领取计数的过期时间 不晚于计数中最早过期的优惠券
+     * @param earliestExpireAt 最早过期的优惠券的过期时间
+     * @return 秒
+     */
+    private Long claimCountsTtl(long earliestExpireAt) {
+        long untilExpire = (earliestExpireAt - System.currentTimeMillis()) / 1000;
+        return Math.max(1L, Math.min(getRandomExpirationTime(1, 2), untilExpire));
+    }
+
+    private static String fullTemplatesKey(Long userId) {
+        return String.format("%s%s", Constant.RedisPrefix.USER_COUPON_FULL_TEMPLATES, userId);
+    }
+
+    /**
+     * Redis位图的第n位是第n/8个字节的从高到低第n%8位 BitSet是从低到高
+     * @param bitmap
+     * @return
+     */
+    private static BitSet redisBitmapToBitSet(byte[] bitmap) {
+        if (null == bitmap) {
+            return new BitSet();
+        }
+        byte[] reversed = new byte[bitmap.length];
+        for (int i = 0; i < bitmap.length; ++i) {
+            reversed[i] = (byte) (Integer.reverse(bitmap[i] & 0xFF) >>> 24);
+        }
+        return BitSet.valueOf(reversed);
+    }
+
+    private String executeClaim(Long userId, Integer templateId, Integer limitation, Long ttl) {
+        String claimKey = String.format("%s%s", Constant.RedisPrefix.USER_COUPON_CLAIM, userId);
+        String codeKey = String.format("%s%s", Constant.RedisPrefix.COUPON_TEMPLATE, templateId.toString());
+        return redisTemplate.execute(CLAIM_SCRIPT, Arrays.asList(claimKey, codeKey, fullTemplatesKey(userId)), templateId.toString(), limitation.toString(), ttl.toString());
+    }
+
+    /**
+     * 撤销一次领取 优惠券码放回缓存并减少领取计数
+     * @param userId
+     * @param templateId
+     * @param couponCode
+     */
+    @Override
+    public void releaseClaimedCouponCode(Long userId, Integer templateId, String couponCode) {
+        String claimKey = String.format("%s%s", Constant.RedisPrefix.USER_COUPON_CLAIM, userId);
+        String codeKey = String.format("%s%s", Constant.RedisPrefix.COUPON_TEMPLATE, templateId.toString());
+        redisTemplate.execute(CLAIM_RELEASE_SCRIPT, Arrays.asList(claimKey, codeKey, fullTemplatesKey(userId)), templateId.toString(), couponCode);
+        log.warn("撤销优惠券领取:{},{},{}", userId, templateId, couponCode);
+    }
+
     /**
      * 根据status获取到对应的Redis Key
      * @param status
@@ -157,6 +548,23 @@ public class RedisServiceImpl implements IRedisService {
         return redisKey;
     }
 
+    /**
+     * 缓存中只保存了模板id 从本地模板副本中补全模板信息并计算过期时间
+     * @param coupons
+     */
+    private void fillTemplateSDK(List<Coupon> coupons) {
+        Set<Integer> templateIds = coupons.stream().filter(c -> null == c.getTemplateSDK() && null != c.getTemplateId()).map(Coupon::getTemplateId).collect(Collectors.toSet());
+        if (!templateIds.isEmpty()) {
+            Map<Integer, CouponTemplateSDK> id2TemplateSDK = templateReplica.findByIds(templateIds);
+            coupons.forEach(c -> {
+                if (null == c.getTemplateSDK() && null != c.getTemplateId()) {
+                    c.setTemplateSDK(id2TemplateSDK.get(c.getTemplateId()));
+                }
+            });
+        }
+        coupons.forEach(CouponClassify::fillExpireAt);
+    }
+
     /**
      * 获取一个随机的过期时间
      * @param min
@@ -178,17 +586,39 @@ public class RedisServiceImpl implements IRedisService {
         // 只会影响一个Cache:USER_COUPON_USABLE
         log.debug("添加新增加的优惠券到内存中");
 
-        Map<String, String> needCacheObject = new HashMap<>();
-        coupons.forEach(c -> needCacheObject.put(c.getId().toString(), JSON.toJSONString(c)));
-
         String redisKey = status2RedisKey(CouponStatus.USABLE.getCode(), userId);
-        redisTemplate.opsForHash().putAll(redisKey, needCacheObject);
-        log.info("添加{}优惠券到内存:{},{}", needCacheObject.size(), userId, redisKey);
+        Long written = putCouponsToCache(redisKey, coupons, CouponStatus.USABLE, false);
+        log.info("添加{}优惠券到内存:{},{}", written, userId, redisKey);
+        return null == written ? 0 : written.intValue();
+    }
 
-        // 设置过期时间 防止缓存雪崩
-        redisTemplate.expire(redisKey, getRandomExpirationTime(1, 2), TimeUnit.SECONDS);
+    /**
+     * 通过Lua脚本写入优惠券缓存和id索引 并设置随机的过期时间(防止缓存雪崩)
+     * @param redisKey
+     * @param coupons
+     * @param status 编码时写入的状态
+     * @param onlyIfAbsent 缓存已存在时是否不写入
+     * @return 写入的优惠券个数 缓存已存在且不写入时返回-1
+     */
+    private Long putCouponsToCache(String redisKey, List<Coupon> coupons, CouponStatus status, boolean onlyIfAbsent) {
+        Object[] args = new Object[coupons.size() * 2 + 2];
+        int i = 0;
+        args[i++] = toBytes(onlyIfAbsent ? 1 : 0);
+        args[i++] = toBytes(getRandomExpirationTime(1, 2));
+        for (Coupon c : coupons) {
+            args[i++] = toBytes(c.getId());
+            args[i++] = CouponCacheCodec.encode(c, status);
+        }
+        return couponCacheRedisTemplate.execute(CACHE_PUT_SCRIPT, Arrays.asList(redisKey, redisKey + COUPON_INDEX_SUFFIX), args);
+    }
 
-        return needCacheObject.size();
+    /**
+     * 优惠券缓存的脚本参数都以原始字节传递(缓存模板没有value序列化器)
+     * @param value
+     * @return
+     */
+    private static byte[] toBytes(Object value) {
+        return String.valueOf(value).getBytes(StandardCharsets.UTF_8);
     }
 
     /**
@@ -197,52 +627,10 @@ public class RedisServiceImpl implements IRedisService {
      * @param coupons
      * @return
      */
-    @SuppressWarnings("all")
     private Integer addCouponToCacheForUsed(Long userId, List<Coupon> coupons) throws CouponException {
         // 如果status是USED 代表用户操作时使用当前的优惠券 影响到USABLE和USED的Cache
         log.debug("添加已使用的优惠券到内存中");
-
-        Map<String, String> needCacheForUsed = new HashMap<>();
-
-        String redisKeyForUsable = status2RedisKey(CouponStatus.USABLE.getCode(), userId);
-        String redisKeyForUsed = status2RedisKey(CouponStatus.USED.getCode(), userId);
-
-        // 获取当前用户可用的优惠券
-        List<Coupon> curUsableCoupons = getCachedCoupons(userId, CouponStatus.USABLE.getCode());
-        // 当前可用的优惠券个数一定大于1个
-        assert curUsableCoupons.size() > coupons.size();
-
-        coupons.forEach(c -> needCacheForUsed.put(c.getId().toString(), JSON.toJSONString(c)));
-
-        // 校验当前的优惠券参数是否与Cache中的匹配
-        // curUsableIds当前优惠券id列表 paramIds缓存中的优惠券id列表
-        List<Integer> curUsableIds = curUsableCoupons.stream().map(Coupon::getId).collect(Collectors.toList());
-        List<Integer> paramIds = coupons.stream().map(Coupon::getId).collect(Collectors.toList());
-
-        // CollectionUtils.isSubCollection(a, b) 判断a是不是b的子集
-        if (!CollectionUtils.isSubCollection(paramIds, curUsableIds)) {
-            log.error("缓存中没有与当前优惠券参数相同的:{},{},{}", userId, JSON.toJSONString(curUsableIds), JSON.toJSONString(paramIds));
-            throw new CouponException("缓存中没有与当前优惠券参数相同的");
-        }
-
-        List<String> needCleanKey = paramIds.stream().map(i -> i.toString()).collect(Collectors.toList());
-        SessionCallback<Objects> sessionCallback = new SessionCallback<Objects>() {
-            @Override
-            public Objects execute(RedisOperations operations) throws DataAccessException {
-                // 1.已使用的优惠券Cache缓存添加
-                operations.opsForHash().putAll(redisKeyForUsed, needCacheForUsed);
-                // 2.可用的优惠券Cache缓存清理
-                operations.opsForHash().delete(redisKeyForUsable, needCleanKey.toArray());
-                // 3.重置redisKeyForUsable和redisKeyForUsed的过期时间
-                operations.expire(redisKeyForUsable, getRandomExpirationTime(1, 2), TimeUnit.SECONDS);
-                operations.expire(redisKeyForUsed, getRandomExpirationTime(1, 2), TimeUnit.SECONDS);
-
-                return null;
-            }
-        };
-        log.info("Pipeline:{}", JSON.toJSONString(redisTemplate.executePipelined(sessionCallback)));
-
-        return coupons.size();
+        return transferUsableCoupons(userId, coupons, CouponStatus.USED, true);
     }
 
     /**
@@ -251,50 +639,46 @@ public class RedisServiceImpl implements IRedisService {
      * @param coupons
      * @return
      */
-    @SuppressWarnings("all")
     private Integer addCouponToCacheForExpired(Long userId, List<Coupon> coupons) throws CouponException {
-        // 如果status是EXPIRED 代表是已有的优惠券过期了 影响到两个Cache
-        log.debug("添加已使用的优惠券到内存中");
-
-        // 最终需要保存的Cache
-        Map<String, String> needCacheForExpired = new HashMap<>(coupons.size());
+        // 如果status是EXPIRED 代表是已有的优惠券过期了 影响到USABLE和EXPIRED的Cache
+        log.debug("添加已过期的优惠券到内存中");
+        return transferUsableCoupons(userId, coupons, CouponStatus.EXPIRED, true);
+    }
 
+    /**
+     * 通过Lua脚本将优惠券从可用缓存转移到目标状态的缓存
+     * 校验优惠券是否都在可用缓存中 转移并改写状态 减少(过期时删除)领取计数 重置两个缓存的过期时间 在一次调用内原子完成
+     * @param userId
+     * @param coupons
+     * @param target
+     * @param strict 是否要求优惠券都在可用缓存中 不要求时忽略不在缓存中的优惠券
+     * @return
+     * @throws CouponException
+     */
+    private Integer transferUsableCoupons(Long userId, List<Coupon> coupons, CouponStatus target, boolean strict) throws CouponException {
         String redisKeyForUsable = status2RedisKey(CouponStatus.USABLE.getCode(), userId);
-        String redisKeyForExpired = status2RedisKey(CouponStatus.EXPIRED.getCode(), userId);
-
-        List<Coupon> curUsableCoupons = getCachedCoupons(userId, CouponStatus.USABLE.getCode());
-        List<Coupon> curExpiredCoupons = getCachedCoupons(userId, CouponStatus.EXPIRED.getCode());
-
-        // 当前可用的优惠券个数一定是大于1的
-        assert curUsableCoupons.size() > coupons.size();
-
-        coupons.forEach(c -> needCacheForExpired.put(c.getId().toString(), JSON.toJSONString(c)));
-
-        // 校验当前的优惠券参数是否与Cache中的匹配
-        List<Integer> curUsableIds = curUsableCoupons.stream().map(Coupon::getId).collect(Collectors.toList());
-        List<Integer> paramIds = coupons.stream().map(Coupon::getId).collect(Collectors.toList());
-        if (!CollectionUtils.isSubCollection(paramIds, curUsableIds)) {
-            log.error("缓存中没有与当前优惠券参数相同的:{},{},{}", userId, JSON.toJSONString(curUsableIds), JSON.toJSONString(paramIds));
+        String redisKeyForTarget = status2RedisKey(target.getCode(), userId);
+        String claimKey = String.format("%s%s", Constant.RedisPrefix.USER_COUPON_CLAIM, userId);
+
+        List<String> args = new ArrayList<>(coupons.size() * 2 + 5);
+        args.add(target.getCode().toString());
+        args.add(getRandomExpirationTime(1, 2).toString());
+        args.add(getRandomExpirationTime(1, 2).toString());
+        args.add(strict ? "1" : "0");
+        // 领取计数中不包含已过期的优惠券 过期转移不能再减计数 删除后从数据库重建
+        args.add(target == CouponStatus.EXPIRED ? "1" : "0");
+        coupons.forEach(c -> {
+            args.add(c.getId().toString());
+            args.add(String.valueOf(c.getTemplateId()));
+        });
+
+        Long result = redisTemplate.execute(TRANSITION_SCRIPT, Arrays.asList(redisKeyForUsable, redisKeyForTarget, claimKey, fullTemplatesKey(userId),
+                redisKeyForUsable + COUPON_INDEX_SUFFIX, redisKeyForTarget + COUPON_INDEX_SUFFIX), args.toArray());
+        if (null == result || result < 0) {
+            log.error("缓存中没有与当前优惠券参数相同的:{},{}", userId, JSON.toJSONString(coupons.stream().map(Coupon::getId).collect(Collectors.toList())));
             throw new CouponException("缓存中没有与当前优惠券参数相同的");
         }
-
-        List<String> needCleanKey = paramIds.stream().map(i -> i.toString()).collect(Collectors.toList());
-        SessionCallback<Objects> sessionCallback = new SessionCallback<Objects>() {
-            @Override
-            public Objects execute(RedisOperations operations) throws DataAccessException {
-                // 1.已过期的优惠券Cache缓存添加
-                operations.opsForHash().putAll(redisKeyForExpired, needCacheForExpired);
-                // 2.可用的优惠券Cache缓存清理
-                operations.opsForHash().delete(redisKeyForUsable, needCleanKey.toArray());
-                // 3.重置redisKeyForUsable和redisKeyForExpired的过期时间
-                operations.expire(redisKeyForUsable, getRandomExpirationTime(1, 2), TimeUnit.SECONDS);
-                operations.expire(redisKeyForExpired, getRandomExpirationTime(1, 2), TimeUnit.SECONDS);
-
-                return null;
-            }
-        };
-        log.info("Pipeline:{}", JSON.toJSONString(redisTemplate.executePipelined(sessionCallback)));
-
-        return coupons.size();
+        log.info("转移{}张优惠券到{}:{}", result, redisKeyForTarget, userId);
+        return result.intValue();
     }
 }
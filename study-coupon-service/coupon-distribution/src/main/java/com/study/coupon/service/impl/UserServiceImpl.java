@@ -1,13 +1,19 @@
 package com.study.coupon.service.impl;
 
 import com.alibaba.fastjson.JSON;
+import com.study.coupon.cache.TemplateEligibilityIndex;
+import com.study.coupon.cache.TemplateReplica;
 import com.study.coupon.constant.Constant;
 import com.study.coupon.constant.CouponStatus;
 import com.study.coupon.dao.CouponDao;
 import com.study.coupon.entity.Coupon;
 import com.study.coupon.exception.CouponException;
 import com.study.coupon.feign.SettlementClient;
-import com.study.coupon.feign.TemplateClient;
+import com.study.coupon.generator.CouponIdAllocator;
+import com.study.coupon.schedule.AcquireMessageReconciler;
+import com.study.coupon.schedule.CouponExpireQueue;
+import com.study.coupon.service.IAsyncService;
+import com.study.coupon.service.IKafkaService;
 import com.study.coupon.service.IRedisService;
 import com.study.coupon.service.IUserService;
 import com.study.coupon.vo.*;
@@ -16,10 +22,16 @@ import org.apache.commons.collections4.CollectionUtils;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.commons.lang3.tuple.Pair;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.kafka.core.KafkaTemplate;
+import org.springframework.kafka.support.SendResult;
 import org.springframework.stereotype.Service;
+import org.springframework.util.concurrent.ListenableFuture;
 
 import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.stream.Collectors;
 
 /**
@@ -36,9 +48,9 @@ public class UserServiceImpl implements IUserService {
     @Autowired
     private IRedisService redisService;
 
-    // 模板微服务客户端
+    // 优惠券模板本地副本
     @Autowired
-    private TemplateClient templateClient;
+    private TemplateReplica templateReplica;
 
     // 结算微服务客户端
     @Autowired
@@ -48,6 +60,52 @@ public class UserServiceImpl implements IUserService {
     @Autowired
     private KafkaTemplate<String, String> kafkaTemplate;
 
+    @Autowired
+    private IAsyncService asyncService;
+
+    @Autowired
+    private IKafkaService kafkaService;
+
+    // 是否使用秒杀领取流程
+    @Value("${coupon.flash-sale.enabled:false}")
+    private boolean flashSaleEnabled;
+
+    // 新领取的优惠券是否通过Kafka异步批量落库
+    @Value("${coupon.acquire.write-behind:false}")
+    private boolean writeBehind;
+
+    // 等待Kafka确认的最长时间
+    @Value("${coupon.acquire.send-timeout-ms:3000}")
+    private long sendTimeoutMs;
+
+    // 优惠券id号段分配器
+    @Autowired
+    private CouponIdAllocator idAllocator;
+
+    // 发送结果未知的领取记录补偿
+    @Autowired
+    private AcquireMessageReconciler acquireReconciler;
+
+    // 优惠券到期队列
+    @Autowired
+    private CouponExpireQueue expireQueue;
+
+    // 用户可领取模板的索引
+    @Autowired
+    private TemplateEligibilityIndex eligibilityIndex;
+
+    // 是否通过位图索引查找用户可以领取的模板
+    @Value("${coupon.eligibility-index.enabled:false}")
+    private boolean eligibilityIndexEnabled;
+
+    // 分页查询默认的每页条数
+    @Value("${coupon.page.default-size:20}")
+    private int defaultPageSize;
+
+    // 分页查询最大的每页条数
+    @Value("${coupon.page.max-size:100}")
+    private int maxPageSize;
+
     /**
      * 根据用户id和状态查询优惠券记录
      * @param userId
@@ -72,8 +130,14 @@ public class UserServiceImpl implements IUserService {
             }
 
             // 填充dbCoupons的templateSDK字段
-            Map<Integer, CouponTemplateSDK> id2TemplateSDK = templateClient.findIds2TemplateSDK(dbCoupons.stream().map(Coupon::getTemplateId).collect(Collectors.toList())).getData();
-            dbCoupons.forEach(dc -> dc.setTemplateSDK(id2TemplateSDK.get(dc.getTemplateId())));
+            Map<Integer, CouponTemplateSDK> id2TemplateSDK = templateReplica.findByIds(dbCoupons.stream().map(Coupon::getTemplateId).collect(Collectors.toList()));
+            dbCoupons.forEach(dc -> {
+                dc.setTemplateSDK(id2TemplateSDK.get(dc.getTemplateId()));
+                CouponClassify.fillExpireAt(dc);
+            });
+            if (CouponStatus.of(status) == CouponStatus.USABLE) {
+                CouponClassify.sortByExpireAt(dbCoupons);
+            }
             preTarget = dbCoupons;
             // 将记录写入Cache
             redisService.addCouponToCache(userId, preTarget, status);
@@ -83,19 +147,93 @@ public class UserServiceImpl implements IUserService {
         preTarget = preTarget.stream().filter(c -> c.getId() != -1).collect(Collectors.toList());
         // 如果当前获取的是可用优惠券 还需要做对已过期优惠券的延迟处理
         if (CouponStatus.of(status) == CouponStatus.USABLE) {
-            CouponClassify classify = CouponClassify.classify(preTarget);
+            // 可用优惠券已按过期时间排序
+            CouponClassify classify = CouponClassify.splitSortedUsable(preTarget, System.currentTimeMillis());
             // 如果已过期状态不为空 需要做延迟处理
             if (CollectionUtils.isNotEmpty(classify.getExpired())) {
                 log.info("将findCouponsByStatus的已过期优惠券放置到缓存中:{},{}", userId, status);
                 redisService.addCouponToCache(userId, classify.getExpired(), CouponStatus.EXPIRED.getCode());
                 // 发送到Kafka中作异步处理(KafkaServiceImpl中的consumeCouponKafkaMessage会进行处理)
-                kafkaTemplate.send(Constant.TOPIC, JSON.toJSONString(new CouponKafkaMessage(CouponStatus.EXPIRED.getCode(), classify.getExpired().stream().map(Coupon::getId).collect(Collectors.toList()))));
+                kafkaService.sendCouponKafkaMessage(new CouponKafkaMessage(CouponStatus.EXPIRED.getCode(), classify.getExpired().stream().map(Coupon::getId).collect(Collectors.toList())));
             }
             return classify.getUsable();
         }
         return preTarget;
     }
 
+    /**
+     * 根据用户id和状态分页查询优惠券记录 按id倒序
+     * 1.缓存存在时只读取当前页的优惠券
+     * 2.缓存不存在时按(user_id, status, id)索引查询数据库 并在后台把全部优惠券加载到缓存
+     * 3.可用优惠券中已过期的不返回 由过期任务处理状态变更 剔除后不足一页时继续往后读取
+     * @param userId
+     * @param status
+     * @param cursor 上一页返回的游标 第一页为null
+     * @param size 每页条数
+     * @return
+     * @throws CouponException
+     */
+    @Override
+    public CouponPage findCouponsByStatusPage(Long userId, Integer status, Integer cursor, Integer size) throws CouponException {
+        CouponStatus couponStatus = CouponStatus.of(status);
+        int pageSize = null == size ? defaultPageSize : Math.min(Math.max(size, 1), maxPageSize);
+        int beforeId = null == cursor ? Integer.MAX_VALUE : cursor;
+
+        // 先剔除已过期的优惠券再凑够一页 多取一条用于判断是否还有下一页
+        // 一批中被剔除的优惠券较多时继续往后读 直到凑够或没有更多数据
+        List<Coupon> coupons = new ArrayList<>(pageSize + 1);
+        boolean fromCache = true;
+        int scanBeforeId = beforeId;
+        while (coupons.size() <= pageSize) {
+            int fetchSize = pageSize + 1;
+            List<Coupon> fetched = fromCache ? redisService.getCachedCouponPage(userId, status, scanBeforeId, fetchSize) : null;
+            if (null == fetched) {
+                if (fromCache) {
+                    log.debug("缓存中没有响应的优惠券数据，从数据库中分页获取优惠券数据:{},{},{}", userId, status, scanBeforeId);
+                    asyncService.asyncLoadCouponCache(userId, status);
+                    fromCache = false;
+                }
+                fetched = findCouponPageFromDb(userId, status, scanBeforeId, fetchSize);
+            }
+
+            long curTime = System.currentTimeMillis();
+            fetched.stream()
+                    .filter(c -> couponStatus != CouponStatus.USABLE || null == c.getExpireAt() || c.getExpireAt() > curTime)
+                    .forEach(coupons::add);
+            if (fetched.size() < fetchSize) {
+                break;
+            }
+            scanBeforeId = fetched.get(fetched.size() - 1).getId();
+        }
+
+        Integer nextCursor = null;
+        if (coupons.size() > pageSize) {
+            coupons = coupons.subList(0, pageSize);
+            nextCursor = coupons.get(pageSize - 1).getId();
+        }
+        return new CouponPage(coupons, nextCursor);
+    }
+
+    /**
+     * 从数据库中按id倒序分页获取优惠券 并补全模板信息和过期时间
+     * @param userId
+     * @param status
+     * @param beforeId 只返回id小于该值的优惠券
+     * @param limit 最多返回的条数
+     * @return
+     */
+    private List<Coupon> findCouponPageFromDb(Long userId, Integer status, Integer beforeId, int limit) {
+        List<Coupon> coupons = couponDao.findPageByUserIdAndStatus(userId, status, beforeId, limit);
+        if (!coupons.isEmpty()) {
+            Map<Integer, CouponTemplateSDK> id2TemplateSDK = templateReplica.findByIds(coupons.stream().map(Coupon::getTemplateId).collect(Collectors.toSet()));
+            coupons.forEach(c -> {
+                c.setTemplateSDK(id2TemplateSDK.get(c.getTemplateId()));
+                CouponClassify.fillExpireAt(c);
+            });
+        }
+        return coupons;
+    }
+
     /**
      * 根据用户id查找当前可以领取的优惠券模板
      * @param userId
@@ -103,9 +241,12 @@ public class UserServiceImpl implements IUserService {
      */
     @Override
     public List<CouponTemplateSDK> findAvailableTemplate(Long userId) throws CouponException{
+        if (eligibilityIndexEnabled) {
+            return eligibilityIndex.findClaimable(userId);
+        }
         long curTime = new Date().getTime();
-        List<CouponTemplateSDK> templateSDKS = templateClient.findAllUsableTemplate().getData();
-        log.debug("从优惠券客户端中查找所有优惠券模板数量:{}", templateSDKS.size());
+        List<CouponTemplateSDK> templateSDKS = templateReplica.findAllUsable();
+        log.debug("从优惠券模板副本中查找所有优惠券模板数量:{}", templateSDKS.size());
 
         // 过滤过期的优惠券模板
         templateSDKS = templateSDKS.stream().filter(t -> t.getRule().getExpiration().getDeadline() > curTime).collect(Collectors.toList());
@@ -116,12 +257,9 @@ public class UserServiceImpl implements IUserService {
         templateSDKS.forEach(t -> limit2Template.put(t.getId(), Pair.of(t.getRule().getLimitation(), t)));
 
         List<CouponTemplateSDK> result = new ArrayList<>(limit2Template.size());
-        // 根据用户id和状态查询优惠券记录
-        List<Coupon> userUsableCoupons = findCouponsByStatus(userId, CouponStatus.USABLE.getCode());
-
-        log.debug("当前用户拥有的可用优惠券数量:{},{}", userId, userUsableCoupons.size());
-        // 将用户优惠券信息转换成map key:templateId
-        Map<Integer, List<Coupon>> templateId2Coupons = userUsableCoupons.stream().collect(Collectors.groupingBy(Coupon::getTemplateId));
+        // 用户持有的每个模板的可用优惠券数 key:templateId
+        Map<Integer, Integer> templateId2Count = redisService.getClaimCounts(userId);
+        log.debug("当前用户持有可用优惠券的模板数量:{},{}", userId, templateId2Count.size());
 
         // 根据template的rule来判断是否可以领取优惠券模板
         limit2Template.forEach((k,v) ->{
@@ -129,7 +267,7 @@ public class UserServiceImpl implements IUserService {
             CouponTemplateSDK templateSDK = v.getRight();
 
             // 如果当前用户已领取了该优惠券并且领取次数大于或等于限制次数则直接返回
-            if (templateId2Coupons.containsKey(k) && templateId2Coupons.get(k).size() >= limitation) {
+            if (templateId2Count.getOrDefault(k, 0) >= limitation) {
                 return;
             }
 
@@ -141,8 +279,8 @@ public class UserServiceImpl implements IUserService {
     /**
      * 用户领取优惠券
      * 1.从TemplateClient拿到对应的优惠券并检查是否过期
-     * 2.根据limitation判断用户是否可以领取
-     * 3.保存到数据库
+     * 2.根据用户领取计数和limitation原子地判断用户是否可以领取并获取优惠券码
+     * 3.保存到数据库 失败时撤销领取
      * 4.填充CouponTemplateSDK
      * 5.保存到缓存
      * @param request
@@ -151,7 +289,10 @@ public class UserServiceImpl implements IUserService {
      */
     @Override
     public Coupon acquireTemplate(AcquireTemplateRequest request) throws CouponException {
-        Map<Integer, CouponTemplateSDK> id2Template = templateClient.findIds2TemplateSDK(Collections.singletonList(request.getTemplateSDK().getId())).getData();
+        if (flashSaleEnabled) {
+            return claimTemplate(request);
+        }
+        Map<Integer, CouponTemplateSDK> id2Template = templateReplica.findByIds(Collections.singletonList(request.getTemplateSDK().getId()));
 
         // 优惠券模板是需要存在的
         if (id2Template.size() <= 0) {
@@ -159,34 +300,111 @@ public class UserServiceImpl implements IUserService {
             throw new CouponException("无法从模板服务端中获取优惠券模板");
         }
 
-        // 判断用户是否可以领取该优惠券
-        List<Coupon> userUsableCoupons = findCouponsByStatus(request.getUserId(), CouponStatus.USABLE.getCode());
-        Map<Integer, List<Coupon>> templateId2Coupons = userUsableCoupons.stream().collect(Collectors.groupingBy(Coupon::getTemplateId));
-        // 如果当前用户已领取了该优惠券并且领取次数大于或等于限制次数则直接返回
-        if (templateId2Coupons.containsKey(request.getTemplateSDK().getId()) && templateId2Coupons.get(request.getTemplateSDK().getId()).size() >= request.getTemplateSDK().getRule().getLimitation()) {
-            log.error("优惠券领取上限:{}", request.getTemplateSDK().getId());
-            throw new CouponException("优惠券领取上限");
-        }
+        // 原子地校验领取上限并获取优惠券码 达到上限或已领取完毕时抛出异常
+        Integer templateId = request.getTemplateSDK().getId();
+        String couponCode = redisService.claimCouponCode(request.getUserId(), id2Template.get(templateId));
 
-        // 尝试去获取优惠券码
-        String couponCode = redisService.tryToAcquireCouponCodeFromCache(request.getTemplateSDK().getId());
-        // 如果couponCode为空 则该优惠券已领取完毕
-        if (StringUtils.isEmpty(couponCode)) {
-            log.error("优惠券已领取完毕:{}", request.getTemplateSDK().getId());
+        Coupon newCoupon = new Coupon(templateId, request.getUserId(), couponCode, CouponStatus.USABLE);
+        try {
+            if (writeBehind) {
+                newCoupon.setAssignTime(new Date());
+                publishAcquiredCoupon(newCoupon);
+            } else {
+                newCoupon = couponDao.save(newCoupon);
+            }
+        } catch (CouponException | RuntimeException ex) {
+            // 保存失败时撤销领取 优惠券码放回缓存 领取计数减一
+            redisService.releaseClaimedCouponCode(request.getUserId(), templateId, couponCode);
+            throw ex;
         }
 
-        Coupon newCoupon = new Coupon(request.getTemplateSDK().getId(), request.getUserId(), couponCode, CouponStatus.USABLE);
-        newCoupon = couponDao.save(newCoupon);
-
         // 填充Coupon对象的CouponTemplateSDK 一定要在放入缓存之前去填充
         newCoupon.setTemplateSDK(request.getTemplateSDK());
+        CouponClassify.fillExpireAt(newCoupon);
 
         // 放入缓存中
         redisService.addCouponToCache(request.getUserId(), Collections.singletonList(newCoupon), CouponStatus.USABLE.getCode());
+        // 登记过期时间
+        expireQueue.register(newCoupon);
 
         return newCoupon;
     }
 
+    /**
+     * 秒杀流程领取优惠券
+     * 1.从本地模板副本拿到优惠券模板
+     * 2.一次Redis调用原子地校验领取上限并领取优惠券码
+     * 3.持久化后写入缓存 返回前领取记录一定已经持久化(或已交给补偿任务) 实例退出不会丢失
+     *   开启write-behind时分配id并发送到Kafka 发送成功或结果未知(由补偿任务确认)时写入缓存 确定发送失败时才撤销领取
+     *   没有开启时在请求线程中同步保存到数据库 失败时撤销领取(不交给共享的异步线程池 线程池饱和时也不会丢失)
+     * @param request
+     * @return
+     * @throws CouponException
+     */
+    private Coupon claimTemplate(AcquireTemplateRequest request) throws CouponException {
+        Integer templateId = request.getTemplateSDK().getId();
+        CouponTemplateSDK templateSDK = templateReplica.findByIds(Collections.singletonList(templateId)).get(templateId);
+        if (null == templateSDK) {
+            log.error("无法从模板服务端中获取优惠券模板:{}", templateId);
+            throw new CouponException("无法从模板服务端中获取优惠券模板");
+        }
+        String couponCode = redisService.claimCouponCode(request.getUserId(), templateSDK);
+
+        Coupon newCoupon = new Coupon(templateId, request.getUserId(), couponCode, CouponStatus.USABLE);
+        newCoupon.setAssignTime(new Date());
+        try {
+            if (writeBehind) {
+                publishAcquiredCoupon(newCoupon);
+            } else {
+                newCoupon = couponDao.save(newCoupon);
+            }
+        } catch (CouponException | RuntimeException ex) {
+            // 保存失败时撤销领取 优惠券码放回缓存 领取计数减一
+            redisService.releaseClaimedCouponCode(request.getUserId(), templateId, couponCode);
+            throw ex;
+        }
+        newCoupon.setTemplateSDK(templateSDK);
+        CouponClassify.fillExpireAt(newCoupon);
+        redisService.addCouponToCache(request.getUserId(), Collections.singletonList(newCoupon), CouponStatus.USABLE.getCode());
+        expireQueue.register(newCoupon);
+        return newCoupon;
+    }
+
+    /**
+     * 为新领取的优惠券分配id并发送到Kafka 由KafkaServiceImpl批量落库
+     * 等待Kafka确认后返回 只有确定没有写入broker时才抛出异常(调用方撤销领取)
+     * 等待超时或失败原因是超时等可重试的错误时 消息可能已经写入 按领取成功返回 由补偿任务确认并在需要时重发
+     * @param coupon
+     * @throws CouponException 确定发送失败
+     */
+    private void publishAcquiredCoupon(Coupon coupon) throws CouponException {
+        coupon.setId(idAllocator.nextId());
+        // 落库前重建领取计数时要计入这张优惠券
+        redisService.addPendingClaim(coupon);
+        String key = coupon.getUserId().toString();
+        String message = JSON.toJSONString(CouponAcquireMessage.of(coupon));
+        ListenableFuture<SendResult<String, String>> future = kafkaTemplate.send(Constant.COUPON_ACQUIRE_TOPIC, key, message);
+        try {
+            future.get(sendTimeoutMs, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            log.warn("等待优惠券领取记录确认时被中断,转为补偿确认:{}", message);
+            acquireReconciler.reconcile(key, message, future);
+        } catch (TimeoutException ex) {
+            log.warn("等待优惠券领取记录确认超时,转为补偿确认:{}", message);
+            acquireReconciler.reconcile(key, message, future);
+        } catch (ExecutionException ex) {
+            if (AcquireMessageReconciler.isIndeterminate(ex.getCause())) {
+                log.warn("优惠券领取记录发送结果未知,转为补偿重发:{}", message, ex);
+                acquireReconciler.reconcile(key, message, future);
+                return;
+            }
+            log.error("优惠券领取记录发送失败:{}", message, ex);
+            redisService.removePendingClaims(Collections.singletonMap(coupon.getUserId(), Collections.singletonList(coupon.getId())));
+            throw new CouponException("优惠券领取记录发送失败");
+        }
+    }
+
     @Override
     public SettlementInfo settlement(SettlementInfo info) throws CouponException {
         return null;
@@ -0,0 +1,42 @@
+package com.study.coupon.vo;
+
+import com.study.coupon.entity.Coupon;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * 新领取优惠券的Kafka消息对象定义
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class CouponAcquireMessage {
+
+    // 预分配的优惠券id
+    private Integer id;
+
+    // 优惠券模板id
+    private Integer templateId;
+
+    // 领取用户
+    private Long userId;
+
+    // 优惠券码
+    private String couponCode;
+
+    // 领取时间(毫秒)
+    private Long assignTime;
+
+    // 优惠券状态编码
+    private Integer status;
+
+    /**
+     * 根据优惠券构造消息
+     * @param coupon
+     * @return
+     */
+    public static CouponAcquireMessage of(Coupon coupon) {
+        return new CouponAcquireMessage(coupon.getId(), coupon.getTemplateId(), coupon.getUserId(), coupon.getCouponCode(), coupon.getAssignTime().getTime(), coupon.getStatus().getCode());
+    }
+}
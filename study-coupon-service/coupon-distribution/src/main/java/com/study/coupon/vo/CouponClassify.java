@@ -9,6 +9,8 @@ import lombok.NoArgsConstructor;
 import org.apache.commons.lang.time.DateUtils;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Date;
 import java.util.List;
 
@@ -29,8 +31,11 @@ public class CouponClassify {
     // 已过期的优惠券
     private List<Coupon> expired;
 
+    // 按过期时间排序 没有过期时间的排在最后
+    private static final Comparator<Coupon> EXPIRE_AT_ORDER = Comparator.comparingLong(CouponClassify::expireAtOf);
+
     /**
-     * 对当前优惠券进行分类
+     * 对当前优惠券进行分类 所有优惠券使用同一个当前时间判断是否过期
      * @param coupons
      * @return
      */
@@ -39,25 +44,13 @@ public class CouponClassify {
         List<Coupon> used = new ArrayList<>(coupons.size());
         List<Coupon> expired = new ArrayList<>(coupons.size());
 
+        // 当前时间
+        long curTime = System.currentTimeMillis();
         coupons.forEach(c -> {
-            // 判断优惠券是否过期
-            boolean isTimeExpire;
-            // 当前时间
-            long curTime = new Date().getTime();
-
-            // 判断当前优惠券的有效期类型
-            if (c.getTemplateSDK().getRule().getExpiration().getPeriod().equals(PeriodType.REGULAR.getCode())) {
-                // 固定的(固定日期)
-                isTimeExpire = c.getTemplateSDK().getRule().getExpiration().getDeadline() <= curTime;
-            } else {
-                // 变动的(以领取之日开始计算)
-                isTimeExpire = DateUtils.addDays(c.getAssignTime(), c.getTemplateSDK().getRule().getExpiration().getGap()).getTime() <= curTime;
-            }
-
             // 判断优惠券状态并添加到对应列表中
             if (c.getStatus() == CouponStatus.USED) {
                 used.add(c);
-            } else if (c.getStatus() == CouponStatus.EXPIRED || isTimeExpire) {
+            } else if (c.getStatus() == CouponStatus.EXPIRED || expireAtOf(c) <= curTime) {
                 expired.add(c);
             } else {
                 usable.add(c);
@@ -66,4 +59,85 @@ public class CouponClassify {
 
         return new CouponClassify(usable, used, expired);
     }
+
+    /**
+     * 对已按过期时间排序的可用优惠券进行分类
+     * 二分查找第一张未过期的优惠券 之前的都已过期 不需要逐张判断
+     * @param sortedUsable 状态都是可用 并且已经通过{@link #sortByExpireAt(List)}排序
+     * @param curTime 当前时间
+     * @return
+     */
+    public static CouponClassify splitSortedUsable(List<Coupon> sortedUsable, long curTime) {
+        int low = 0;
+        int high = sortedUsable.size();
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (expireAtOf(sortedUsable.get(mid)) <= curTime) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return new CouponClassify(sortedUsable.subList(low, sortedUsable.size()), Collections.emptyList(), sortedUsable.subList(0, low));
+    }
+
+    /**
+     * 按过期时间排序
+     * @param coupons
+     */
+    public static void sortByExpireAt(List<Coupon> coupons) {
+        coupons.sort(EXPIRE_AT_ORDER);
+    }
+
+    /**
+     * 计算并保存优惠券的过期时间 已经有过期时间或者缺少模板信息时不处理
+     * @param coupon
+     */
+    public static void fillExpireAt(Coupon coupon) {
+        if (null != coupon.getExpireAt() || null == coupon.getTemplateSDK()) {
+            return;
+        }
+        TemplateRule.Expiration expiration = coupon.getTemplateSDK().getRule().getExpiration();
+        if (null == coupon.getAssignTime() && !expiration.getPeriod().equals(PeriodType.REGULAR.getCode())) {
+            return;
+        }
+        coupon.setExpireAt(expireTime(expiration, coupon.getAssignTime()));
+    }
+
+    /**
+     * 优惠券的过期时间 没有计算过时先计算 无法计算时视为不过期
+     * @param coupon
+     * @return
+     */
+    private static long expireAtOf(Coupon coupon) {
+        fillExpireAt(coupon);
+        return null == coupon.getExpireAt() ? Long.MAX_VALUE : coupon.getExpireAt();
+    }
+
+    /**
+     * 根据模板的过期规则判断优惠券是否已经过期
+     * @param expiration 模板的过期规则
+     * @param assignTime 领取时间
+     * @param curTime 当前时间
+     * @return
+     */
+    public static boolean isTimeExpire(TemplateRule.Expiration expiration, Date assignTime, long curTime) {
+        return expireTime(expiration, assignTime) <= curTime;
+    }
+
+    /**
+     * 根据模板的过期规则计算优惠券的过期时间
+     * @param expiration 模板的过期规则
+     * @param assignTime 领取时间
+     * @return
+     */
+    public static long expireTime(TemplateRule.Expiration expiration, Date assignTime) {
+        // 判断当前优惠券的有效期类型
+        if (expiration.getPeriod().equals(PeriodType.REGULAR.getCode())) {
+            // 固定的(固定日期)
+            return expiration.getDeadline();
+        }
+        // 变动的(以领取之日开始计算)
+        return DateUtils.addDays(assignTime, expiration.getGap()).getTime();
+    }
 }
@@ -0,0 +1,23 @@
+package com.study.coupon.vo;
+
+import com.study.coupon.entity.Coupon;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.util.List;
+
+/**
+ * 用户优惠券分页查询结果
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class CouponPage {
+
+    // 当前页的优惠券 按id倒序
+    private List<Coupon> coupons;
+
+    // 下一页的游标(当前页最后一张优惠券的id) 没有下一页时为null
+    private Integer nextCursor;
+}
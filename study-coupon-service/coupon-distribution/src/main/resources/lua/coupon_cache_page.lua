@@ -0,0 +1,43 @@
+-- 按id倒序分页读取用户优惠券缓存
+-- KEYS[1]: 优惠券缓存(hash) KEYS[2]: 优惠券id索引(zset member/score:优惠券id)
+-- ARGV[1]: 最大的优惠券id(包含) ARGV[2]: 最多返回的条数
+-- 索引不存在时从缓存的field重建一次(只有这种情况需要读出所有的field) 过期时间与缓存相同
+-- 返回: 缓存不存在时返回nil 否则返回当前页编码后的优惠券
+if redis.call('EXISTS', KEYS[1]) == 0 then
+    return false
+end
+
+if redis.call('EXISTS', KEYS[2]) == 0 then
+    local args = {}
+    for _, id in ipairs(redis.call('HKEYS', KEYS[1])) do
+        -- 剔除无效优惠券(-1)
+        if tonumber(id) >= 0 then
+            table.insert(args, id)
+            table.insert(args, id)
+        end
+        -- 分批写入 避免unpack的参数过多
+        if #args >= 1000 then
+            redis.call('ZADD', KEYS[2], unpack(args))
+            args = {}
+        end
+    end
+    if #args > 0 then
+        redis.call('ZADD', KEYS[2], unpack(args))
+    end
+    local ttl = redis.call('TTL', KEYS[1])
+    if ttl > 0 then
+        redis.call('EXPIRE', KEYS[2], ttl)
+    end
+end
+
+local ids = redis.call('ZREVRANGEBYSCORE', KEYS[2], ARGV[1], '-inf', 'LIMIT', 0, tonumber(ARGV[2]))
+if #ids == 0 then
+    return {}
+end
+local coupons = {}
+for _, value in ipairs(redis.call('HMGET', KEYS[1], unpack(ids))) do
+    if value then
+        table.insert(coupons, value)
+    end
+end
+return coupons
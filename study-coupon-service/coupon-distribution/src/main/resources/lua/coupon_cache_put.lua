@@ -0,0 +1,27 @@
+-- 写入用户优惠券缓存 并维护按id排序的索引(zset member/score:优惠券id)
+-- KEYS[1]: 优惠券缓存(hash) KEYS[2]: 优惠券id索引(zset)
+-- ARGV[1]: 缓存已存在时是否不写入(1/0) ARGV[2]: 过期时间(秒) ARGV[3...]: 优惠券id, 编码后的优惠券 成对出现
+-- 缓存存在但索引不存在(索引上线前写入的缓存或只有无效优惠券的缓存)时不写索引 由分页读取时从缓存重建
+-- 返回: 写入的优惠券个数 缓存已存在且不写入时返回-1
+local exists = redis.call('EXISTS', KEYS[1]) == 1
+if ARGV[1] == '1' and exists then
+    return -1
+end
+
+local indexed = not exists or redis.call('EXISTS', KEYS[2]) == 1
+local written = 0
+for i = 3, #ARGV, 2 do
+    redis.call('HSET', KEYS[1], ARGV[i], ARGV[i + 1])
+    if indexed then
+        redis.call('ZADD', KEYS[2], ARGV[i], ARGV[i])
+    end
+    written = written + 1
+end
+
+if written > 0 then
+    redis.call('EXPIRE', KEYS[1], ARGV[2])
+    if indexed then
+        redis.call('EXPIRE', KEYS[2], ARGV[2])
+    end
+end
+return written
@@ -0,0 +1,70 @@
+-- 将用户的优惠券从可用缓存原子地转移到已使用/已过期缓存
+-- KEYS[1]: 可用优惠券缓存 KEYS[2]: 目标缓存 KEYS[3]: 用户领取计数 KEYS[4]: 用户已达领取上限的模板位图
+-- KEYS[5]: 可用优惠券id索引 KEYS[6]: 目标缓存的优惠券id索引 与缓存同步增删 目标缓存存在但索引不存在时不写索引(分页读取时重建)
+-- ARGV[1]: 目标状态编码 ARGV[2]: 可用缓存的过期时间(秒) ARGV[3]: 目标缓存的过期时间(秒)
+-- ARGV[4]: 是否严格校验(1/0) ARGV[5]: 是否删除领取计数和位图(1/0) ARGV[6...]: 优惠券id, 模板id 成对出现
+-- 严格校验时有任何一张优惠券不在可用缓存中返回-1且不做任何修改
+-- 不严格校验时忽略不在可用缓存中的优惠券 目标缓存不存在时只从可用缓存中删除(目标缓存之后从数据库加载)
+-- 不严格校验时有优惠券不在可用缓存中 无法确定领取计数是否已经减过 删除领取计数和位图 之后从数据库重建
+-- 转移到已过期时领取计数中本来就不包含这些优惠券(计数在最早过期的优惠券过期时失效) 也删除领取计数和位图
+-- 返回: 转移的优惠券个数
+local strict = ARGV[4] == '1'
+if strict then
+    for i = 6, #ARGV, 2 do
+        if redis.call('HEXISTS', KEYS[1], ARGV[i]) == 0 then
+            return -1
+        end
+    end
+end
+
+local status = string.char(tonumber(ARGV[1]))
+local targetExists = redis.call('EXISTS', KEYS[2]) == 1
+local writeTarget = strict or targetExists
+local indexTarget = writeTarget and (not targetExists or redis.call('EXISTS', KEYS[6]) == 1)
+local dropCounts = ARGV[5] == '1'
+local hasBitmap = redis.call('EXISTS', KEYS[4]) == 1
+local moved = 0
+for i = 6, #ARGV, 2 do
+    local value = redis.call('HGET', KEYS[1], ARGV[i])
+    if value then
+        if writeTarget then
+            -- 二进制编码(版本号1)的第二个字节是状态 旧的JSON格式原样转移
+            if string.byte(value, 1) == 1 then
+                value = string.sub(value, 1, 1) .. status .. string.sub(value, 3)
+            end
+            redis.call('HSET', KEYS[2], ARGV[i], value)
+            if indexTarget then
+                redis.call('ZADD', KEYS[6], ARGV[i], ARGV[i])
+            end
+        end
+        redis.call('HDEL', KEYS[1], ARGV[i])
+        redis.call('ZREM', KEYS[5], ARGV[i])
+        if not dropCounts then
+            -- 离开可用状态的优惠券不再占用领取上限
+            if redis.call('HEXISTS', KEYS[3], ARGV[i + 1]) == 1 then
+                redis.call('HINCRBY', KEYS[3], ARGV[i + 1], -1)
+            end
+            -- 持有数减少后一定低于领取上限
+            if hasBitmap then
+                redis.call('SETBIT', KEYS[4], ARGV[i + 1], 0)
+            end
+        end
+        moved = moved + 1
+    end
+end
+
+if dropCounts or (not strict and moved < (#ARGV - 5) / 2) then
+    redis.call('DEL', KEYS[3], KEYS[4])
+end
+
+if moved > 0 then
+    redis.call('EXPIRE', KEYS[1], ARGV[2])
+    redis.call('EXPIRE', KEYS[5], ARGV[2])
+    if writeTarget then
+        redis.call('EXPIRE', KEYS[2], ARGV[3])
+    end
+    if indexTarget then
+        redis.call('EXPIRE', KEYS[6], ARGV[3])
+    end
+end
+return moved
@@ -0,0 +1,37 @@
+-- 用户领取优惠券: 校验领取上限, 弹出一个优惠券码, 记录领取次数
+-- KEYS[1]: 用户领取计数(hash field:模板id value:用户持有的该模板可用优惠券数 field -1 表示已从数据库初始化) KEYS[2]: 模板的优惠券码列表
+-- KEYS[3]: 用户已达领取上限的模板位图(offset:模板id)
+-- ARGV[1]: 模板id ARGV[2]: 领取上限 ARGV[3]: 领取计数的过期时间(秒) 不晚于新领取的优惠券的过期时间 只会缩短已有的过期时间
+-- 位图只在已初始化(第0位为1)时修改 未初始化的位图由初始化脚本重建
+-- 返回: 优惠券码, 或 '-1' 达到领取上限, '-2' 领取计数未初始化, '-3' 优惠券码已领完
+if redis.call('HEXISTS', KEYS[1], '-1') == 0 then
+    return '-2'
+end
+local bitmapLoaded = redis.call('GETBIT', KEYS[3], 0) == 1
+
+local count = tonumber(redis.call('HGET', KEYS[1], ARGV[1]) or '0')
+local limitation = tonumber(ARGV[2])
+if count >= limitation then
+    if bitmapLoaded then
+        redis.call('SETBIT', KEYS[3], ARGV[1], 1)
+    end
+    return '-1'
+end
+
+local code = redis.call('LPOP', KEYS[2])
+if not code then
+    return '-3'
+end
+
+redis.call('HINCRBY', KEYS[1], ARGV[1], 1)
+if bitmapLoaded and count + 1 >= limitation then
+    redis.call('SETBIT', KEYS[3], ARGV[1], 1)
+end
+local ttl = tonumber(ARGV[3])
+for i = 1, 3, 2 do
+    local current = redis.call('TTL', KEYS[i])
+    if current == -1 or current > ttl then
+        redis.call('EXPIRE', KEYS[i], ttl)
+    end
+end
+return code
@@ -0,0 +1,26 @@
+-- 用数据库中的统计结果初始化用户领取计数 已经初始化过时保留Redis中的计数
+-- 然后根据领取计数重建用户已达领取上限的模板位图 位图第0位为1表示已初始化
+-- KEYS[1]: 用户领取计数 KEYS[2]: 用户已达领取上限的模板位图
+-- ARGV[1]: 过期时间(秒) 不晚于其中最早过期的优惠券 ARGV[2...]: 模板id, 数据库中用户持有的该模板未过期的可用优惠券数, 领取上限(未知时为0) 三个一组
+-- 返回: 1 初始化了领取计数, 0 领取计数已经存在
+local loaded = 0
+if redis.call('HEXISTS', KEYS[1], '-1') == 0 then
+    for i = 2, #ARGV, 3 do
+        redis.call('HSET', KEYS[1], ARGV[i], ARGV[i + 1])
+    end
+    redis.call('HSET', KEYS[1], '-1', 1)
+    redis.call('EXPIRE', KEYS[1], ARGV[1])
+    loaded = 1
+end
+
+redis.call('DEL', KEYS[2])
+redis.call('SETBIT', KEYS[2], 0, 1)
+for i = 2, #ARGV, 3 do
+    local limitation = tonumber(ARGV[i + 2])
+    local count = tonumber(redis.call('HGET', KEYS[1], ARGV[i]) or '0')
+    if limitation > 0 and count >= limitation then
+        redis.call('SETBIT', KEYS[2], ARGV[i], 1)
+    end
+end
+redis.call('EXPIRE', KEYS[2], ARGV[1])
+return loaded
@@ -0,0 +1,11 @@
+-- 撤销一次领取: 优惠券码放回列表, 领取计数减一
+-- KEYS[1]: 用户领取计数 KEYS[2]: 模板的优惠券码列表 KEYS[3]: 用户已达领取上限的模板位图
+-- ARGV[1]: 模板id ARGV[2]: 优惠券码
+redis.call('RPUSH', KEYS[2], ARGV[2])
+if redis.call('HEXISTS', KEYS[1], ARGV[1]) == 1 then
+    redis.call('HINCRBY', KEYS[1], ARGV[1], -1)
+end
+if redis.call('EXISTS', KEYS[3]) == 1 then
+    redis.call('SETBIT', KEYS[3], ARGV[1], 0)
+end
+return 1
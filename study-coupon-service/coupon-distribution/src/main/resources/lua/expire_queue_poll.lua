@@ -0,0 +1,7 @@
+-- 取出并删除到期队列中已经到期的元素 多个实例同时调用时每个元素只会被取出一次
+-- KEYS[1]: 到期队列 ARGV[1]: 当前时间 ARGV[2]: 最多取出的个数
+local items = redis.call('ZRANGEBYSCORE', KEYS[1], '-inf', ARGV[1], 'LIMIT', 0, tonumber(ARGV[2]))
+if #items > 0 then
+    redis.call('ZREM', KEYS[1], unpack(items))
+end
+return items
@@ -0,0 +1,6 @@
+-- 释放分布式锁: 只有锁仍由自己持有时才删除
+-- KEYS[1]: 锁 ARGV[1]: 加锁时写入的标识
+if redis.call('GET', KEYS[1]) == ARGV[1] then
+    return redis.call('DEL', KEYS[1])
+end
+return 0
@@ -0,0 +1,8 @@
+-- 优惠券id号段表
+
+-- 记录已经分配出去的最大id(号段上限) Redis中的号段计数丢失后以它和coupon表最大id中较大的为起点
+CREATE TABLE IF NOT EXISTS `study_coupon_data`.`coupon_id_segment` (
+  `name` varchar(64) NOT NULL COMMENT '号段名称',
+  `max_id` bigint(20) NOT NULL COMMENT '已分配出去的最大id',
+  PRIMARY KEY (`name`)
+) ENGINE=InnoDB DEFAULT CHARSET=utf8 COMMENT='优惠券id号段表';
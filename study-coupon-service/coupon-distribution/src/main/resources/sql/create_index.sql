@@ -0,0 +1,4 @@
+-- coupon 表的索引
+
+-- 按用户和状态分页查询优惠券(WHERE user_id = ? AND status = ? AND id < ? ORDER BY id DESC)
+ALTER TABLE `study_coupon_data`.`coupon` ADD INDEX `idx_user_status_id` (`user_id`, `status`, `id`);
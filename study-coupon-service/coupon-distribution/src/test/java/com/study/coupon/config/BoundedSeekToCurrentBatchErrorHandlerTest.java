@@ -0,0 +1,81 @@
+package com.study.coupon.config;
+
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.consumer.ConsumerRecords;
+import org.apache.kafka.clients.consumer.MockConsumer;
+import org.apache.kafka.clients.consumer.OffsetResetStrategy;
+import org.apache.kafka.common.TopicPartition;
+import org.junit.Test;
+import org.springframework.kafka.KafkaException;
+
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * 有次数上限的批量消费错误处理器测试
+ */
+public class BoundedSeekToCurrentBatchErrorHandlerTest {
+
+    private static final TopicPartition PARTITION = new TopicPartition("acquire", 0);
+
+    @Test
+    public void testSeeksUntilMaxFailuresThenRecovers() {
+        List<Object> recovered = new ArrayList<>();
+        BoundedSeekToCurrentBatchErrorHandler handler = new BoundedSeekToCurrentBatchErrorHandler((record, ex) -> recovered.add(record.value()), 3);
+        MockConsumer<String, String> consumer = consumer();
+        ConsumerRecords<String, String> batch = batch(10, "a", "b");
+
+        for (int i = 0; i < 2; i++) {
+            consumer.seek(PARTITION, 12);
+            try {
+                handler.handle(new IllegalStateException("poison"), batch, consumer, null);
+                fail("should seek and rethrow");
+            } catch (KafkaException expected) {
+                assertEquals(10, consumer.position(PARTITION));
+            }
+        }
+        assertTrue(recovered.isEmpty());
+
+        // 第三次失败 交给恢复处理 不再回退
+        consumer.seek(PARTITION, 12);
+        handler.handle(new IllegalStateException("poison"), batch, consumer, null);
+        assertEquals(Arrays.asList("a", "b"), recovered);
+        assertEquals(12, consumer.position(PARTITION));
+    }
+
+    @Test
+    public void testDifferentBatchResetsCount() {
+        List<Object> recovered = new ArrayList<>();
+        BoundedSeekToCurrentBatchErrorHandler handler = new BoundedSeekToCurrentBatchErrorHandler((record, ex) -> recovered.add(record.value()), 2);
+        MockConsumer<String, String> consumer = consumer();
+
+        assertSeek(handler, consumer, batch(10, "a"));
+        assertSeek(handler, consumer, batch(20, "b"));
+        assertTrue(recovered.isEmpty());
+    }
+
+    private static void assertSeek(BoundedSeekToCurrentBatchErrorHandler handler, MockConsumer<String, String> consumer, ConsumerRecords<String, String> batch) {
+        try {
+            handler.handle(new IllegalStateException("db down"), batch, consumer, null);
+            fail("should seek and rethrow");
+        } catch (KafkaException expected) {
+            assertEquals(batch.records(PARTITION).get(0).offset(), consumer.position(PARTITION));
+        }
+    }
+
+    private static MockConsumer<String, String> consumer() {
+        MockConsumer<String, String> consumer = new MockConsumer<>(OffsetResetStrategy.EARLIEST);
+        consumer.assign(Collections.singletonList(PARTITION));
+        consumer.updateBeginningOffsets(Collections.singletonMap(PARTITION, 0L));
+        return consumer;
+    }
+
+    private static ConsumerRecords<String, String> batch(long offset, String... values) {
+        List<ConsumerRecord<String, String>> records = new ArrayList<>();
+        for (String value : values) {
+            records.add(new ConsumerRecord<>(PARTITION.topic(), PARTITION.partition(), offset++, null, value));
+        }
+        return new ConsumerRecords<>(Collections.singletonMap(PARTITION, records));
+    }
+}
@@ -0,0 +1,30 @@
+package com.study.coupon.schedule;
+
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.common.errors.NotLeaderForPartitionException;
+import org.apache.kafka.common.errors.RecordTooLargeException;
+import org.apache.kafka.common.errors.TimeoutException;
+import org.junit.Test;
+import org.springframework.kafka.core.KafkaProducerException;
+
+import static org.junit.Assert.*;
+
+/**
+ * 领取记录发送结果判断测试
+ */
+public class AcquireMessageReconcilerTest {
+
+    private static final ProducerRecord<String, String> RECORD = new ProducerRecord<>("acquire", "1", "{}");
+
+    @Test
+    public void testTimeoutAndRetriableAreIndeterminate() {
+        assertTrue(AcquireMessageReconciler.isIndeterminate(new KafkaProducerException(RECORD, "failed", new TimeoutException("expired"))));
+        assertTrue(AcquireMessageReconciler.isIndeterminate(new KafkaProducerException(RECORD, "failed", new NotLeaderForPartitionException())));
+    }
+
+    @Test
+    public void testNonRetriableFailureIsDefinite() {
+        assertFalse(AcquireMessageReconciler.isIndeterminate(new KafkaProducerException(RECORD, "failed", new RecordTooLargeException())));
+        assertFalse(AcquireMessageReconciler.isIndeterminate(null));
+    }
+}
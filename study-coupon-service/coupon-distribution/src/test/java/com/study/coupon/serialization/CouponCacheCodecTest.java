@@ -0,0 +1,70 @@
+package com.study.coupon.serialization;
+
+import com.alibaba.fastjson.JSON;
+import com.study.coupon.constant.CouponStatus;
+import com.study.coupon.entity.Coupon;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Date;
+
+import static org.junit.Assert.*;
+
+/**
+ * 用户优惠券缓存编码测试
+ */
+public class CouponCacheCodecTest {
+
+    @Test
+    public void testRoundTrip() {
+        Coupon coupon = new Coupon(12, 10001L, "100124041512345678", CouponStatus.USABLE);
+        coupon.setId(345678);
+        coupon.setAssignTime(new Date(1713168000123L));
+
+        byte[] bytes = CouponCacheCodec.encode(coupon, CouponStatus.EXPIRED);
+        assertTrue(bytes.length <= 32);
+        assertNull(CouponCacheCodec.decode(bytes).getExpireAt());
+        assertEquals(CouponStatus.EXPIRED.getCode().intValue(), bytes[CouponCacheCodec.STATUS_OFFSET]);
+
+        Coupon decoded = CouponCacheCodec.decode(bytes);
+        assertEquals(coupon.getId(), decoded.getId());
+        assertEquals(coupon.getTemplateId(), decoded.getTemplateId());
+        assertEquals(coupon.getUserId(), decoded.getUserId());
+        assertEquals(coupon.getCouponCode(), decoded.getCouponCode());
+        assertEquals(coupon.getAssignTime(), decoded.getAssignTime());
+        assertEquals(CouponStatus.EXPIRED, decoded.getStatus());
+        assertNull(decoded.getTemplateSDK());
+    }
+
+    @Test
+    public void testInvalidCouponAndTextCode() {
+        Coupon decoded = CouponCacheCodec.decode(CouponCacheCodec.encode(Coupon.invalidCoupon(), null));
+        assertEquals(Integer.valueOf(-1), decoded.getId());
+        assertNull(decoded.getTemplateId());
+        assertNull(decoded.getCouponCode());
+        assertNull(decoded.getStatus());
+
+        Coupon coupon = new Coupon(1, 1L, "0012-优惠", CouponStatus.USED);
+        coupon.setId(1);
+        assertEquals("0012-优惠", CouponCacheCodec.decode(CouponCacheCodec.encode(coupon, null)).getCouponCode());
+    }
+
+    @Test
+    public void testExpireAt() {
+        Coupon coupon = new Coupon(12, 10001L, "100124041512345678", CouponStatus.USABLE);
+        coupon.setId(9);
+        coupon.setAssignTime(new Date(1713168000123L));
+        coupon.setExpireAt(1713772800123L);
+        assertEquals(coupon.getExpireAt(), CouponCacheCodec.decode(CouponCacheCodec.encode(coupon, null)).getExpireAt());
+    }
+
+    @Test
+    public void testLegacyJson() {
+        Coupon coupon = new Coupon(12, 10001L, "100124041512345678", CouponStatus.USABLE);
+        coupon.setId(7);
+        byte[] legacy = JSON.toJSONString(coupon).getBytes(StandardCharsets.UTF_8);
+        Coupon decoded = CouponCacheCodec.decode(legacy);
+        assertEquals(Integer.valueOf(7), decoded.getId());
+        assertEquals("100124041512345678", decoded.getCouponCode());
+    }
+}
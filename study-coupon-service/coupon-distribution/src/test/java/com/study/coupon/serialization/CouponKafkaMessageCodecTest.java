@@ -0,0 +1,65 @@
+package com.study.coupon.serialization;
+
+import com.alibaba.fastjson.JSON;
+import com.study.coupon.constant.CouponStatus;
+import com.study.coupon.vo.CouponKafkaMessage;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * 优惠券Kafka消息编码测试
+ */
+public class CouponKafkaMessageCodecTest {
+
+    @Test
+    public void testRoundTripSortsAndDeduplicates() {
+        CouponKafkaMessage message = new CouponKafkaMessage(CouponStatus.EXPIRED.getCode(), Arrays.asList(1000007, 12, 1000007, 345678));
+
+        byte[] bytes = CouponKafkaMessageCodec.encode(message);
+        assertEquals(CouponKafkaMessageCodec.MAGIC, bytes[0]);
+        assertTrue(bytes.length < JSON.toJSONString(message).length());
+
+        CouponKafkaMessage decoded = CouponKafkaMessageCodec.decode(bytes);
+        assertEquals(message.getStatus(), decoded.getStatus());
+        assertEquals(Arrays.asList(12, 345678, 1000007), decoded.getIds());
+    }
+
+    @Test
+    public void testLargeMessageIsCompressed() {
+        List<Integer> ids = new ArrayList<>();
+        for (int i = 0; i < 5000; ++i) {
+            ids.add(2000000 + i * 3);
+        }
+        CouponKafkaMessage message = new CouponKafkaMessage(CouponStatus.USED.getCode(), ids);
+
+        byte[] bytes = CouponKafkaMessageCodec.encode(message);
+        assertEquals(1, bytes[3] & 1);
+        assertTrue(bytes.length < ids.size());
+
+        CouponKafkaMessage decoded = CouponKafkaMessageCodec.decode(bytes);
+        assertEquals(ids, decoded.getIds());
+        assertEquals(CouponStatus.USED.getCode(), decoded.getStatus());
+    }
+
+    @Test
+    public void testEmptyAndLegacyJson() {
+        CouponKafkaMessage empty = CouponKafkaMessageCodec.decode(CouponKafkaMessageCodec.encode(new CouponKafkaMessage(CouponStatus.USED.getCode(), null)));
+        assertTrue(empty.getIds().isEmpty());
+
+        CouponKafkaMessage legacy = new CouponKafkaMessage(CouponStatus.EXPIRED.getCode(), Arrays.asList(3, 1));
+        CouponKafkaMessage decoded = CouponKafkaMessageCodec.decode(JSON.toJSONString(legacy).getBytes(StandardCharsets.UTF_8));
+        assertEquals(legacy, decoded);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testTruncatedMessage() {
+        byte[] bytes = CouponKafkaMessageCodec.encode(new CouponKafkaMessage(CouponStatus.USED.getCode(), Arrays.asList(1, 300, 70000)));
+        CouponKafkaMessageCodec.decode(Arrays.copyOf(bytes, bytes.length - 1));
+    }
+}
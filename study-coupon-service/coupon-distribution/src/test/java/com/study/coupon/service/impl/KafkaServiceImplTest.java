@@ -0,0 +1,50 @@
+package com.study.coupon.service.impl;
+
+import com.study.coupon.constant.Constant;
+import com.study.coupon.constant.CouponStatus;
+import com.study.coupon.vo.CouponKafkaMessage;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.junit.Test;
+
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * 批量消费优惠券状态变更消息的合并测试
+ */
+public class KafkaServiceImplTest {
+
+    @Test
+    public void testUsedWinsOverExpiredInSameBatch() {
+        // 优惠券1先被使用 之后到期队列又发出过期消息 优惠券2只有过期
+        List<ConsumerRecord<String, CouponKafkaMessage>> records = Arrays.asList(
+                record(0, CouponStatus.USED, 1),
+                record(1, CouponStatus.EXPIRED, 1, 2),
+                // 过期在前 已使用在后 同样以已使用为准
+                record(2, CouponStatus.EXPIRED, 3),
+                record(3, CouponStatus.USED, 3));
+
+        Map<CouponStatus, List<Integer>> status2Ids = KafkaServiceImpl.mergeStatus(records);
+        assertEquals(new HashSet<>(Arrays.asList(1, 3)), new HashSet<>(status2Ids.get(CouponStatus.USED)));
+        assertEquals(Collections.singletonList(2), status2Ids.get(CouponStatus.EXPIRED));
+        // 已使用的一组先执行
+        assertEquals(Arrays.asList(CouponStatus.USED, CouponStatus.EXPIRED), new ArrayList<>(status2Ids.keySet()));
+    }
+
+    @Test
+    public void testSkipsUsableAndUnparsedMessages() {
+        List<ConsumerRecord<String, CouponKafkaMessage>> records = new ArrayList<>();
+        records.add(record(0, CouponStatus.USABLE, 1));
+        records.add(new ConsumerRecord<>(Constant.TOPIC, 0, 1, null, null));
+        records.add(record(2, CouponStatus.EXPIRED, 2));
+
+        Map<CouponStatus, List<Integer>> status2Ids = KafkaServiceImpl.mergeStatus(records);
+        assertEquals(1, status2Ids.size());
+        assertEquals(Collections.singletonList(2), status2Ids.get(CouponStatus.EXPIRED));
+    }
+
+    private static ConsumerRecord<String, CouponKafkaMessage> record(long offset, CouponStatus status, Integer... ids) {
+        return new ConsumerRecord<>(Constant.TOPIC, 0, offset, null, new CouponKafkaMessage(status.getCode(), Arrays.asList(ids)));
+    }
+}
@@ -0,0 +1,125 @@
+package com.study.coupon.service.impl;
+
+import com.study.coupon.cache.TemplateReplica;
+import com.study.coupon.constant.CouponStatus;
+import com.study.coupon.dao.CouponDao;
+import com.study.coupon.entity.Coupon;
+import com.study.coupon.service.IAsyncService;
+import com.study.coupon.service.IRedisService;
+import com.study.coupon.vo.CouponPage;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnitRunner;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.*;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+/**
+ * 优惠券分页查询的游标和过期过滤测试
+ */
+@RunWith(MockitoJUnitRunner.class)
+public class UserServiceImplPageTest {
+
+    private static final Long USER_ID = 1001L;
+
+    private static final Integer USABLE = CouponStatus.USABLE.getCode();
+
+    private static final Integer USED = CouponStatus.USED.getCode();
+
+    @Mock
+    private IRedisService redisService;
+
+    @Mock
+    private IAsyncService asyncService;
+
+    @Mock
+    private CouponDao couponDao;
+
+    @Mock
+    private TemplateReplica templateReplica;
+
+    @InjectMocks
+    private UserServiceImpl userService;
+
+    @Before
+    public void setUp() {
+        ReflectionTestUtils.setField(userService, "defaultPageSize", 3);
+        ReflectionTestUtils.setField(userService, "maxPageSize", 5);
+    }
+
+    /**
+     * 过期时间为负数表示已过期 null表示不过期
+     */
+    private static Coupon coupon(int id, Long expireIn) {
+        Coupon coupon = new Coupon(1, USER_ID, "code" + id, CouponStatus.USABLE);
+        coupon.setId(id);
+        coupon.setExpireAt(null == expireIn ? null : System.currentTimeMillis() + expireIn);
+        return coupon;
+    }
+
+    private static List<Integer> ids(CouponPage page) {
+        return page.getCoupons().stream().map(Coupon::getId).collect(Collectors.toList());
+    }
+
+    @Test
+    public void testExpiredCouponsAreSkippedAndScanContinues() throws Exception {
+        // 第一批4条中有1条已过期 剔除后只有3条 不能判断是否还有下一页 需要从7之前继续读
+        when(redisService.getCachedCouponPage(USER_ID, USABLE, Integer.MAX_VALUE, 4)).thenReturn(Arrays.asList(
+                coupon(10, 60000L), coupon(9, -60000L), coupon(8, null), coupon(7, 60000L)));
+        when(redisService.getCachedCouponPage(USER_ID, USABLE, 7, 4)).thenReturn(Arrays.asList(
+                coupon(6, 60000L), coupon(5, -60000L)));
+
+        CouponPage page = userService.findCouponsByStatusPage(USER_ID, USABLE, null, null);
+        assertEquals(Arrays.asList(10, 8, 7), ids(page));
+        assertEquals(Integer.valueOf(7), page.getNextCursor());
+        verifyZeroInteractions(couponDao, asyncService);
+    }
+
+    @Test
+    public void testCursorContinuesBeforeLastId() throws Exception {
+        when(redisService.getCachedCouponPage(USER_ID, USABLE, 7, 3)).thenReturn(Arrays.asList(
+                coupon(6, -60000L), coupon(5, 60000L), coupon(4, 60000L)));
+        when(redisService.getCachedCouponPage(USER_ID, USABLE, 4, 3)).thenReturn(Arrays.asList(coupon(3, -60000L)));
+
+        // 最后一页 剔除过期的之后不足一页 没有下一页
+        CouponPage page = userService.findCouponsByStatusPage(USER_ID, USABLE, 7, 2);
+        assertEquals(Arrays.asList(5, 4), ids(page));
+        assertNull(page.getNextCursor());
+    }
+
+    @Test
+    public void testCacheMissReadsDatabaseAndLoadsCacheOnce() throws Exception {
+        when(redisService.getCachedCouponPage(eq(USER_ID), eq(USABLE), anyInt(), anyInt())).thenReturn(null);
+        when(couponDao.findPageByUserIdAndStatus(USER_ID, USABLE, Integer.MAX_VALUE, 4)).thenReturn(Arrays.asList(
+                coupon(10, 60000L), coupon(9, -60000L), coupon(8, 60000L), coupon(7, -60000L)));
+        when(couponDao.findPageByUserIdAndStatus(USER_ID, USABLE, 7, 4)).thenReturn(Arrays.asList(
+                coupon(6, 60000L), coupon(5, 60000L)));
+
+        CouponPage page = userService.findCouponsByStatusPage(USER_ID, USABLE, null, 3);
+        assertEquals(Arrays.asList(10, 8, 6), ids(page));
+        assertEquals(Integer.valueOf(6), page.getNextCursor());
+        // 缓存不存在时后续批次直接读数据库 只触发一次后台加载
+        verify(redisService, times(1)).getCachedCouponPage(anyLong(), anyInt(), anyInt(), anyInt());
+        verify(asyncService, times(1)).asyncLoadCouponCache(USER_ID, USABLE);
+    }
+
+    @Test
+    public void testOnlyUsableCouponsAreFilteredAndSizeIsCapped() throws Exception {
+        when(redisService.getCachedCouponPage(USER_ID, USED, Integer.MAX_VALUE, 6)).thenReturn(Arrays.asList(
+                coupon(9, -60000L), coupon(8, -60000L), coupon(7, -60000L), coupon(6, -60000L), coupon(5, -60000L), coupon(4, -60000L)));
+
+        // 每页最多5条 已使用的优惠券不按过期时间剔除
+        CouponPage page = userService.findCouponsByStatusPage(USER_ID, USED, null, 50);
+        assertEquals(Arrays.asList(9, 8, 7, 6, 5), ids(page));
+        assertEquals(Integer.valueOf(5), page.getNextCursor());
+    }
+}
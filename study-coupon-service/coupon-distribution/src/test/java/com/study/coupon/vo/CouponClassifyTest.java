@@ -0,0 +1,72 @@
+package com.study.coupon.vo;
+
+import com.study.coupon.constant.CouponStatus;
+import com.study.coupon.constant.PeriodType;
+import com.study.coupon.entity.Coupon;
+import org.junit.Test;
+
+import java.util.*;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.*;
+
+/**
+ * 优惠券分类测试
+ */
+public class CouponClassifyTest {
+
+    private static final long DAY = 24 * 60 * 60 * 1000L;
+
+    @Test
+    public void testFillExpireAt() {
+        Coupon shift = coupon(1, CouponStatus.USABLE, PeriodType.SHIFT, 3, 0L, new Date(1000L));
+        CouponClassify.fillExpireAt(shift);
+        assertEquals(Long.valueOf(1000L + 3 * DAY), shift.getExpireAt());
+
+        Coupon regular = coupon(2, CouponStatus.USABLE, PeriodType.REGULAR, 3, 5000L, null);
+        CouponClassify.fillExpireAt(regular);
+        assertEquals(Long.valueOf(5000L), regular.getExpireAt());
+    }
+
+    @Test
+    public void testSplitSortedUsableMatchesClassify() {
+        // classify使用系统当前时间 过期时间与当前时间至少相差1天 测试期间时间推移不影响结果
+        long now = System.currentTimeMillis();
+        List<Coupon> coupons = new ArrayList<>(Arrays.asList(
+                coupon(1, CouponStatus.USABLE, PeriodType.REGULAR, 1, now + DAY, null),
+                coupon(2, CouponStatus.USABLE, PeriodType.SHIFT, 10, 0L, new Date(now - 20 * DAY)),
+                coupon(3, CouponStatus.USABLE, PeriodType.REGULAR, 1, now - DAY, null),
+                coupon(4, CouponStatus.USABLE, PeriodType.SHIFT, 10, 0L, new Date(now)),
+                coupon(5, CouponStatus.USABLE, PeriodType.REGULAR, 1, now - 2 * DAY, null)));
+        coupons.forEach(CouponClassify::fillExpireAt);
+        CouponClassify.sortByExpireAt(coupons);
+
+        CouponClassify split = CouponClassify.splitSortedUsable(coupons, now);
+        CouponClassify classify = CouponClassify.classify(coupons);
+        assertEquals(ids(classify.getUsable()), ids(split.getUsable()));
+        assertEquals(ids(classify.getExpired()), ids(split.getExpired()));
+        assertTrue(split.getUsed().isEmpty());
+        assertEquals(new HashSet<>(Arrays.asList(1, 4)), ids(split.getUsable()));
+        assertEquals(new HashSet<>(Arrays.asList(2, 3, 5)), ids(split.getExpired()));
+
+        assertEquals(0, CouponClassify.splitSortedUsable(coupons, 0).getExpired().size());
+        assertEquals(5, CouponClassify.splitSortedUsable(coupons, Long.MAX_VALUE - 1).getExpired().size());
+    }
+
+    private static Set<Integer> ids(List<Coupon> coupons) {
+        return coupons.stream().map(Coupon::getId).collect(Collectors.toSet());
+    }
+
+    private static Coupon coupon(Integer id, CouponStatus status, PeriodType period, Integer gap, Long deadline, Date assignTime) {
+        TemplateRule rule = new TemplateRule();
+        rule.setExpiration(new TemplateRule.Expiration(period.getCode(), gap, deadline));
+        CouponTemplateSDK template = new CouponTemplateSDK();
+        template.setRule(rule);
+
+        Coupon coupon = new Coupon(1, 1L, "code" + id, status);
+        coupon.setId(id);
+        coupon.setAssignTime(assignTime);
+        coupon.setTemplateSDK(template);
+        return coupon;
+    }
+}
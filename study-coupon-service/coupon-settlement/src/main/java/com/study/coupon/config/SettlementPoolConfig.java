@@ -0,0 +1,43 @@
+package com.study.coupon.config;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+
+import java.util.concurrent.ThreadPoolExecutor;
+
+/**
+ * 批量结算使用的线程池
+ */
+@Configuration
+public class SettlementPoolConfig {
+
+    // 核心线程池大小
+    @Value("${coupon.settlement.batch.core-pool-size:8}")
+    private int corePoolSize;
+
+    // 最大线程池大小
+    @Value("${coupon.settlement.batch.max-pool-size:16}")
+    private int maxPoolSize;
+
+    // 任务队列容量
+    @Value("${coupon.settlement.batch.queue-capacity:200}")
+    private int queueCapacity;
+
+    @Bean
+    public ThreadPoolTaskExecutor settlementBatchExecutor() {
+        ThreadPoolTaskExecutor executor = new ThreadPoolTaskExecutor();
+        executor.setCorePoolSize(corePoolSize);
+        executor.setMaxPoolSize(maxPoolSize);
+        executor.setQueueCapacity(queueCapacity);
+        executor.setKeepAliveSeconds(60);
+        executor.setThreadNamePrefix("StudySettlementBatch_");
+        executor.setWaitForTasksToCompleteOnShutdown(true);
+        executor.setAwaitTerminationSeconds(60);
+        // 拒绝策略 CallerRunsPolicy(队列满时由请求线程自己计算 相当于对批量请求限流)
+        executor.setRejectedExecutionHandler(new ThreadPoolExecutor.CallerRunsPolicy());
+        executor.initialize();
+        return executor;
+    }
+}
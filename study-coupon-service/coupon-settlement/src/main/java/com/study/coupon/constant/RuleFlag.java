@@ -15,10 +15,8 @@ public enum RuleFlag {
     ZHEKOU("折扣券的计算规则"),
     LIJIAN("立减券的计算规则"),
 
-    // 多类别优惠券定义
-    MANJIAN_ZHEKOU("满减券+折扣券的计算规则");
-
-    // TODO 更多优惠券类别的组合
+    // 多类别优惠券定义 按立减->满减->折扣的顺序叠加
+    STACKING("多类优惠券叠加的计算规则");
 
     // 规则描述
     private String description;
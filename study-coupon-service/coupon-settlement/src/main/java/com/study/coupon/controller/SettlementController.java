@@ -2,7 +2,10 @@ package com.study.coupon.controller;
 
 import com.alibaba.fastjson.JSON;
 import com.study.coupon.exception.CouponException;
+import com.study.coupon.executor.BatchExecuteManager;
+import com.study.coupon.executor.CouponOptimizer;
 import com.study.coupon.executor.ExecuteManager;
+import com.study.coupon.vo.SettlementCandidates;
 import com.study.coupon.vo.SettlementInfo;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -10,6 +13,8 @@ import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.RequestBody;
 import org.springframework.web.bind.annotation.RestController;
 
+import java.util.List;
+
 /**
  * 结算服务Controller
  */
@@ -21,6 +26,14 @@ public class SettlementController {
     @Autowired
     private ExecuteManager executeManager;
 
+    // 批量结算管理器
+    @Autowired
+    private BatchExecuteManager batchExecuteManager;
+
+    // 最优优惠券组合查找
+    @Autowired
+    private CouponOptimizer couponOptimizer;
+
     /**
      * 优惠券结算
      * @param settlement
@@ -32,4 +45,40 @@ public class SettlementController {
         log.info("settlement:{}", JSON.toJSONString(settlement));
         return executeManager.computeRule(settlement);
     }
+
+    /**
+     * 批量优惠券结算 结果与请求顺序一致
+     * @param settlements
+     * @return
+     * @throws CouponException
+     */
+    @PostMapping("/settlement/compute/batch")
+    public List<SettlementInfo> computeRules(@RequestBody List<SettlementInfo> settlements) throws CouponException {
+        log.info("batch settlement size:{}", null == settlements ? 0 : settlements.size());
+        return batchExecuteManager.computeRules(settlements);
+    }
+
+    /**
+     * 同一个购物车的多组候选优惠券结算 结果与候选组顺序一致
+     * @param candidates
+     * @return
+     * @throws CouponException
+     */
+    @PostMapping("/settlement/compute/candidates")
+    public List<SettlementInfo> computeCandidates(@RequestBody SettlementCandidates candidates) throws CouponException {
+        log.info("settlement candidates:{},{}", candidates.getUserId(), null == candidates.getCandidates() ? 0 : candidates.getCandidates().size());
+        return batchExecuteManager.computeCandidates(candidates);
+    }
+
+    /**
+     * 从用户所有可用的优惠券中查找结算金额最低的组合
+     * @param settlement 优惠券列表为用户所有可用的优惠券
+     * @return
+     * @throws CouponException
+     */
+    @PostMapping("/settlement/optimize")
+    public SettlementInfo optimize(@RequestBody SettlementInfo settlement) throws CouponException {
+        log.info("optimize settlement:{},{}", settlement.getUserId(), null == settlement.getCouponAndTemplateInfos() ? 0 : settlement.getCouponAndTemplateInfos().size());
+        return couponOptimizer.optimize(settlement);
+    }
 }
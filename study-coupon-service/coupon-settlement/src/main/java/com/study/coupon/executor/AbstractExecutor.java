@@ -1,49 +1,60 @@
 package com.study.coupon.executor;
 
-import com.alibaba.fastjson.JSON;
-import com.study.coupon.vo.GoodsInfo;
+import com.study.coupon.executor.plan.GoodsAggregate;
+import com.study.coupon.executor.plan.RulePlan;
+import com.study.coupon.executor.plan.RulePlanCache;
 import com.study.coupon.vo.SettlementInfo;
-import org.apache.commons.collections4.CollectionUtils;
+import org.springframework.beans.factory.annotation.Autowired;
 
-import java.math.BigDecimal;
 import java.util.Collections;
-import java.util.List;
-import java.util.stream.Collectors;
 
 /**
  * 规则执行器抽象类定义通用方法
  */
 public abstract class AbstractExecutor {
 
+    // 编译后的结算规则缓存
+    @Autowired
+    private RulePlanCache rulePlanCache;
+
+    /**
+     * 获取优惠券模板编译后的结算规则
+     * @param ct
+     * @return
+     */
+    protected RulePlan plan(SettlementInfo.CouponAndTemplateInfo ct) {
+        return rulePlanCache.get(ct.getTemplate());
+    }
+
     /**
      * 校验商品类型与优惠券是否匹配
      * 需要注意:
      * 1.这里实现的是单品类优惠券的校验
      * 2.商品只需要有一个优惠券要求的商品类型去匹配就可以
      * @param settlement
+     * @param goods 商品汇总信息
      * @return
      */
-    @SuppressWarnings("all")
-    protected boolean isGoodsTypeSatisfy(SettlementInfo settlement) {
-        List<Integer> goodsType = settlement.getGoodsInfos().stream().map(GoodsInfo::getType).collect(Collectors.toList());
-        List<Integer> templateGoodsType = JSON.parseObject(settlement.getCouponAndTemplateInfos().get(0).getTemplate().getRule().getUsage().getGoodsType(), List.class);
+    protected boolean isGoodsTypeSatisfy(SettlementInfo settlement, GoodsAggregate goods) {
+        long goodsType = goods.getGoodsTypeMask();
+        long templateGoodsType = plan(settlement.getCouponAndTemplateInfos().get(0)).getGoodsTypeMask();
 
         // 存在交集即可
-        return CollectionUtils.isNotEmpty(CollectionUtils.intersection(goodsType, templateGoodsType));
+        return (goodsType & templateGoodsType) != 0;
     }
 
     /**
      * 处理商品类型与优惠券限制不匹配的情况
      * @param settlement 用户传递的结算信息
-     * @param goodsSum 商品总价
+     * @param goods 商品汇总信息
      * @return
      */
-    protected SettlementInfo processGoodsTypeNotSatisfy(SettlementInfo settlement, double goodsSum) {
-        boolean isGoodsTypeSatify = isGoodsTypeSatisfy(settlement);
+    protected SettlementInfo processGoodsTypeNotSatisfy(SettlementInfo settlement, GoodsAggregate goods) {
+        boolean isGoodsTypeSatify = isGoodsTypeSatisfy(settlement, goods);
 
         // 当商品类型与优惠券限制不匹配则需要清除settlement中的优惠券数据
         if (!isGoodsTypeSatify) {
-            settlement.setCost(goodsSum);
+            settlement.setCost(goods.getGoodsSum());
             settlement.setCouponAndTemplateInfos(Collections.emptyList());
             return settlement;
         }
@@ -52,28 +63,19 @@ public abstract class AbstractExecutor {
     }
 
     /**
-     * 商品总价
-     * @param goodsInfos
-     * @return
-     */
-    protected double goodsCostSum(List<GoodsInfo> goodsInfos) {
-        return goodsInfos.stream().mapToDouble(g -> g.getPrice() * g.getCount()).sum();
-    }
-
-    /**
-     * 保留两位小数
-     * @param value
-     * @return
+     * 结算金额 不低于最小支付费用
+     * @param cents 优惠后的金额(分)
+     * @return 结算金额(元)
      */
-    protected double retain2Decimals(double value) {
-        return new BigDecimal(value).setScale(2, BigDecimal.ROUND_HALF_UP).doubleValue();
+    protected double costOf(long cents) {
+        return MoneyMath.toYuan(Math.max(cents, minCostCents()));
     }
 
     /**
-     * 最小支付费用
+     * 最小支付费用(分)
      * @return
      */
-    protected double minCost() {
-        return 0.1;
+    protected long minCostCents() {
+        return 10L;
     }
 }
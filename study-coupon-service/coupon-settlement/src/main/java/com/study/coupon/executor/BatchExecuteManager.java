@@ -0,0 +1,131 @@
+package com.study.coupon.executor;
+
+import com.study.coupon.exception.CouponException;
+import com.study.coupon.executor.plan.GoodsAggregate;
+import com.study.coupon.vo.SettlementCandidates;
+import com.study.coupon.vo.SettlementInfo;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.collections4.CollectionUtils;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * 批量结算管理器
+ * 1.多个结算请求在线程池中并行计算 结果按请求顺序返回
+ * 2.同一个购物车的多组候选优惠券只汇总一次商品总价和商品类型
+ * 某一项计算失败不影响其他项 失败项的结算金额为-1 与服务降级时的返回一致
+ */
+@Slf4j
+@Component
+public class BatchExecuteManager {
+
+    // 结算规则执行管理器
+    @Autowired
+    private ExecuteManager executeManager;
+
+    // 批量结算线程池
+    @Autowired
+    @Qualifier("settlementBatchExecutor")
+    private ThreadPoolTaskExecutor settlementBatchExecutor;
+
+    // 一次批量结算的最大个数
+    @Value("${coupon.settlement.batch.max-size:100}")
+    private int maxSize;
+
+    /**
+     * 批量结算多个请求
+     * @param settlements
+     * @return 与请求顺序一致的结算结果
+     * @throws CouponException
+     */
+    public List<SettlementInfo> computeRules(List<SettlementInfo> settlements) throws CouponException {
+        checkSize(settlements);
+        return compute(settlements, null);
+    }
+
+    /**
+     * 计算同一个购物车的多组候选优惠券
+     * @param candidates
+     * @return 与候选组顺序一致的结算结果
+     * @throws CouponException
+     */
+    public List<SettlementInfo> computeCandidates(SettlementCandidates candidates) throws CouponException {
+        checkSize(candidates.getCandidates());
+        if (CollectionUtils.isEmpty(candidates.getGoodsInfos())) {
+            throw new CouponException("购物车商品不能为空");
+        }
+
+        GoodsAggregate shared = GoodsAggregate.of(candidates.getGoodsInfos());
+        List<SettlementInfo> settlements = new ArrayList<>(candidates.getCandidates().size());
+        for (List<SettlementInfo.CouponAndTemplateInfo> ctInfos : candidates.getCandidates()) {
+            // 执行器会修改结算对象的优惠券列表 每组使用独立的结算对象和列表 商品列表只读可以共用
+            settlements.add(new SettlementInfo(candidates.getUserId(), candidates.getGoodsInfos(), new ArrayList<>(ctInfos), false, null));
+        }
+        return compute(settlements, shared);
+    }
+
+    private void checkSize(List<?> items) throws CouponException {
+        if (CollectionUtils.isEmpty(items)) {
+            throw new CouponException("批量结算的请求不能为空");
+        }
+        if (items.size() > maxSize) {
+            throw new CouponException("批量结算的个数超过上限:" + maxSize);
+        }
+    }
+
+    /**
+     * 并行计算 结果按请求顺序返回
+     * @param settlements
+     * @param shared 共用的商品汇总信息 为null时每项单独汇总
+     * @return
+     */
+    private List<SettlementInfo> compute(List<SettlementInfo> settlements, GoodsAggregate shared) {
+        // 只有一项时不需要切换线程
+        if (settlements.size() == 1) {
+            List<SettlementInfo> result = new ArrayList<>(1);
+            result.add(computeOne(settlements.get(0), shared));
+            return result;
+        }
+
+        List<CompletableFuture<SettlementInfo>> futures = new ArrayList<>(settlements.size());
+        for (SettlementInfo settlement : settlements) {
+            futures.add(CompletableFuture.supplyAsync(() -> computeOne(settlement, shared), settlementBatchExecutor));
+        }
+
+        List<SettlementInfo> result = new ArrayList<>(futures.size());
+        futures.forEach(f -> result.add(f.join()));
+        return result;
+    }
+
+    private SettlementInfo computeOne(SettlementInfo settlement, GoodsAggregate shared) {
+        try {
+            GoodsAggregate goods = null == shared ? GoodsAggregate.of(settlement.getGoodsInfos()) : shared;
+            return executeManager.computeRule(settlement, goods);
+        } catch (CouponException ex) {
+            // 优惠券组合不满足规则是正常的业务结果 不需要错误日志和堆栈
+            log.info("批量结算中的一项不满足规则:{}", ex.getMessage());
+            return failed(settlement);
+        } catch (Exception ex) {
+            log.error("批量结算中的一项计算失败", ex);
+            return failed(settlement);
+        }
+    }
+
+    /**
+     * 标记一项结算不可用
+     * @param settlement
+     * @return
+     */
+    private static SettlementInfo failed(SettlementInfo settlement) {
+        settlement.setEmploy(false);
+        settlement.setCost(-1.0);
+        return settlement;
+    }
+}
@@ -0,0 +1,238 @@
+package com.study.coupon.executor;
+
+import com.study.coupon.constant.CouponCategory;
+import com.study.coupon.exception.CouponException;
+import com.study.coupon.executor.plan.GoodsAggregate;
+import com.study.coupon.executor.plan.RulePlan;
+import com.study.coupon.executor.plan.RulePlanCache;
+import com.study.coupon.vo.SettlementInfo;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.collections4.CollectionUtils;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.*;
+
+/**
+ * 最优优惠券组合查找
+ * 输入用户所有可用的优惠券和购物车 返回结算金额最低的优惠券组合
+ * 1.同一模板的优惠券结算结果相同 每个模板只取一张
+ * 2.同一类别的优惠券不能叠加 按类别逐层搜索 每层选择该类别的一张或不选
+ * 3.每张优惠券单独作用于商品总价时的优惠是叠加后优惠的上界 已选上界+剩余类别的最大上界不超过当前最优时剪枝
+ * 4.叶子节点交给ExecuteManager精确计算 保证与/settlement/compute的结果一致
+ * 超过时间预算时返回已找到的最优组合
+ */
+@Slf4j
+@Component
+public class CouponOptimizer {
+
+    // 上界比较时允许的舍入误差 结算金额按两位小数四舍五入
+    private static final double ROUNDING_TOLERANCE = 0.005;
+
+    // 结算规则执行管理器
+    @Autowired
+    private ExecuteManager executeManager;
+
+    // 编译后的结算规则缓存
+    @Autowired
+    private RulePlanCache rulePlanCache;
+
+    // 单次查找的时间预算
+    @Value("${coupon.settlement.optimize.budget-ms:50}")
+    private long budgetMs;
+
+    /**
+     * 查找结算金额最低的优惠券组合
+     * @param settlement 优惠券列表为用户所有可用的优惠券
+     * @return 使用最优组合的结算结果 没有可用的组合时返回商品原价和空的优惠券列表
+     * @throws CouponException
+     */
+    public SettlementInfo optimize(SettlementInfo settlement) throws CouponException {
+        if (CollectionUtils.isEmpty(settlement.getGoodsInfos())) {
+            throw new CouponException("购物车商品不能为空");
+        }
+        GoodsAggregate goods = GoodsAggregate.of(settlement.getGoodsInfos());
+        Search search = new Search(settlement, goods, System.nanoTime() + budgetMs * 1_000_000L);
+
+        if (CollectionUtils.isNotEmpty(settlement.getCouponAndTemplateInfos())) {
+            search.prepare(settlement.getCouponAndTemplateInfos());
+            search.dfs(0, 0.0);
+        }
+        log.debug("最优优惠券组合:计算{}次,剪枝{}次,超时{},优惠{}", search.evaluated, search.pruned, search.timeout, search.bestDiscount);
+        return search.best;
+    }
+
+    /**
+     * 优惠券单独作用于商品总价时的优惠 作为叠加使用时优惠的上界
+     * 叠加时前面的优惠只会让价格变低 满减可能不再满足基准 折扣的基数也会变小
+     * @param plan
+     * @param goodsSum
+     * @return
+     */
+    static double discountUpperBound(RulePlan plan, double goodsSum) {
+        switch (plan.getCategory()) {
+            case MANJIAN:
+                return goodsSum >= plan.getBase() ? plan.getQuota() : 0.0;
+            case ZHEKOU:
+                return goodsSum * (100 - plan.getQuota()) / 100.0;
+            case LIJIAN:
+                return Math.min(plan.getQuota(), goodsSum);
+            default:
+                return goodsSum;
+        }
+    }
+
+    /**
+     * 一次查找的状态
+     */
+    private class Search {
+
+        final SettlementInfo request;
+
+        final GoodsAggregate goods;
+
+        final long deadline;
+
+        // 按类别分层的候选 每层按上界降序
+        final List<List<Candidate>> levels = new ArrayList<>();
+
+        // suffixBound[i]: 第i层及之后每层最大上界之和
+        double[] suffixBound;
+
+        // 当前选择的优惠券
+        final Deque<Candidate> chosen = new ArrayDeque<>();
+
+        SettlementInfo best;
+
+        double bestDiscount = 0.0;
+
+        int evaluated;
+
+        int pruned;
+
+        boolean timeout;
+
+        Search(SettlementInfo request, GoodsAggregate goods, long deadline) {
+            this.request = request;
+            this.goods = goods;
+            this.deadline = deadline;
+            this.best = new SettlementInfo(request.getUserId(), request.getGoodsInfos(), Collections.emptyList(), false, goods.getGoodsSum());
+        }
+
+        void prepare(List<SettlementInfo.CouponAndTemplateInfo> coupons) {
+            Map<Integer, Candidate> byTemplate = new LinkedHashMap<>();
+            for (SettlementInfo.CouponAndTemplateInfo ct : coupons) {
+                if (!byTemplate.containsKey(ct.getTemplate().getId())) {
+                    RulePlan plan = rulePlanCache.get(ct.getTemplate());
+                    byTemplate.put(ct.getTemplate().getId(), new Candidate(ct, plan, discountUpperBound(plan, goods.getGoodsSum())));
+                }
+            }
+
+            Map<CouponCategory, List<Candidate>> byCategory = new EnumMap<>(CouponCategory.class);
+            byTemplate.values().forEach(c -> byCategory.computeIfAbsent(c.plan.getCategory(), k -> new ArrayList<>()).add(c));
+            byCategory.values().forEach(level -> {
+                level.sort((a, b) -> Double.compare(b.bound, a.bound));
+                levels.add(level);
+            });
+
+            suffixBound = new double[levels.size() + 1];
+            for (int i = levels.size() - 1; i >= 0; --i) {
+                suffixBound[i] = suffixBound[i + 1] + levels.get(i).get(0).bound;
+            }
+        }
+
+        void dfs(int level, double chosenBound) {
+            if (timeout) {
+                return;
+            }
+            if (System.nanoTime() > deadline) {
+                timeout = true;
+                return;
+            }
+            if (level == levels.size()) {
+                if (!chosen.isEmpty()) {
+                    evaluate();
+                }
+                return;
+            }
+            if (chosenBound + suffixBound[level] + ROUNDING_TOLERANCE <= bestDiscount) {
+                ++pruned;
+                return;
+            }
+
+            for (Candidate candidate : levels.get(level)) {
+                if (chosenBound + candidate.bound + suffixBound[level + 1] + ROUNDING_TOLERANCE <= bestDiscount) {
+                    // 同层按上界降序 后面的候选也不会更好
+                    ++pruned;
+                    break;
+                }
+                if (!isStackable(candidate)) {
+                    continue;
+                }
+                chosen.addLast(candidate);
+                dfs(level + 1, chosenBound + candidate.bound);
+                chosen.removeLast();
+            }
+            // 不使用这一层的优惠券
+            dfs(level + 1, chosenBound);
+        }
+
+        /**
+         * 候选能否加入当前的组合: 类别组合被支持 并且与已选的每一张都可以共用
+         * @param candidate
+         * @return
+         */
+        boolean isStackable(Candidate candidate) {
+            List<CouponCategory> categories = new ArrayList<>(chosen.size() + 1);
+            for (Candidate c : chosen) {
+                if (!c.plan.canShareWith(candidate.plan)) {
+                    return false;
+                }
+                categories.add(c.plan.getCategory());
+            }
+            categories.add(candidate.plan.getCategory());
+            return executeManager.isSupported(categories);
+        }
+
+        void evaluate() {
+            ++evaluated;
+            List<SettlementInfo.CouponAndTemplateInfo> ctInfos = new ArrayList<>(chosen.size());
+            chosen.forEach(c -> ctInfos.add(c.ct));
+            SettlementInfo settlement = new SettlementInfo(request.getUserId(), request.getGoodsInfos(), ctInfos, false, null);
+            try {
+                executeManager.computeRule(settlement, goods);
+            } catch (CouponException ex) {
+                log.debug("优惠券组合不支持结算:{}", ex.getMessage());
+                return;
+            }
+            if (CollectionUtils.isEmpty(settlement.getCouponAndTemplateInfos()) || null == settlement.getCost()) {
+                return;
+            }
+            double discount = goods.getGoodsSum() - settlement.getCost();
+            if (discount > bestDiscount) {
+                bestDiscount = discount;
+                best = settlement;
+            }
+        }
+    }
+
+    /**
+     * 候选优惠券
+     */
+    private static class Candidate {
+
+        final SettlementInfo.CouponAndTemplateInfo ct;
+
+        final RulePlan plan;
+
+        // 优惠上界
+        final double bound;
+
+        Candidate(SettlementInfo.CouponAndTemplateInfo ct, RulePlan plan, double bound) {
+            this.ct = ct;
+            this.plan = plan;
+            this.bound = bound;
+        }
+    }
+}
@@ -3,16 +3,14 @@ package com.study.coupon.executor;
 import com.study.coupon.constant.CouponCategory;
 import com.study.coupon.constant.RuleFlag;
 import com.study.coupon.exception.CouponException;
+import com.study.coupon.executor.plan.GoodsAggregate;
 import com.study.coupon.vo.SettlementInfo;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.BeansException;
 import org.springframework.beans.factory.config.BeanPostProcessor;
 import org.springframework.stereotype.Component;
 
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
+import java.util.*;
 
 /**
  * 优惠券结算规则执行管理器
@@ -36,6 +34,18 @@ public class ExecuteManager implements BeanPostProcessor {
      * @throws CouponException
      */
     public SettlementInfo computeRule(SettlementInfo settlement) throws CouponException {
+        return computeRule(settlement, GoodsAggregate.of(settlement.getGoodsInfos()));
+    }
+
+    /**
+     * 优惠券结算规则计算入口 使用已经汇总好的商品信息
+     * 同一个购物车的多组优惠券共用一份商品汇总
+     * @param settlement
+     * @param goods 商品汇总信息
+     * @return
+     * @throws CouponException
+     */
+    public SettlementInfo computeRule(SettlementInfo settlement, GoodsAggregate goods) throws CouponException {
         SettlementInfo result = null;
 
         // 单类优惠券
@@ -45,32 +55,46 @@ public class ExecuteManager implements BeanPostProcessor {
 
             switch (category) {
                 case MANJIAN:
-                    result = executorIndex.get(RuleFlag.MANJIAN).computeRule(settlement);
+                    result = executorIndex.get(RuleFlag.MANJIAN).computeRule(settlement, goods);
                     break;
                 case ZHEKOU:
-                    result = executorIndex.get(RuleFlag.ZHEKOU).computeRule(settlement);
+                    result = executorIndex.get(RuleFlag.ZHEKOU).computeRule(settlement, goods);
                     break;
                 case LIJIAN:
-                    result = executorIndex.get(RuleFlag.LIJIAN).computeRule(settlement);
+                    result = executorIndex.get(RuleFlag.LIJIAN).computeRule(settlement, goods);
                     break;
             }
         } else {
             // 多类别优惠券
             List<CouponCategory> categories = new ArrayList<>(settlement.getCouponAndTemplateInfos().size());
             settlement.getCouponAndTemplateInfos().forEach(ct -> categories.add(CouponCategory.of(ct.getTemplate().getCategory())));
-            if (categories.size() != 2) {
-                throw new CouponException("暂时不支持两类以上的优惠券叠加使用");
-            } else {
-                if (categories.contains(CouponCategory.MANJIAN) && categories.contains(CouponCategory.ZHEKOU)) {
-                    result = executorIndex.get(RuleFlag.MANJIAN_ZHEKOU).computeRule(settlement);
-                } else {
-                    throw new CouponException("暂时不支持当前的优惠券叠加使用");
-                }
+            if (!isSupported(categories)) {
+                throw new CouponException("同一类优惠券不能叠加使用或当前的优惠券不支持叠加使用");
             }
+            result = executorIndex.get(RuleFlag.STACKING).computeRule(settlement, goods);
         }
         return settlement;
     }
 
+    /**
+     * 是否支持这些类别的优惠券一起结算 与computeRule的分派规则一致
+     * @param categories 每张优惠券的类别
+     * @return
+     */
+    public boolean isSupported(List<CouponCategory> categories) {
+        if (categories.size() == 1) {
+            return true;
+        }
+        // 多类叠加: 每类最多一张 并且每类都有对应的叠加阶段
+        Set<CouponCategory> distinct = EnumSet.noneOf(CouponCategory.class);
+        for (CouponCategory category : categories) {
+            if (null == StackingStage.of(category) || !distinct.add(category)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
     /**
      * 在bean初始化之前去执行
      * @param bean
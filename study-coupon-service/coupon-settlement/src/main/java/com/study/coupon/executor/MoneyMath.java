@@ -0,0 +1,112 @@
+package com.study.coupon.executor;
+
+import com.study.coupon.vo.GoodsInfo;
+
+import java.math.BigDecimal;
+import java.util.List;
+
+/**
+ * 结算金额计算 金额以分为单位用long表示
+ * 结果与BigDecimal按十进制计算并四舍五入(HALF_UP)到分完全一致:
+ * 1.元转分时以double的十进制表示(BigDecimal.valueOf)为准 而不是它的二进制精确值
+ * 2.折扣等除法只在最后一步四舍五入
+ * 价格都是整分时不创建任何对象 只有出现分以下的价格时才退回到BigDecimal
+ * 支持的金额范围为正负2^53分以内
+ */
+public final class MoneyMath {
+
+    // 1元 = 100分
+    public static final long CENTS_PER_YUAN = 100L;
+
+    // 判断double是否为整分的误差 整分的价格乘以100后与整数的误差远小于该值
+    private static final double CENT_TOLERANCE = 1e-6;
+
+    private MoneyMath() {
+    }
+
+    /**
+     * 元转分 四舍五入
+     * @param yuan
+     * @return
+     */
+    public static long toCents(double yuan) {
+        double scaled = yuan * CENTS_PER_YUAN;
+        double rounded = Math.rint(scaled);
+        if (Math.abs(scaled - rounded) < CENT_TOLERANCE) {
+            // 十进制表示不超过两位小数(或与整分的差远小于半分) 四舍五入的结果就是最近的整数
+            return (long) rounded;
+        }
+        return BigDecimal.valueOf(yuan).setScale(2, BigDecimal.ROUND_HALF_UP).unscaledValue().longValueExact();
+    }
+
+    /**
+     * 整数元转分
+     * @param yuan
+     * @return
+     */
+    public static long toCents(int yuan) {
+        return yuan * CENTS_PER_YUAN;
+    }
+
+    /**
+     * 分转元
+     * @param cents
+     * @return
+     */
+    public static double toYuan(long cents) {
+        return cents / (double) CENTS_PER_YUAN;
+    }
+
+    /**
+     * 商品总价 即所有商品 单价*数量 之和四舍五入到分
+     * @param goodsInfos
+     * @return
+     */
+    public static long goodsSumCents(List<GoodsInfo> goodsInfos) {
+        long sum = 0L;
+        for (GoodsInfo goodsInfo : goodsInfos) {
+            double rounded = Math.rint(goodsInfo.getPrice() * CENTS_PER_YUAN);
+            // 整分转回元后与单价完全相同 十进制表示才不超过两位小数
+            // 不能用误差判断 分以下的微小差额乘以数量后会超过半分(如0.1000000001 * 10^8)
+            if (rounded / CENTS_PER_YUAN != goodsInfo.getPrice()) {
+                // 单价不是整分 各项之和要按十进制精确计算后再四舍五入
+                return exactGoodsSumCents(goodsInfos);
+            }
+            sum = Math.addExact(sum, Math.multiplyExact((long) rounded, goodsInfo.getCount()));
+        }
+        return sum;
+    }
+
+    /**
+     * 按百分比计算 四舍五入到分 如85折: applyPercent(cents, 85)
+     * @param cents
+     * @param percent
+     * @return
+     */
+    public static long applyPercent(long cents, int percent) {
+        return divideHalfUp(Math.multiplyExact(cents, percent), 100L);
+    }
+
+    /**
+     * 整数除法 四舍五入(HALF_UP 0.5远离0)
+     * @param dividend
+     * @param divisor 必须为正数
+     * @return
+     */
+    public static long divideHalfUp(long dividend, long divisor) {
+        long quotient = dividend / divisor;
+        long remainder = dividend % divisor;
+        if (Math.abs(remainder) * 2 >= divisor) {
+            quotient += dividend < 0 ? -1 : 1;
+        }
+        return quotient;
+    }
+
+    private static long exactGoodsSumCents(List<GoodsInfo> goodsInfos) {
+        BigDecimal sum = BigDecimal.ZERO;
+        for (GoodsInfo goodsInfo : goodsInfos) {
+            sum = sum.add(BigDecimal.valueOf(goodsInfo.getPrice()).multiply(BigDecimal.valueOf(goodsInfo.getCount())));
+        }
+        return sum.setScale(2, BigDecimal.ROUND_HALF_UP).unscaledValue().longValueExact();
+    }
+}
@@ -1,6 +1,7 @@
 package com.study.coupon.executor;
 
 import com.study.coupon.constant.RuleFlag;
+import com.study.coupon.executor.plan.GoodsAggregate;
 import com.study.coupon.vo.SettlementInfo;
 
 /**
@@ -12,5 +13,10 @@ public interface RuleExecutor {
     RuleFlag ruleConfig();
 
     // 优惠券规则计算
-    SettlementInfo computeRule(SettlementInfo settlement);
+    default SettlementInfo computeRule(SettlementInfo settlement) {
+        return computeRule(settlement, GoodsAggregate.of(settlement.getGoodsInfos()));
+    }
+
+    // 优惠券规则计算 使用已经汇总好的商品信息
+    SettlementInfo computeRule(SettlementInfo settlement, GoodsAggregate goods);
 }
@@ -0,0 +1,71 @@
+package com.study.coupon.executor;
+
+import com.study.coupon.constant.CouponCategory;
+import com.study.coupon.executor.plan.RulePlan;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+/**
+ * 多类优惠券叠加时每一类优惠券的计算阶段
+ * 按定义顺序依次作用于上一阶段的结果 每类优惠券最多一张
+ * 新增优惠券类别时在这里加一个阶段即可
+ */
+@Getter
+@AllArgsConstructor
+public enum StackingStage {
+
+    // 立减 直接减去额度
+    LIJIAN(CouponCategory.LIJIAN) {
+        @Override
+        public long apply(RulePlan plan, long cents) {
+            return cents - MoneyMath.toCents(plan.getQuota());
+        }
+    },
+
+    // 满减 当前价格达到基准才能使用
+    MANJIAN(CouponCategory.MANJIAN) {
+        @Override
+        public long apply(RulePlan plan, long cents) {
+            if (cents < MoneyMath.toCents(plan.getBase())) {
+                return NOT_APPLICABLE;
+            }
+            return cents - MoneyMath.toCents(plan.getQuota());
+        }
+    },
+
+    // 折扣 按百分比打折
+    ZHEKOU(CouponCategory.ZHEKOU) {
+        @Override
+        public long apply(RulePlan plan, long cents) {
+            return MoneyMath.applyPercent(cents, plan.getQuota());
+        }
+    };
+
+    // 优惠券不满足使用条件 价格不变
+    public static final long NOT_APPLICABLE = Long.MIN_VALUE;
+
+    // 这一阶段对应的优惠券类别
+    private CouponCategory category;
+
+    /**
+     * 使用优惠券
+     * @param plan 优惠券编译后的结算规则
+     * @param cents 上一阶段之后的价格(分)
+     * @return 使用之后的价格(分) 不满足使用条件时返回NOT_APPLICABLE
+     */
+    public abstract long apply(RulePlan plan, long cents);
+
+    /**
+     * 优惠券类别对应的阶段
+     * @param category
+     * @return 没有对应阶段的类别返回null
+     */
+    public static StackingStage of(CouponCategory category) {
+        for (StackingStage stage : values()) {
+            if (stage.category == category) {
+                return stage;
+            }
+        }
+        return null;
+    }
+}
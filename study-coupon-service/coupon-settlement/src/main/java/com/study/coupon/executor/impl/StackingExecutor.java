@@ -0,0 +1,134 @@
+package com.study.coupon.executor.impl;
+
+import com.study.coupon.constant.RuleFlag;
+import com.study.coupon.executor.AbstractExecutor;
+import com.study.coupon.executor.RuleExecutor;
+import com.study.coupon.executor.StackingStage;
+import com.study.coupon.executor.plan.GoodsAggregate;
+import com.study.coupon.executor.plan.RulePlan;
+import com.study.coupon.vo.SettlementInfo;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+
+/**
+ * 多类优惠券叠加结算规则执行器
+ * 1.所有优惠券支持的商品类型之和必须包含购物车中所有的商品类型
+ * 2.任意两张优惠券都要可以共用(以共享key为边 所有优惠券构成完全图)
+ * 3.按StackingStage定义的顺序逐个使用优惠券 不满足使用条件的优惠券(如满减未达到基准)跳过
+ * 调用方(ExecuteManager)保证每类优惠券最多一张 并且每类都有对应的阶段
+ */
+@Slf4j
+@Component
+public class StackingExecutor extends AbstractExecutor implements RuleExecutor {
+
+    /**
+     * 规则类型标记
+     * @return
+     */
+    @Override
+    public RuleFlag ruleConfig() {
+        return RuleFlag.STACKING;
+    }
+
+    /**
+     * 校验商品类型与优惠券是否匹配
+     * 需要注意:
+     * 1.这里实现的是多类优惠券叠加的校验
+     * 2.如果想要使用多类优惠券 则必须要所有的商品类型都包含在内(差集为空)
+     * @param settlement
+     * @param goods 商品汇总信息
+     * @return
+     */
+    @Override
+    protected boolean isGoodsTypeSatisfy(SettlementInfo settlement, GoodsAggregate goods) {
+        long templateGoodsType = 0L;
+        for (SettlementInfo.CouponAndTemplateInfo ct : settlement.getCouponAndTemplateInfos()) {
+            templateGoodsType |= plan(ct).getGoodsTypeMask();
+        }
+        return (goods.getGoodsTypeMask() & ~templateGoodsType) == 0;
+    }
+
+    /**
+     * 优惠券规则的计算
+     * @param settlement
+     * @param goods 商品汇总信息
+     * @return
+     */
+    @Override
+    public SettlementInfo computeRule(SettlementInfo settlement, GoodsAggregate goods) {
+        // 商品总价
+        double goodsSum = goods.getGoodsSum();
+
+        // 处理商品类型与优惠券限制不匹配的情况
+        SettlementInfo probability = processGoodsTypeNotSatisfy(settlement, goods);
+        if (null != probability) {
+            log.debug("商品类型没有被叠加的优惠券全部覆盖");
+            return probability;
+        }
+
+        // 按阶段排列优惠券
+        StackingStage[] stages = StackingStage.values();
+        SettlementInfo.CouponAndTemplateInfo[] ctByStage = new SettlementInfo.CouponAndTemplateInfo[stages.length];
+        RulePlan[] planByStage = new RulePlan[stages.length];
+        List<RulePlan> plans = new ArrayList<>(settlement.getCouponAndTemplateInfos().size());
+        for (SettlementInfo.CouponAndTemplateInfo ct : settlement.getCouponAndTemplateInfos()) {
+            RulePlan plan = plan(ct);
+            int stage = StackingStage.of(plan.getCategory()).ordinal();
+            ctByStage[stage] = ct;
+            planByStage[stage] = plan;
+            plans.add(plan);
+        }
+
+        // 优惠券之间如果不能全部共用 则需要清空优惠券 返回商品原价
+        if (!isAllShared(plans)) {
+            // 用户选择的组合不可用是正常的业务结果 不是错误
+            log.info("当前叠加的优惠券不能一起使用:{}", plans.stream().map(RulePlan::getTemplateId).collect(Collectors.toList()));
+            settlement.setCost(goodsSum);
+            settlement.setCouponAndTemplateInfos(Collections.emptyList());
+            return settlement;
+        }
+
+        // 记录实际使用的优惠券
+        List<SettlementInfo.CouponAndTemplateInfo> ctInfos = new ArrayList<>(plans.size());
+        long targetSum = goods.getGoodsSumCents();
+        for (StackingStage stage : stages) {
+            if (null == planByStage[stage.ordinal()]) {
+                continue;
+            }
+            long next = stage.apply(planByStage[stage.ordinal()], targetSum);
+            if (next == StackingStage.NOT_APPLICABLE) {
+                log.debug("优惠券不满足使用条件:{}", stage);
+                continue;
+            }
+            targetSum = next;
+            ctInfos.add(ctByStage[stage.ordinal()]);
+        }
+
+        settlement.setCouponAndTemplateInfos(ctInfos);
+        settlement.setCost(ctInfos.isEmpty() ? goodsSum : costOf(targetSum));
+        log.debug("叠加使用{}张优惠券之后，原始价格:{}，优惠价格:{}", ctInfos.size(), goodsSum, settlement.getCost());
+        return settlement;
+    }
+
+    /**
+     * 任意两张优惠券是否都可以共用
+     * 共享关系是无向图 一方的权重包含另一方的共享key即有边
+     * @param plans
+     * @return
+     */
+    private boolean isAllShared(List<RulePlan> plans) {
+        for (int i = 0; i < plans.size(); ++i) {
+            for (int j = i + 1; j < plans.size(); ++j) {
+                if (!plans.get(i).canShareWith(plans.get(j))) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,39 @@
+package com.study.coupon.executor.plan;
+
+import com.study.coupon.executor.MoneyMath;
+import com.study.coupon.vo.GoodsInfo;
+import lombok.Getter;
+
+import java.util.List;
+
+/**
+ * 购物车商品的汇总信息
+ * 同一个购物车计算多组优惠券时只汇总一次
+ */
+@Getter
+public final class GoodsAggregate {
+
+    // 商品总价(分)
+    private final long goodsSumCents;
+
+    // 商品总价(元) 保留两位小数
+    private final double goodsSum;
+
+    // 商品类型位掩码
+    private final long goodsTypeMask;
+
+    private GoodsAggregate(long goodsSumCents, long goodsTypeMask) {
+        this.goodsSumCents = goodsSumCents;
+        this.goodsSum = MoneyMath.toYuan(goodsSumCents);
+        this.goodsTypeMask = goodsTypeMask;
+    }
+
+    /**
+     * 汇总商品信息
+     * @param goodsInfos
+     * @return
+     */
+    public static GoodsAggregate of(List<GoodsInfo> goodsInfos) {
+        return new GoodsAggregate(MoneyMath.goodsSumCents(goodsInfos), RulePlan.goodsTypeMask(goodsInfos));
+    }
+}
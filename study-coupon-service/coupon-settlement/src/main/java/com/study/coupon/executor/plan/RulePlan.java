@@ -0,0 +1,145 @@
+package com.study.coupon.executor.plan;
+
+import com.alibaba.fastjson.JSON;
+import com.study.coupon.constant.CouponCategory;
+import com.study.coupon.vo.CouponTemplateSDK;
+import com.study.coupon.vo.GoodsInfo;
+import com.study.coupon.vo.TemplateRule;
+import lombok.Getter;
+
+import java.util.*;
+
+/**
+ * 编译后的优惠券结算规则
+ * 由优惠券模板编译一次得到 之后的结算只读取这里的字段 不再解析JSON
+ * 1.商品类型编译为位掩码 第n位表示支持商品类型n
+ * 2.模板自身的共享key和可叠加的key编译为集合
+ * 对象创建后不可变 可以在多个线程之间共享
+ */
+@Getter
+public final class RulePlan {
+
+    // 位掩码能表示的最大商品类型编码
+    public static final int MAX_GOODS_TYPE = Long.SIZE - 1;
+
+    // 优惠券模板主键
+    private final Integer templateId;
+
+    // 优惠券分类
+    private final CouponCategory category;
+
+    // 支持的商品类型位掩码
+    private final long goodsTypeMask;
+
+    // 模板自身的共享key: 模板编码 + 4位模板id
+    private final String shareKey;
+
+    // 可以叠加使用的模板共享key
+    private final Set<String> sharedKeys;
+
+    // 基准 需要满多少才可用
+    private final int base;
+
+    // 额度 满减(20) 折扣(85) 立减(10)
+    private final int quota;
+
+    // 编译时的模板编码 分类 折扣 商品类型 权重 这些字段不变时可以复用编译结果
+    private final String sourceKey;
+    private final String sourceCategory;
+    private final Integer sourceBase;
+    private final Integer sourceQuota;
+    private final String sourceGoodsType;
+    private final String sourceWeight;
+
+    private RulePlan(CouponTemplateSDK template) {
+        TemplateRule rule = template.getRule();
+        this.templateId = template.getId();
+        this.category = CouponCategory.of(template.getCategory());
+        this.sourceKey = template.getKey();
+        this.sourceCategory = template.getCategory();
+        this.sourceBase = rule.getDiscount().getBase();
+        this.sourceQuota = rule.getDiscount().getQuota();
+        this.sourceGoodsType = rule.getUsage().getGoodsType();
+        this.sourceWeight = rule.getWeight();
+
+        this.base = null == sourceBase ? 0 : sourceBase;
+        this.quota = null == sourceQuota ? 0 : sourceQuota;
+        this.goodsTypeMask = compileGoodsType(sourceGoodsType);
+        this.shareKey = template.getKey() + String.format("%04d", template.getId());
+        this.sharedKeys = compileWeight(sourceWeight);
+    }
+
+    /**
+     * 编译优惠券模板
+     * @param template
+     * @return
+     */
+    public static RulePlan compile(CouponTemplateSDK template) {
+        return new RulePlan(template);
+    }
+
+    /**
+     * 模板的规则是否与编译时相同
+     * @param template
+     * @return
+     */
+    public boolean isCompiledFrom(CouponTemplateSDK template) {
+        TemplateRule rule = template.getRule();
+        return Objects.equals(templateId, template.getId())
+                && Objects.equals(sourceKey, template.getKey())
+                && Objects.equals(sourceCategory, template.getCategory())
+                && Objects.equals(sourceBase, rule.getDiscount().getBase())
+                && Objects.equals(sourceQuota, rule.getDiscount().getQuota())
+                && Objects.equals(sourceGoodsType, rule.getUsage().getGoodsType())
+                && Objects.equals(sourceWeight, rule.getWeight());
+    }
+
+    /**
+     * 两张优惠券是否可以一起使用
+     * 任意一方的权重中包含另一方的共享key即可
+     * @param other
+     * @return
+     */
+    public boolean canShareWith(RulePlan other) {
+        return sharedKeys.contains(other.shareKey) || other.sharedKeys.contains(shareKey);
+    }
+
+    /**
+     * 商品列表的商品类型位掩码
+     * @param goodsInfos
+     * @return
+     */
+    public static long goodsTypeMask(List<GoodsInfo> goodsInfos) {
+        long mask = 0L;
+        for (GoodsInfo goodsInfo : goodsInfos) {
+            mask |= goodsTypeBit(goodsInfo.getType());
+        }
+        return mask;
+    }
+
+    private static long goodsTypeBit(Integer type) {
+        if (null == type || type < 0 || type > MAX_GOODS_TYPE) {
+            throw new IllegalArgumentException("unsupported goods type: " + type);
+        }
+        return 1L << type;
+    }
+
+    private static long compileGoodsType(String goodsType) {
+        long mask = 0L;
+        List<Integer> types = null == goodsType ? null : JSON.parseArray(goodsType, Integer.class);
+        if (null != types) {
+            for (Integer type : types) {
+                mask |= goodsTypeBit(type);
+            }
+        }
+        return mask;
+    }
+
+    private static Set<String> compileWeight(String weight) {
+        List<String> keys = null == weight ? null : JSON.parseArray(weight, String.class);
+        if (null == keys || keys.isEmpty()) {
+            return Collections.emptySet();
+        }
+        return Collections.unmodifiableSet(new HashSet<>(keys));
+    }
+}
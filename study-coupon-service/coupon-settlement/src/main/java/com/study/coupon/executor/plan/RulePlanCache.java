@@ -0,0 +1,36 @@
+package com.study.coupon.executor.plan;
+
+import com.study.coupon.vo.CouponTemplateSDK;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Component;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 编译后的结算规则缓存
+ * 模板没有版本号 以编译时用到的模板字段作为版本 模板修改后再次结算时重新编译
+ */
+@Slf4j
+@Component
+public class RulePlanCache {
+
+    // key:模板id value:编译后的规则
+    private final Map<Integer, RulePlan> plans = new ConcurrentHashMap<>();
+
+    /**
+     * 获取模板对应的结算规则 没有或已过时则编译
+     * @param template
+     * @return
+     */
+    public RulePlan get(CouponTemplateSDK template) {
+        RulePlan plan = plans.get(template.getId());
+        if (null != plan && plan.isCompiledFrom(template)) {
+            return plan;
+        }
+        plan = RulePlan.compile(template);
+        plans.put(template.getId(), plan);
+        log.debug("编译优惠券模板结算规则:{}", template.getId());
+        return plan;
+    }
+}
@@ -0,0 +1,132 @@
+package com.study.coupon.executor;
+
+import com.study.coupon.constant.CouponCategory;
+import com.study.coupon.executor.impl.LiJianExecutor;
+import com.study.coupon.executor.impl.ManJianExecutor;
+import com.study.coupon.executor.impl.StackingExecutor;
+import com.study.coupon.executor.impl.ZheKouExecutor;
+import com.study.coupon.executor.plan.RulePlanCache;
+import com.study.coupon.vo.CouponTemplateSDK;
+import com.study.coupon.vo.GoodsInfo;
+import com.study.coupon.vo.SettlementInfo;
+import com.study.coupon.vo.TemplateRule;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * 最优优惠券组合查找测试
+ */
+public class CouponOptimizerTest {
+
+    private static ExecuteManager executeManager = new ExecuteManager();
+
+    private static CouponOptimizer optimizer = new CouponOptimizer();
+
+    @BeforeClass
+    public static void setUp() {
+        RulePlanCache cache = new RulePlanCache();
+        for (RuleExecutor executor : Arrays.asList(new ManJianExecutor(), new ZheKouExecutor(), new LiJianExecutor(), new StackingExecutor())) {
+            ReflectionTestUtils.setField(executor, "rulePlanCache", cache);
+            executeManager.postProcessBeforeInitialization(executor, executor.getClass().getSimpleName());
+        }
+        ReflectionTestUtils.setField(optimizer, "executeManager", executeManager);
+        ReflectionTestUtils.setField(optimizer, "rulePlanCache", cache);
+        ReflectionTestUtils.setField(optimizer, "budgetMs", 1000L);
+    }
+
+    private static SettlementInfo.CouponAndTemplateInfo coupon(int couponId, int templateId, CouponCategory category, int base, int quota, String weight) {
+        TemplateRule rule = new TemplateRule(null, new TemplateRule.Discount(quota, base), 1, new TemplateRule.Usage("北京", "北京", "[1,2]"), weight);
+        CouponTemplateSDK template = new CouponTemplateSDK(templateId, "t" + templateId, null, null, category.getCode(), 1, "K" + category.getCode(), 1, rule);
+        return new SettlementInfo.CouponAndTemplateInfo(couponId, template);
+    }
+
+    private static String key(CouponCategory category, int templateId) {
+        return "\"K" + category.getCode() + String.format("%04d", templateId) + "\"";
+    }
+
+    private static SettlementInfo request(List<SettlementInfo.CouponAndTemplateInfo> coupons) {
+        return new SettlementInfo(1L, Arrays.asList(new GoodsInfo(1, 60.0, 2), new GoodsInfo(2, 15.5, 1)), coupons, false, null);
+    }
+
+    @Test
+    public void testPicksSharedPair() throws Exception {
+        List<SettlementInfo.CouponAndTemplateInfo> coupons = Arrays.asList(
+                coupon(1, 1, CouponCategory.MANJIAN, 100, 20, "[" + key(CouponCategory.ZHEKOU, 2) + "]"),
+                coupon(2, 2, CouponCategory.ZHEKOU, 1, 90, "[]"),
+                coupon(3, 3, CouponCategory.LIJIAN, 1, 25, "[]"),
+                coupon(4, 1, CouponCategory.MANJIAN, 100, 20, "[" + key(CouponCategory.ZHEKOU, 2) + "]"));
+
+        SettlementInfo best = optimizer.optimize(request(coupons));
+
+        // 135.5 - 20 = 115.5 * 0.9 = 103.95 优于 立减25的110.5
+        assertEquals(103.95, best.getCost(), 0.0);
+        assertEquals(2, best.getCouponAndTemplateInfos().size());
+    }
+
+    @Test
+    public void testPicksThreeCouponStack() throws Exception {
+        List<SettlementInfo.CouponAndTemplateInfo> coupons = Arrays.asList(
+                coupon(1, 1, CouponCategory.MANJIAN, 100, 20, "[" + key(CouponCategory.ZHEKOU, 2) + "," + key(CouponCategory.LIJIAN, 3) + "]"),
+                coupon(2, 2, CouponCategory.ZHEKOU, 1, 90, "[" + key(CouponCategory.LIJIAN, 3) + "]"),
+                coupon(3, 3, CouponCategory.LIJIAN, 1, 5, "[]"));
+
+        SettlementInfo best = optimizer.optimize(request(coupons));
+
+        // 135.5 - 5 = 130.5 - 20 = 110.5 * 0.9 = 99.45
+        assertEquals(99.45, best.getCost(), 0.0);
+        assertEquals(3, best.getCouponAndTemplateInfos().size());
+    }
+
+    @Test
+    public void testMatchesBruteForce() throws Exception {
+        Random random = new Random(42);
+        CouponCategory[] categories = CouponCategory.values();
+        for (int round = 0; round < 200; ++round) {
+            List<SettlementInfo.CouponAndTemplateInfo> coupons = new ArrayList<>();
+            int n = 1 + random.nextInt(8);
+            for (int i = 1; i <= n; ++i) {
+                CouponCategory category = categories[random.nextInt(categories.length)];
+                int quota = category == CouponCategory.ZHEKOU ? 50 + random.nextInt(50) : 1 + random.nextInt(60);
+                StringJoiner weight = new StringJoiner(",", "[", "]");
+                for (int k = random.nextInt(4); k > 0; --k) {
+                    weight.add(key(categories[random.nextInt(categories.length)], 1 + random.nextInt(n)));
+                }
+                coupons.add(coupon(i, i, category, 1 + random.nextInt(200), quota, weight.toString()));
+            }
+
+            double expected = bruteForce(coupons);
+            SettlementInfo best = optimizer.optimize(request(coupons));
+            assertEquals("round " + round, expected, best.getCost(), 0.0);
+        }
+    }
+
+    /**
+     * 逐个计算所有非空的优惠券组合
+     */
+    private static double bruteForce(List<SettlementInfo.CouponAndTemplateInfo> coupons) {
+        double best = request(Collections.emptyList()).getGoodsInfos().stream().mapToDouble(g -> g.getPrice() * g.getCount()).sum();
+        for (int mask = 1; mask < (1 << coupons.size()); ++mask) {
+            List<SettlementInfo.CouponAndTemplateInfo> combination = new ArrayList<>();
+            for (int i = 0; i < coupons.size(); ++i) {
+                if ((mask & (1 << i)) != 0) {
+                    combination.add(coupons.get(i));
+                }
+            }
+            SettlementInfo settlement = request(combination);
+            try {
+                executeManager.computeRule(settlement);
+            } catch (Exception ex) {
+                continue;
+            }
+            if (!settlement.getCouponAndTemplateInfos().isEmpty()) {
+                best = Math.min(best, settlement.getCost());
+            }
+        }
+        return best;
+    }
+}
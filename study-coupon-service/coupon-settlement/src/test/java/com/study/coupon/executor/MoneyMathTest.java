@@ -0,0 +1,119 @@
+package com.study.coupon.executor;
+
+import com.study.coupon.vo.GoodsInfo;
+import org.junit.Test;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * 结算金额计算测试
+ * 随机生成输入 与BigDecimal按十进制计算的结果逐位比较
+ */
+public class MoneyMathTest {
+
+    private static final int ROUNDS = 200000;
+
+    private final Random random = new Random(20190801L);
+
+    private static long referenceCents(BigDecimal yuan) {
+        return yuan.setScale(2, BigDecimal.ROUND_HALF_UP).unscaledValue().longValueExact();
+    }
+
+    /**
+     * 整分 分以下若干位 以及任意的double
+     */
+    private double randomPrice() {
+        switch (random.nextInt(4)) {
+            case 0:
+                return random.nextInt(10000000) / 100.0;
+            case 1:
+                return random.nextInt(10000000) / 1000.0;
+            case 2:
+                // 恰好是半分的价格 如1.005
+                return (random.nextInt(1000000) * 10 + 5) / 1000.0;
+            default:
+                return random.nextDouble() * Math.pow(10, random.nextInt(8));
+        }
+    }
+
+    @Test
+    public void testToCents() {
+        for (int i = 0; i < ROUNDS; ++i) {
+            double price = random.nextBoolean() ? randomPrice() : -randomPrice();
+            assertEquals(String.valueOf(price), referenceCents(BigDecimal.valueOf(price)), MoneyMath.toCents(price));
+        }
+        assertEquals(101L, MoneyMath.toCents(1.005));
+        assertEquals(-101L, MoneyMath.toCents(-1.005));
+        assertEquals(1999L, MoneyMath.toCents(19.99));
+    }
+
+    @Test
+    public void testToYuan() {
+        for (int i = 0; i < ROUNDS; ++i) {
+            long cents = random.nextLong() % (1L << 53);
+            assertEquals(Double.doubleToLongBits(BigDecimal.valueOf(cents, 2).doubleValue()), Double.doubleToLongBits(MoneyMath.toYuan(cents)));
+        }
+    }
+
+    @Test
+    public void testGoodsSumCents() {
+        for (int i = 0; i < ROUNDS / 10; ++i) {
+            List<GoodsInfo> goodsInfos = new ArrayList<>();
+            BigDecimal reference = BigDecimal.ZERO;
+            // 多数购物车全是整分的价格
+            boolean wholeCents = random.nextInt(4) != 0;
+            int n = 1 + random.nextInt(10);
+            for (int j = 0; j < n; ++j) {
+                double price = wholeCents ? random.nextInt(1000000) / 100.0 : randomPrice();
+                int count = 1 + random.nextInt(100);
+                goodsInfos.add(new GoodsInfo(1, price, count));
+                reference = reference.add(BigDecimal.valueOf(price).multiply(BigDecimal.valueOf(count)));
+            }
+            assertEquals(goodsInfos.toString(), referenceCents(reference), MoneyMath.goodsSumCents(goodsInfos));
+        }
+        // 先求和再四舍五入: 0.335*3=1.005 -> 1.01 而不是 0.34*3=1.02
+        assertEquals(101L, MoneyMath.goodsSumCents(Arrays.asList(new GoodsInfo(1, 0.335, 3))));
+        // 与整分的差远小于半分 乘以数量后不能忽略: 0.1000000001*10^8=10000000.01
+        assertEquals(1000000001L, MoneyMath.goodsSumCents(Arrays.asList(new GoodsInfo(1, 0.1000000001, 100000000))));
+    }
+
+    @Test
+    public void testApplyPercent() {
+        for (int i = 0; i < ROUNDS; ++i) {
+            long cents = random.nextLong() % 1000000000000L;
+            int percent = 1 + random.nextInt(100);
+            long reference = BigDecimal.valueOf(cents).multiply(BigDecimal.valueOf(percent)).divide(BigDecimal.valueOf(100), 0, BigDecimal.ROUND_HALF_UP).longValueExact();
+            assertEquals(cents + "*" + percent, reference, MoneyMath.applyPercent(cents, percent));
+        }
+    }
+
+    @Test
+    public void testManJianZheKouChain() {
+        for (int i = 0; i < ROUNDS; ++i) {
+            double price = random.nextInt(10000000) / 100.0;
+            int count = 1 + random.nextInt(5);
+            int quota = 1 + random.nextInt(500);
+            int percent = 1 + random.nextInt(100);
+
+            BigDecimal reference = BigDecimal.valueOf(price).multiply(BigDecimal.valueOf(count)).subtract(BigDecimal.valueOf(quota))
+                    .multiply(BigDecimal.valueOf(percent)).divide(BigDecimal.valueOf(100));
+            long cents = MoneyMath.goodsSumCents(Arrays.asList(new GoodsInfo(1, price, count))) - MoneyMath.toCents(quota);
+            assertEquals(referenceCents(reference), MoneyMath.applyPercent(cents, percent));
+        }
+    }
+
+    @Test
+    public void testDivideHalfUp() {
+        assertEquals(3L, MoneyMath.divideHalfUp(250, 100));
+        assertEquals(2L, MoneyMath.divideHalfUp(249, 100));
+        assertEquals(-3L, MoneyMath.divideHalfUp(-250, 100));
+        assertEquals(-2L, MoneyMath.divideHalfUp(-249, 100));
+        assertEquals(0L, MoneyMath.divideHalfUp(0, 100));
+    }
+}
@@ -0,0 +1,56 @@
+package com.study.coupon.executor.plan;
+
+import com.study.coupon.constant.CouponCategory;
+import com.study.coupon.vo.CouponTemplateSDK;
+import com.study.coupon.vo.GoodsInfo;
+import com.study.coupon.vo.TemplateRule;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+/**
+ * 编译后的结算规则测试
+ */
+public class RulePlanTest {
+
+    private static CouponTemplateSDK template(int id, String category, String key, String goodsType, String weight) {
+        TemplateRule rule = new TemplateRule(null, new TemplateRule.Discount(20, 100), 1, new TemplateRule.Usage("北京", "北京", goodsType), weight);
+        return new CouponTemplateSDK(id, "t" + id, null, null, category, 1, key, 1, rule);
+    }
+
+    @Test
+    public void testCompile() {
+        RulePlan plan = RulePlan.compile(template(7, CouponCategory.MANJIAN.getCode(), "100120190801", "[1,3]", "[]"));
+
+        assertEquals(CouponCategory.MANJIAN, plan.getCategory());
+        assertEquals(100, plan.getBase());
+        assertEquals(20, plan.getQuota());
+        assertEquals("1001201908010007", plan.getShareKey());
+        assertEquals((1L << 1) | (1L << 3), plan.getGoodsTypeMask());
+        assertEquals(1L << 3, RulePlan.goodsTypeMask(Arrays.asList(new GoodsInfo(3, 10.0, 1), new GoodsInfo(3, 5.0, 2))));
+    }
+
+    @Test
+    public void testCanShareWithUsesOwnKeys() {
+        RulePlan manJian = RulePlan.compile(template(1, CouponCategory.MANJIAN.getCode(), "1001", "[1]", "[\"10020002\"]"));
+        RulePlan zheKou = RulePlan.compile(template(2, CouponCategory.ZHEKOU.getCode(), "1002", "[1]", "[]"));
+        // 共享key要使用各自的模板id 不能用满减券的id拼接折扣券的key
+        RulePlan wrongKey = RulePlan.compile(template(3, CouponCategory.ZHEKOU.getCode(), "1002", "[1]", "[]"));
+
+        assertTrue(manJian.canShareWith(zheKou));
+        assertTrue(zheKou.canShareWith(manJian));
+        assertFalse(manJian.canShareWith(wrongKey));
+    }
+
+    @Test
+    public void testIsCompiledFrom() {
+        CouponTemplateSDK template = template(1, CouponCategory.LIJIAN.getCode(), "1003", "[2]", "[]");
+        RulePlan plan = RulePlan.compile(template);
+        assertTrue(plan.isCompiledFrom(template));
+
+        template.getRule().getDiscount().setQuota(30);
+        assertFalse(plan.isCompiledFrom(template));
+    }
+}
@@ -0,0 +1,195 @@
+package com.study.coupon.cache;
+
+import com.google.common.base.Optional;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.study.coupon.dao.CouponTemplateDao;
+import com.study.coupon.entity.CouponTemplate;
+import com.study.coupon.event.TemplateChangeEvent;
+import com.study.coupon.vo.CouponTemplateSDK;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.binder.cache.GuavaCacheMetrics;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.event.EventListener;
+import org.springframework.core.Ordered;
+import org.springframework.core.annotation.Order;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+
+/**
+ * 优惠券模板本地缓存(read-through)
+ * 1.按id缓存CouponTemplateSDK 容量有上限
+ * 2.缓存所有可用模板列表的快照
+ * 每次收到{@link TemplateChangeEvent}版本号加一 加载前后版本号不一致的结果不会写入缓存 避免把旧数据写回
+ * 写入后再检查一次版本号 写入期间发生变更时删除刚写入的数据
+ * 多实例部署时其他实例的变更无法通知到本实例 依赖ttl兜底
+ */
+@Slf4j
+@Component
+public class TemplateCache {
+
+    @Autowired
+    private CouponTemplateDao templateDao;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    // 按id缓存的最大模板个数
+    @Value("${coupon.template.cache.max-size:10000}")
+    private long maxSize;
+
+    // 缓存有效时间
+    @Value("${coupon.template.cache.ttl-seconds:300}")
+    private long ttlSeconds;
+
+    // 缓存版本号 每次模板变更加一
+    private final AtomicLong version = new AtomicLong();
+
+    // key:模板id value:CouponTemplateSDK(模板不存在时为absent)
+    private Cache<Integer, Optional<CouponTemplateSDK>> sdkCache;
+
+    // 可用模板列表快照
+    private volatile UsableSnapshot usableSnapshot;
+
+    private Counter usableHit;
+    private Counter usableMiss;
+    private Timer loadTimer;
+
+    @PostConstruct
+    public void init() {
+        sdkCache = CacheBuilder.newBuilder().maximumSize(maxSize).expireAfterWrite(ttlSeconds, TimeUnit.SECONDS).recordStats().build();
+        GuavaCacheMetrics.monitor(meterRegistry, sdkCache, "coupon.template.sdk.cache");
+        usableHit = meterRegistry.counter("coupon.template.usable.cache", "result", "hit");
+        usableMiss = meterRegistry.counter("coupon.template.usable.cache", "result", "miss");
+        loadTimer = meterRegistry.timer("coupon.template.cache.load");
+        meterRegistry.gauge("coupon.template.cache.version", version);
+    }
+
+    /**
+     * 查找所有可用的优惠券模板
+     * @return
+     */
+    public List<CouponTemplateSDK> findAllUsable() {
+        UsableSnapshot snapshot = usableSnapshot;
+        if (null != snapshot && snapshot.version == version.get() && !snapshot.isExpired(ttlSeconds)) {
+            usableHit.increment();
+            return snapshot.templates;
+        }
+        usableMiss.increment();
+
+        long loadVersion = version.get();
+        List<CouponTemplateSDK> templates = loadTimer.record(() -> templateDao.findAllByAvailableAndExpired(true, false).stream().map(TemplateCache::template2TemplateSDK).collect(Collectors.toList()));
+        templates = Collections.unmodifiableList(templates);
+
+        if (loadVersion == version.get()) {
+            usableSnapshot = new UsableSnapshot(loadVersion, templates);
+            Map<Integer, Optional<CouponTemplateSDK>> loaded = new HashMap<>(templates.size());
+            templates.forEach(t -> loaded.put(t.getId(), Optional.of(t)));
+            putIfCurrent(loadVersion, loaded);
+        }
+        return templates;
+    }
+
+    /**
+     * 获取模板ids到CouponTemplateSDK的映射
+     * @param ids 模板ids
+     * @return
+     */
+    public Map<Integer, CouponTemplateSDK> findByIds(Collection<Integer> ids) {
+        Map<Integer, CouponTemplateSDK> result = new HashMap<>(ids.size());
+        List<Integer> missIds = new ArrayList<>();
+        for (Integer id : new HashSet<>(ids)) {
+            Optional<CouponTemplateSDK> cached = sdkCache.getIfPresent(id);
+            if (null == cached) {
+                missIds.add(id);
+            } else if (cached.isPresent()) {
+                result.put(id, cached.get());
+            }
+        }
+        if (missIds.isEmpty()) {
+            return result;
+        }
+
+        long loadVersion = version.get();
+        List<CouponTemplate> templates = loadTimer.record(() -> templateDao.findAllById(missIds));
+        Map<Integer, Optional<CouponTemplateSDK>> loaded = new HashMap<>(missIds.size());
+        missIds.forEach(id -> loaded.put(id, Optional.<CouponTemplateSDK>absent()));
+        templates.forEach(t -> loaded.put(t.getId(), Optional.of(template2TemplateSDK(t))));
+
+        putIfCurrent(loadVersion, loaded);
+        loaded.forEach((id, sdk) -> {
+            if (sdk.isPresent()) {
+                result.put(id, sdk.get());
+            }
+        });
+        return result;
+    }
+
+    /**
+     * 加载期间版本号没有变化时写入缓存
+     * 检查和写入之间可能发生变更(版本号加一后的失效可能先于写入执行) 写入后版本号变化则删除刚写入的数据
+     * @param loadVersion 加载前的版本号
+     * @param loaded
+     */
+    private void putIfCurrent(long loadVersion, Map<Integer, Optional<CouponTemplateSDK>> loaded) {
+        if (loadVersion != version.get()) {
+            return;
+        }
+        sdkCache.putAll(loaded);
+        if (loadVersion != version.get()) {
+            sdkCache.invalidateAll(loaded.keySet());
+        }
+    }
+
+    /**
+     * 模板变更时使缓存失效 需要先于目录版本号变更执行
+     * @param event
+     */
+    @Order(Ordered.HIGHEST_PRECEDENCE)
+    @EventListener
+    public void onTemplateChange(TemplateChangeEvent event) {
+        long newVersion = version.incrementAndGet();
+        sdkCache.invalidateAll(event.getTemplateIds());
+        usableSnapshot = null;
+        log.info("优惠券模板缓存失效:{},版本号:{}", event.getTemplateIds(), newVersion);
+    }
+
+    /**
+     * 将CouponTemplate转换为CouponTemplateSDK
+     * @param template
+     * @return
+     */
+    public static CouponTemplateSDK template2TemplateSDK(CouponTemplate template) {
+        return new CouponTemplateSDK(template.getId(), template.getName(), template.getLogo(), template.getDesc(), template.getCategory().getCode(), template.getProductLine().getCode(), template.getKey(), template.getTarget().getCode(), template.getRule());
+    }
+
+    /**
+     * 可用模板列表快照
+     */
+    private static class UsableSnapshot {
+
+        final long version;
+
+        final List<CouponTemplateSDK> templates;
+
+        final long loadTime = System.currentTimeMillis();
+
+        UsableSnapshot(long version, List<CouponTemplateSDK> templates) {
+            this.version = version;
+            this.templates = templates;
+        }
+
+        boolean isExpired(long ttlSeconds) {
+            return System.currentTimeMillis() - loadTime > ttlSeconds * 1000;
+        }
+    }
+}
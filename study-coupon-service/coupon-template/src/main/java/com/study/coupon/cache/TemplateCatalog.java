@@ -0,0 +1,107 @@
+package com.study.coupon.cache;
+
+import com.study.coupon.constant.Constant;
+import com.study.coupon.event.TemplateChangeEvent;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.event.EventListener;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * 优惠券模板目录版本
+ * 目录版本号和变更记录保存在Redis中 所有模板服务实例共享 版本号单调递增
+ * 变更记录中每个模板id只保留最后一次变更的版本号 超出保留条数时裁剪最旧的记录
+ */
+@Slf4j
+@Component
+public class TemplateCatalog {
+
+    // 记录变更的脚本
+    private static final DefaultRedisScript<Long> RECORD_SCRIPT = new DefaultRedisScript<>();
+
+    // 读取变更的脚本
+    @SuppressWarnings("rawtypes")
+    private static final DefaultRedisScript<List> CHANGES_SCRIPT = new DefaultRedisScript<>();
+
+    static {
+        RECORD_SCRIPT.setLocation(new ClassPathResource("lua/template_catalog_record.lua"));
+        RECORD_SCRIPT.setResultType(Long.class);
+        CHANGES_SCRIPT.setLocation(new ClassPathResource("lua/template_catalog_changes.lua"));
+        CHANGES_SCRIPT.setResultType(List.class);
+    }
+
+    private static final List<String> KEYS = Arrays.asList(
+            Constant.RedisPrefix.TEMPLATE_CATALOG_VERSION,
+            Constant.RedisPrefix.TEMPLATE_CATALOG_CHANGELOG,
+            Constant.RedisPrefix.TEMPLATE_CATALOG_FLOOR
+    );
+
+    @Autowired
+    private StringRedisTemplate redisTemplate;
+
+    // 变更记录保留的最大条数
+    @Value("${coupon.template.catalog.changelog-size:5000}")
+    private long changelogSize;
+
+    /**
+     * 模板变更时目录版本号加一并记录变更的模板ids
+     * 在本地缓存失效之后执行 保证拿到新版本号的客户端不会读到旧的缓存
+     * @param event
+     */
+    @EventListener
+    public void onTemplateChange(TemplateChangeEvent event) {
+        List<String> args = new ArrayList<>(event.getTemplateIds().size() + 1);
+        args.add(String.valueOf(changelogSize));
+        event.getTemplateIds().forEach(id -> args.add(String.valueOf(id)));
+        try {
+            Long version = redisTemplate.execute(RECORD_SCRIPT, KEYS, args.toArray());
+            log.info("优惠券模板目录版本号:{},变更的模板:{}", version, event.getTemplateIds());
+        } catch (Exception ex) {
+            log.error("记录优惠券模板目录变更失败:{}", event.getTemplateIds(), ex);
+        }
+    }
+
+    /**
+     * 读取客户端版本之后的变更
+     * @param since 客户端的版本号
+     * @return
+     */
+    @SuppressWarnings("unchecked")
+    public Changes changesSince(long since) {
+        List<String> reply = redisTemplate.execute(CHANGES_SCRIPT, KEYS, String.valueOf(since));
+        List<Integer> ids = new ArrayList<>(reply.size() - 2);
+        for (int i = 2; i < reply.size(); ++i) {
+            ids.add(Integer.valueOf(reply.get(i)));
+        }
+        return new Changes(Long.parseLong(reply.get(0)), Long.parseLong(reply.get(1)), ids);
+    }
+
+    /**
+     * 某个版本之后的变更
+     */
+    public static class Changes {
+
+        // 当前的目录版本号
+        public final long version;
+
+        // 已裁剪的最大版本号
+        public final long floor;
+
+        // 变更的模板ids
+        public final List<Integer> templateIds;
+
+        Changes(long version, long floor, List<Integer> templateIds) {
+            this.version = version;
+            this.floor = floor;
+            this.templateIds = templateIds;
+        }
+    }
+}
@@ -6,6 +6,7 @@ import com.study.coupon.exception.CouponException;
 import com.study.coupon.service.IBuildTemplateService;
 import com.study.coupon.service.ITemplateBaseService;
 import com.study.coupon.vo.CouponTemplateSDK;
+import com.study.coupon.vo.TemplateDelta;
 import com.study.coupon.vo.TemplateRequest;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -79,4 +80,16 @@ public class CouponTemplateController {
         log.info("findIds2TemplateSDK:{}", JSON.toJSONString(ids));
         return templateBaseService.findIds2TemplateSDK(ids);
     }
+
+    /**
+     * 获取某个目录版本之后的模板变更
+     * 127.0.0.1:7001/coupon-template/template/sdk/delta
+     * @param version 客户端本地的目录版本号
+     * @return
+     */
+    @GetMapping("/template/sdk/delta")
+    public TemplateDelta findTemplateDelta(@RequestParam(value = "version", defaultValue = "-1") Long version) {
+        log.debug("findTemplateDelta:{}", version);
+        return templateBaseService.findTemplateDelta(version);
+    }
 }
@@ -0,0 +1,24 @@
+package com.study.coupon.event;
+
+import org.springframework.context.ApplicationEvent;
+
+import java.util.Collection;
+
+/**
+ * 优惠券模板变更事件
+ * 模板被创建/变为可用/过期时发布 用于通知本地缓存失效
+ */
+public class TemplateChangeEvent extends ApplicationEvent {
+
+    // 发生变更的模板ids
+    private final Collection<Integer> templateIds;
+
+    public TemplateChangeEvent(Object source, Collection<Integer> templateIds) {
+        super(source);
+        this.templateIds = templateIds;
+    }
+
+    public Collection<Integer> getTemplateIds() {
+        return templateIds;
+    }
+}
@@ -0,0 +1,101 @@
+package com.study.coupon.generator;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 基于开放寻址(线性探测)的并发long集合
+ * 只支持添加和判重 用于替代HashSet<String>做优惠券码去重
+ * 需要注意:
+ * 1.元素必须为正数 0用于标记空槽
+ * 2.容量在创建时确定 添加的元素个数不能超过expectedSize
+ * 3.clear不能与add并发调用
+ */
+public class ConcurrentLongSet {
+
+    // 最大槽位数
+    private static final int MAXIMUM_CAPACITY = 1 << 30;
+
+    // 槽位数组 0代表空槽
+    private final AtomicLongArray slots;
+
+    // 槽位掩码(槽位数-1)
+    private final int mask;
+
+    public ConcurrentLongSet(int expectedSize) {
+        // 负载因子控制在0.75以内 保证探测链足够短
+        long needed = (long) expectedSize * 4 / 3 + 1;
+        if (needed > MAXIMUM_CAPACITY) {
+            throw new IllegalArgumentException("expectedSize too large: " + expectedSize);
+        }
+        int capacity = Integer.highestOneBit((int) needed);
+        if (capacity < needed) {
+            capacity <<= 1;
+        }
+        this.slots = new AtomicLongArray(Math.max(capacity, 16));
+        this.mask = slots.length() - 1;
+    }
+
+    /**
+     * 添加元素
+     * @param value 正数
+     * @return true:添加成功 false:元素已存在
+     */
+    public boolean add(long value) {
+        if (value <= 0) {
+            throw new IllegalArgumentException("value must be positive: " + value);
+        }
+        int index = mix(value) & mask;
+        while (true) {
+            long cur = slots.get(index);
+            if (cur == value) {
+                return false;
+            }
+            if (cur == 0) {
+                if (slots.compareAndSet(index, 0, value)) {
+                    return true;
+                }
+                // 被其他线程抢先写入 重新检查当前槽位
+                continue;
+            }
+            index = (index + 1) & mask;
+        }
+    }
+
+    /**
+     * 清空集合 复用已分配的槽位
+     */
+    public void clear() {
+        for (int i = 0; i < slots.length(); ++i) {
+            slots.set(i, 0);
+        }
+    }
+
+    /**
+     * 判断元素是否存在
+     * @param value
+     * @return
+     */
+    public boolean contains(long value) {
+        int index = mix(value) & mask;
+        while (true) {
+            long cur = slots.get(index);
+            if (cur == value) {
+                return true;
+            }
+            if (cur == 0) {
+                return false;
+            }
+            index = (index + 1) & mask;
+        }
+    }
+
+    /**
+     * 打散long的高低位 避免连续的优惠券码落在相邻的槽位上
+     * @param value
+     * @return
+     */
+    private static int mix(long value) {
+        long h = value * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+}
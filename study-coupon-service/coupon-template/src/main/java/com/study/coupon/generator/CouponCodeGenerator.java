@@ -0,0 +1,453 @@
+package com.study.coupon.generator;
+
+import com.study.coupon.entity.CouponTemplate;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.stream.IntStream;
+
+/**
+ * 优惠券码生成引擎
+ * 优惠券码(对应于每一张优惠券 18位)
+ * 前面四位:产品线+类型 中间六位:日期随机 后面八位:0~9随机数(首位不为0)
+ * 生成过程中优惠券码只以long的形式存在(中间六位 * 10^8 + 后面八位) 去重使用原始类型的并发集合
+ * 只有在输出时才渲染成字符 大数量的模板会拆分到fork-join线程池中并行生成
+ * 支持两种模式:
+ * 1.随机模式 {@link #stream(int)} 随机生成后去重 后面八位按分区生成 去重集合的大小有上限
+ * 2.置换模式 {@link #permutation(long, int)} 对序号做带密钥的置换 天然不重复 流式生成时内存与数量无关 大数量的模板推荐使用
+ */
+public class CouponCodeGenerator {
+
+    // 优惠券码长度
+    public static final int CODE_LENGTH = 18;
+
+    // 单个fork-join任务最多负责生成的优惠券码个数
+    private static final int SPLIT_THRESHOLD = 1 << 14;
+
+    // 后面八位的取值范围 [10000000, 100000000)
+    private static final int SUFFIX8_MIN = 10_000_000;
+    private static final long SUFFIX8_BOUND = 100_000_000L;
+
+    // 随机模式每个分区最多生成的优惠券码个数 去重集合最多占用16MB
+    private static final int DEFAULT_PARTITION_SIZE = 1 << 20;
+
+    // 计算置换密钥的HMAC算法
+    private static final String PERMUTATION_KEY_ALGORITHM = "HmacSHA256";
+
+    // 前面四位
+    private final char[] prefix4;
+
+    // 时间编码(yyMMdd)的各个数字
+    private final int[] date6;
+
+    // 可生成的不重复优惠券码总数
+    private final long capacity;
+
+    // 中间六位的不同排列个数
+    private final long arrangements;
+
+    // 随机模式每个分区最多生成的优惠券码个数
+    private final int partitionSize;
+
+    public CouponCodeGenerator(String prefix4, String date6) {
+        this(prefix4, date6, DEFAULT_PARTITION_SIZE);
+    }
+
+    CouponCodeGenerator(String prefix4, String date6, int partitionSize) {
+        if (prefix4.length() != 4 || date6.length() != 6) {
+            throw new IllegalArgumentException("invalid coupon code prefix or date: " + prefix4 + "," + date6);
+        }
+        this.prefix4 = prefix4.toCharArray();
+        this.date6 = new int[6];
+        for (int i = 0; i < 6; ++i) {
+            this.date6[i] = date6.charAt(i) - '0';
+        }
+        this.arrangements = distinctArrangements(this.date6);
+        this.capacity = arrangements * (SUFFIX8_BOUND - SUFFIX8_MIN);
+        this.partitionSize = partitionSize;
+    }
+
+    /**
+     * 根据优惠券模板创建生成引擎
+     * @param template {@link CouponTemplate} 优惠券模板实体
+     * @return
+     */
+    public static CouponCodeGenerator of(CouponTemplate template) {
+        String prefix4 = template.getProductLine().getCode().toString() + template.getCategory().getCode();
+        String date = new SimpleDateFormat("yyMMdd").format(template.getCreateTime());
+        return new CouponCodeGenerator(prefix4, date);
+    }
+
+    /**
+     * 生成count个不重复的优惠券码(long形式)
+     * @param count 优惠券码个数
+     * @return
+     */
+    public long[] generate(int count) {
+        long[] codes = new long[count];
+        stream(count).next(codes);
+        return codes;
+    }
+
+    /**
+     * 创建按块生成的优惠券码来源 用于流式写入
+     * 后面八位按(后面八位 - 10^7) % 分区数划分成互不相交的分区 依次生成每个分区的优惠券码
+     * 去重只需要在分区内进行 集合在分区之间复用 每个槽位8字节 负载因子不超过0.75并取2的幂
+     * 每个优惠券码占用约11~22字节 分区最多{@value #DEFAULT_PARTITION_SIZE}个 集合最多16MB 字符串只在块内短暂存在
+     * @param count 优惠券码个数
+     * @return
+     */
+    public CouponCodeSource stream(int count) {
+        if (count > capacity) {
+            throw new IllegalArgumentException("coupon count exceeds code space: " + count + " > " + capacity);
+        }
+        int partitions = Math.max(1, (int) ((count + (long) partitionSize - 1) / partitionSize));
+        // 最小的分区也要能容纳每个分区的配额
+        long partitionCapacity = arrangements * ((SUFFIX8_BOUND - SUFFIX8_MIN) / partitions);
+        if ((count + (long) partitions - 1) / partitions > partitionCapacity) {
+            throw new IllegalArgumentException("coupon count too close to code space: " + count + " > " + partitionCapacity + " * " + partitions);
+        }
+        return new RandomCodeSource(count, partitions);
+    }
+
+    /**
+     * 创建确定性的优惠券码来源(置换模式)
+     * 序号0~count-1经过带密钥的Feistel置换映射到后面八位 中间六位由(key, 序号)确定
+     * 优惠券码天然不重复 不需要去重集合 任意序号的优惠券码都可以通过{@link #codeAt(long, long)}重新推导
+     * @param key 置换密钥 参考{@link #permutationKey(String, Integer)}
+     * @param count 优惠券码个数
+     * @return
+     */
+    public CouponCodeSource permutation(long key, int count) {
+        if (count > SUFFIX8_BOUND - SUFFIX8_MIN) {
+            throw new IllegalArgumentException("coupon count exceeds code space: " + count);
+        }
+        return new PermutationCodeSource(key, count);
+    }
+
+    /**
+     * 推导置换模式下第index个优惠券码(long形式)
+     * @param key 置换密钥
+     * @param index 序号
+     * @return
+     */
+    public long codeAt(long key, long index) {
+        return codeAt(new FeistelPermutation(key, SUFFIX8_BOUND - SUFFIX8_MIN), key, index);
+    }
+
+    /**
+     * 根据密钥和模板id计算置换密钥
+     * 使用完整密钥做HMAC-SHA256(secret, templateId) 取前8个字节 不知道密钥时无法推算
+     * @param secret 服务端密钥
+     * @param templateId 模板id
+     * @return
+     */
+    public static long permutationKey(String secret, Integer templateId) {
+        try {
+            Mac mac = Mac.getInstance(PERMUTATION_KEY_ALGORITHM);
+            mac.init(new SecretKeySpec(secret.getBytes(StandardCharsets.UTF_8), PERMUTATION_KEY_ALGORITHM));
+            return ByteBuffer.wrap(mac.doFinal(ByteBuffer.allocate(Integer.BYTES).putInt(templateId).array())).getLong();
+        } catch (NoSuchAlgorithmException | InvalidKeyException ex) {
+            throw new IllegalStateException("无法计算优惠券码置换密钥", ex);
+        }
+    }
+
+    /**
+     * 将long形式的优惠券码渲染到字符数组中
+     * @param code long形式的优惠券码
+     * @param dst 目标数组
+     * @param offset 写入的起始位置 需要预留18个字符
+     */
+    public void render(long code, char[] dst, int offset) {
+        System.arraycopy(prefix4, 0, dst, offset, 4);
+        for (int i = offset + CODE_LENGTH - 1; i >= offset + 4; --i) {
+            dst[i] = (char) ('0' + code % 10);
+            code /= 10;
+        }
+    }
+
+    /**
+     * 将long形式的优惠券码渲染到字节数组中(ASCII)
+     * @param code long形式的优惠券码
+     * @param dst 目标数组
+     * @param offset 写入的起始位置 需要预留18个字节
+     */
+    public void render(long code, byte[] dst, int offset) {
+        for (int i = 0; i < 4; ++i) {
+            dst[offset + i] = (byte) prefix4[i];
+        }
+        for (int i = offset + CODE_LENGTH - 1; i >= offset + 4; --i) {
+            dst[i] = (byte) ('0' + code % 10);
+            code /= 10;
+        }
+    }
+
+    /**
+     * 将long形式的优惠券码转换为字符串
+     * @param code
+     * @return
+     */
+    public String toCode(long code) {
+        char[] buffer = new char[CODE_LENGTH];
+        render(code, buffer, 0);
+        return new String(buffer);
+    }
+
+    /**
+     * 批量转换优惠券码 复用同一个字符缓冲区
+     * @param codes
+     * @return
+     */
+    public List<String> toCodes(long[] codes) {
+        List<String> result = new ArrayList<>(codes.length);
+        char[] buffer = new char[CODE_LENGTH];
+        for (long code : codes) {
+            render(code, buffer, 0);
+            result.add(new String(buffer));
+        }
+        return result;
+    }
+
+    /**
+     * 生成codes[from, to)区间内的优惠券码
+     * @param codes 结果数组
+     * @param from
+     * @param to
+     * @param seen 当前分区已生成的优惠券码
+     * @param partition 当前分区
+     * @param partitions 分区数
+     */
+    private void fill(long[] codes, int from, int to, ConcurrentLongSet seen, int partition, int partitions) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        // 中间六位的洗牌缓冲区 同一个任务内复用
+        int[] mid = new int[6];
+        // 当前分区后面八位的个数
+        int partitionBound = (int) ((SUFFIX8_BOUND - SUFFIX8_MIN - partition + partitions - 1) / partitions);
+        int i = from;
+        while (i < to) {
+            long code = nextCode(random, mid, partition, partitions, partitionBound);
+            if (seen.add(code)) {
+                codes[i++] = code;
+            }
+        }
+    }
+
+    /**
+     * 在指定分区中随机生成一个long形式的优惠券码
+     * @param random
+     * @param mid
+     * @param partition 分区
+     * @param partitions 分区数
+     * @param partitionBound 分区中后面八位的个数
+     * @return
+     */
+    private long nextCode(ThreadLocalRandom random, int[] mid, int partition, int partitions, int partitionBound) {
+        System.arraycopy(date6, 0, mid, 0, 6);
+        // 中间6位 对日期做Fisher-Yates洗牌
+        for (int i = 5; i > 0; --i) {
+            int j = random.nextInt(i + 1);
+            int tmp = mid[i];
+            mid[i] = mid[j];
+            mid[j] = tmp;
+        }
+        long mid6 = 0;
+        for (int digit : mid) {
+            mid6 = mid6 * 10 + digit;
+        }
+        // 后面8位 首位为1~9 只取当前分区中的值
+        long suffix8 = SUFFIX8_MIN + partition + (long) partitions * random.nextInt(partitionBound);
+        return mid6 * SUFFIX8_BOUND + suffix8;
+    }
+
+    /**
+     * 置换模式下第index个优惠券码
+     * @param permutation 后面八位的置换
+     * @param key 置换密钥
+     * @param index 序号
+     * @return
+     */
+    private long codeAt(FeistelPermutation permutation, long key, long index) {
+        // 中间6位 用(key, index)的哈希值驱动Fisher-Yates洗牌
+        long h = FeistelPermutation.mix(key ^ (index * 0xC2B2AE3D27D4EB4FL)) >>> 1;
+        int[] mid = date6.clone();
+        for (int i = 5; i > 0; --i) {
+            int j = (int) (h % (i + 1));
+            h /= (i + 1);
+            int tmp = mid[i];
+            mid[i] = mid[j];
+            mid[j] = tmp;
+        }
+        long mid6 = 0;
+        for (int digit : mid) {
+            mid6 = mid6 * 10 + digit;
+        }
+        // 后面8位 首位为1~9
+        long suffix8 = SUFFIX8_MIN + permutation.permute(index);
+        return mid6 * SUFFIX8_BOUND + suffix8;
+    }
+
+    /**
+     * 计算日期数字的不同排列个数 6!/(各数字重复次数!的乘积)
+     * @param digits
+     * @return
+     */
+    private static long distinctArrangements(int[] digits) {
+        int[] counts = new int[10];
+        for (int d : digits) {
+            counts[d]++;
+        }
+        long result = factorial(digits.length);
+        for (int c : counts) {
+            result /= factorial(c);
+        }
+        return result;
+    }
+
+    private static long factorial(int n) {
+        long result = 1;
+        for (int i = 2; i <= n; ++i) {
+            result *= i;
+        }
+        return result;
+    }
+
+    /**
+     * 随机生成的优惠券码来源 按分区依次生成 分区之间复用同一个去重集合
+     */
+    private class RandomCodeSource implements CouponCodeSource {
+
+        // 当前分区已生成的优惠券码
+        private final ConcurrentLongSet seen;
+
+        private final int count;
+
+        private final int partitions;
+
+        // 当前分区
+        private int partition;
+
+        // 当前分区剩余需要生成的个数
+        private int partitionRemaining;
+
+        // 剩余需要生成的个数
+        private int remaining;
+
+        RandomCodeSource(int count, int partitions) {
+            this.count = count;
+            this.partitions = partitions;
+            this.seen = new ConcurrentLongSet(quota(0));
+            this.partitionRemaining = quota(0);
+            this.remaining = count;
+        }
+
+        /**
+         * 每个分区的配额 余数分给前面的分区
+         * @param p
+         * @return
+         */
+        private int quota(int p) {
+            return count / partitions + (p < count % partitions ? 1 : 0);
+        }
+
+        @Override
+        public int next(long[] buffer) {
+            int n = Math.min(remaining, buffer.length);
+            int filled = 0;
+            while (filled < n) {
+                if (partitionRemaining == 0) {
+                    ++partition;
+                    partitionRemaining = quota(partition);
+                    seen.clear();
+                }
+                int to = filled + Math.min(n - filled, partitionRemaining);
+                if (to - filled <= SPLIT_THRESHOLD) {
+                    fill(buffer, filled, to, seen, partition, partitions);
+                } else {
+                    ForkJoinPool.commonPool().invoke(new FillTask(buffer, filled, to, seen, partition, partitions));
+                }
+                partitionRemaining -= to - filled;
+                filled = to;
+            }
+            remaining -= n;
+            return n;
+        }
+    }
+
+    /**
+     * 置换模式的优惠券码来源 按序号顺序输出 块内并行计算
+     */
+    private class PermutationCodeSource implements CouponCodeSource {
+
+        private final FeistelPermutation permutation;
+
+        private final long key;
+
+        private final int count;
+
+        // 下一个序号
+        private int nextIndex;
+
+        PermutationCodeSource(long key, int count) {
+            this.permutation = new FeistelPermutation(key, SUFFIX8_BOUND - SUFFIX8_MIN);
+            this.key = key;
+            this.count = count;
+        }
+
+        @Override
+        public int next(long[] buffer) {
+            int n = Math.min(count - nextIndex, buffer.length);
+            int base = nextIndex;
+            if (n <= SPLIT_THRESHOLD) {
+                for (int i = 0; i < n; ++i) {
+                    buffer[i] = codeAt(permutation, key, base + i);
+                }
+            } else {
+                IntStream.range(0, n).parallel().forEach(i -> buffer[i] = codeAt(permutation, key, base + i));
+            }
+            nextIndex += n;
+            return n;
+        }
+    }
+
+    /**
+     * fork-join生成任务 按区间二分拆分
+     */
+    private class FillTask extends RecursiveAction {
+
+        private final long[] codes;
+        private final int from;
+        private final int to;
+        private final ConcurrentLongSet seen;
+        private final int partition;
+        private final int partitions;
+
+        FillTask(long[] codes, int from, int to, ConcurrentLongSet seen, int partition, int partitions) {
+            this.codes = codes;
+            this.from = from;
+            this.to = to;
+            this.seen = seen;
+            this.partition = partition;
+            this.partitions = partitions;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= SPLIT_THRESHOLD) {
+                fill(codes, from, to, seen, partition, partitions);
+                return;
+            }
+            int mid = (from + to) >>> 1;
+            invokeAll(new FillTask(codes, from, mid, seen, partition, partitions), new FillTask(codes, mid, to, seen, partition, partitions));
+        }
+    }
+}
@@ -0,0 +1,152 @@
+package com.study.coupon.generator;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.RedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * 优惠券码流式注入器
+ * 生产者线程按块生成优惠券码 消费者(调用线程)按块通过pipeline分批RPUSH到Redis
+ * 块缓冲区循环复用 生产者最多领先消费者maxInFlightChunks块(背压) 内存占用与模板总数无关
+ */
+@Slf4j
+@Component
+public class CouponCodeInjector {
+
+    @Autowired
+    private StringRedisTemplate redisTemplate;
+
+    // 每块生成的优惠券码个数
+    @Value("${coupon.code.chunk-size:65536}")
+    private int chunkSize;
+
+    // 每条RPUSH命令携带的优惠券码个数
+    @Value("${coupon.code.batch-size:1000}")
+    private int batchSize;
+
+    // 生产者最多领先消费者的块数
+    @Value("${coupon.code.max-in-flight-chunks:2}")
+    private int maxInFlightChunks;
+
+    /**
+     * 将优惠券码流式写入Redis列表 写入前会清空该列表
+     * @param redisKey 优惠券码列表的key
+     * @param generator 负责渲染优惠券码
+     * @param source 优惠券码来源
+     * @return 全部写入并确认之后Redis列表的长度
+     */
+    public long inject(String redisKey, CouponCodeGenerator generator, CouponCodeSource source) {
+        // 空闲的块缓冲区和已填充待写入的块
+        BlockingQueue<Chunk> free = new ArrayBlockingQueue<>(maxInFlightChunks + 1);
+        BlockingQueue<Chunk> full = new ArrayBlockingQueue<>(maxInFlightChunks + 2);
+        for (int i = 0; i <= maxInFlightChunks; ++i) {
+            free.add(new Chunk(chunkSize));
+        }
+        AtomicReference<Throwable> producerError = new AtomicReference<>();
+
+        // 清理上一次未完成的写入
+        redisTemplate.delete(redisKey);
+
+        Thread producer = new Thread(() -> {
+            try {
+                while (true) {
+                    Chunk chunk = free.take();
+                    chunk.size = source.next(chunk.codes);
+                    if (chunk.size == 0) {
+                        break;
+                    }
+                    full.put(chunk);
+                }
+            } catch (Throwable ex) {
+                producerError.set(ex);
+            } finally {
+                full.offer(Chunk.END);
+            }
+        }, "StudyCodeProducer_" + redisKey);
+        producer.setDaemon(true);
+        producer.start();
+
+        byte[] rawKey = redisKey.getBytes(StandardCharsets.UTF_8);
+        long length = 0;
+        try {
+            while (true) {
+                Chunk chunk = full.take();
+                if (chunk == Chunk.END) {
+                    break;
+                }
+                length = pushChunk(rawKey, generator, chunk);
+                free.put(chunk);
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("优惠券码注入被中断:" + redisKey, ex);
+        } finally {
+            producer.interrupt();
+        }
+
+        if (null != producerError.get()) {
+            throw new IllegalStateException("优惠券码生成失败:" + redisKey, producerError.get());
+        }
+        return length;
+    }
+
+    /**
+     * 将一块优惠券码通过pipeline分批写入Redis 等待所有命令确认后返回
+     * @param rawKey
+     * @param generator
+     * @param chunk
+     * @return 最后一条RPUSH返回的列表长度
+     */
+    private long pushChunk(byte[] rawKey, CouponCodeGenerator generator, Chunk chunk) {
+        List<Object> replies = redisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            pushBatches(connection, rawKey, generator, chunk);
+            return null;
+        });
+        Object last = replies.get(replies.size() - 1);
+        if (!(last instanceof Long)) {
+            throw new IllegalStateException("RPUSH返回异常:" + last);
+        }
+        return (Long) last;
+    }
+
+    private void pushBatches(RedisConnection connection, byte[] rawKey, CouponCodeGenerator generator, Chunk chunk) {
+        for (int from = 0; from < chunk.size; from += batchSize) {
+            int to = Math.min(from + batchSize, chunk.size);
+            // pipeline中的命令在确认前仍会引用参数 每个优惠券码需要独立的字节数组
+            byte[][] values = new byte[to - from][];
+            for (int i = from; i < to; ++i) {
+                byte[] value = new byte[CouponCodeGenerator.CODE_LENGTH];
+                generator.render(chunk.codes[i], value, 0);
+                values[i - from] = value;
+            }
+            connection.rPush(rawKey, values);
+        }
+    }
+
+    /**
+     * 可复用的优惠券码块
+     */
+    private static class Chunk {
+
+        // 生产者结束标记
+        static final Chunk END = new Chunk(0);
+
+        final long[] codes;
+
+        int size;
+
+        Chunk(int capacity) {
+            this.codes = new long[capacity];
+        }
+    }
+}
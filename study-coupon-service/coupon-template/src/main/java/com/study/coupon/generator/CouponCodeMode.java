@@ -0,0 +1,18 @@
+package com.study.coupon.generator;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+/**
+ * 优惠券码生成模式
+ */
+@Getter
+@AllArgsConstructor
+public enum CouponCodeMode {
+
+    RANDOM("随机生成后去重"),
+    PERMUTATION("对序号做带密钥的置换");
+
+    // 模式描述
+    private String description;
+}
@@ -0,0 +1,15 @@
+package com.study.coupon.generator;
+
+/**
+ * 优惠券码来源定义
+ * 按块输出long形式的优惠券码(中间六位 * 10^8 + 后面八位) 由{@link CouponCodeGenerator}负责渲染
+ */
+public interface CouponCodeSource {
+
+    /**
+     * 生成下一块优惠券码
+     * @param buffer 输出缓冲区
+     * @return 本次写入buffer的个数 0代表已经全部生成
+     */
+    int next(long[] buffer);
+}
@@ -0,0 +1,85 @@
+package com.study.coupon.generator;
+
+/**
+ * 带密钥的整数置换 将[0, domain)一一映射到[0, domain)
+ * 在能容纳domain的最小偶数位宽上做平衡Feistel网络 再通过cycle-walking把结果限制在domain以内(平均不超过4次)
+ * 同一个key下不同的输入一定得到不同的输出 可以在不保存任何状态的情况下随机访问
+ */
+public class FeistelPermutation {
+
+    // 支持的最大取值范围
+    public static final long MAX_DOMAIN = 1L << 62;
+
+    // Feistel轮数
+    private static final int ROUNDS = 6;
+
+    // 取值范围
+    private final long domain;
+
+    // 半块位数
+    private final int halfBits;
+
+    // 半块掩码
+    private final long halfMask;
+
+    // 轮密钥
+    private final long[] roundKeys = new long[ROUNDS];
+
+    public FeistelPermutation(long key, long domain) {
+        if (domain <= 0 || domain > MAX_DOMAIN) {
+            throw new IllegalArgumentException("invalid permutation domain: " + domain);
+        }
+        this.domain = domain;
+        int bits = Math.max(2, 64 - Long.numberOfLeadingZeros(domain - 1));
+        this.halfBits = (bits + 1) / 2;
+        this.halfMask = (1L << halfBits) - 1;
+        long k = key;
+        for (int i = 0; i < ROUNDS; ++i) {
+            k = mix(k + 0x9E3779B97F4A7C15L);
+            roundKeys[i] = k;
+        }
+    }
+
+    /**
+     * 计算index的置换结果
+     * @param index [0, domain)
+     * @return [0, domain)
+     */
+    public long permute(long index) {
+        if (index < 0 || index >= domain) {
+            throw new IllegalArgumentException("index out of domain: " + index);
+        }
+        long x = index;
+        do {
+            x = encrypt(x);
+        } while (x >= domain);
+        return x;
+    }
+
+    /**
+     * 2*halfBits位上的Feistel网络
+     * @param x
+     * @return
+     */
+    private long encrypt(long x) {
+        long left = (x >>> halfBits) & halfMask;
+        long right = x & halfMask;
+        for (int i = 0; i < ROUNDS; ++i) {
+            long tmp = left ^ (mix(right ^ roundKeys[i]) & halfMask);
+            left = right;
+            right = tmp;
+        }
+        return (left << halfBits) | right;
+    }
+
+    /**
+     * 64位混淆函数(SplitMix64的finalizer)
+     * @param z
+     * @return
+     */
+    static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+}
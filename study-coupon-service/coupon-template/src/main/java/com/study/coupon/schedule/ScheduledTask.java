@@ -2,16 +2,19 @@ package com.study.coupon.schedule;
 
 import com.study.coupon.dao.CouponTemplateDao;
 import com.study.coupon.entity.CouponTemplate;
+import com.study.coupon.event.TemplateChangeEvent;
 import com.study.coupon.vo.TemplateRule;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.collections4.CollectionUtils;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.ApplicationEventPublisher;
 import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Component;
 
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
+import java.util.stream.Collectors;
 
 /**
  * 定时清理已过期的优惠券模板
@@ -23,6 +26,10 @@ public class ScheduledTask {
     @Autowired
     private CouponTemplateDao templateDao;
 
+    // 模板变更事件发布器
+    @Autowired
+    private ApplicationEventPublisher eventPublisher;
+
     /**
      * 下线已过期的优惠券模板
      */
@@ -49,6 +56,7 @@ public class ScheduledTask {
 
         if (CollectionUtils.isNotEmpty(expiredTemplates)) {
             log.info("已过期的优惠券模板编号为:{}", templateDao.saveAll(expiredTemplates));
+            eventPublisher.publishEvent(new TemplateChangeEvent(this, expiredTemplates.stream().map(CouponTemplate::getId).collect(Collectors.toList())));
         }
         log.info("结束查找已过期的优惠券模板");
     }
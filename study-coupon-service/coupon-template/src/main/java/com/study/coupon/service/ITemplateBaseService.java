@@ -3,6 +3,7 @@ package com.study.coupon.service;
 import com.study.coupon.entity.CouponTemplate;
 import com.study.coupon.exception.CouponException;
 import com.study.coupon.vo.CouponTemplateSDK;
+import com.study.coupon.vo.TemplateDelta;
 
 import java.util.Collection;
 import java.util.List;
@@ -33,4 +34,11 @@ public interface ITemplateBaseService {
      * @return Map<key:模板id,value:CouponTemplateSDK>
      */
     Map<Integer, CouponTemplateSDK> findIds2TemplateSDK(Collection<Integer> ids);
+
+    /**
+     * 获取某个目录版本之后的模板变更
+     * @param version 客户端本地的目录版本号 小于0表示需要全量
+     * @return {@link TemplateDelta}
+     */
+    TemplateDelta findTemplateDelta(Long version);
 }
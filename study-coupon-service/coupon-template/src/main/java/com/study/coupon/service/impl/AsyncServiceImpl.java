@@ -4,18 +4,23 @@ import com.google.common.base.Stopwatch;
 import com.study.coupon.constant.Constant;
 import com.study.coupon.dao.CouponTemplateDao;
 import com.study.coupon.entity.CouponTemplate;
+import com.study.coupon.event.TemplateChangeEvent;
+import com.study.coupon.generator.CouponCodeGenerator;
+import com.study.coupon.generator.CouponCodeInjector;
+import com.study.coupon.generator.CouponCodeMode;
+import com.study.coupon.generator.CouponCodeSource;
 import com.study.coupon.service.IAsyncService;
 import lombok.extern.slf4j.Slf4j;
-import org.apache.commons.lang.RandomStringUtils;
+import org.apache.commons.lang3.StringUtils;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.ApplicationEventPublisher;
 import org.springframework.scheduling.annotation.Async;
 import org.springframework.stereotype.Service;
 
-import java.text.SimpleDateFormat;
-import java.util.*;
+import javax.annotation.PostConstruct;
+import java.util.Collections;
 import java.util.concurrent.TimeUnit;
-import java.util.stream.Collectors;
 
 /**
  * 异步服务接口实现
@@ -28,10 +33,33 @@ public class AsyncServiceImpl implements IAsyncService {
     private CouponTemplateDao templateDao;
 
     @Autowired
-    private StringRedisTemplate redisTemplate;
+    private CouponCodeInjector codeInjector;
+
+    // 模板变更事件发布器
+    @Autowired
+    private ApplicationEventPublisher eventPublisher;
+
+    // 优惠券码生成模式
+    @Value("${coupon.code.mode:RANDOM}")
+    private CouponCodeMode codeMode;
+
+    // 置换模式的服务端密钥 没有默认值 置换模式下必须由环境变量(COUPON_CODE_SECRET)或配置中心提供
+    @Value("${coupon.code.secret:}")
+    private String codeSecret;
+
+    /**
+     * 启动时校验服务端密钥 置换模式下为空时启动失败 随机模式不使用密钥
+     */
+    @PostConstruct
+    public void checkCodeSecret() {
+        if (codeMode == CouponCodeMode.PERMUTATION && StringUtils.isBlank(codeSecret)) {
+            throw new IllegalStateException("缺少优惠券码置换密钥coupon.code.secret,需要通过环境变量或配置中心提供");
+        }
+    }
 
     /**
      * 根据模板异步的创建优惠券码
+     * 优惠券码按块流式写入Redis 全部写入并确认之后才将模板标记为可用
      * @param template {@link CouponTemplate} 优惠券模板实体
      */
     @Override
@@ -41,13 +69,21 @@ public class AsyncServiceImpl implements IAsyncService {
         // 创建一个计时器
         Stopwatch watch = Stopwatch.createStarted();
 
-        Set<String> couponCodes = buildCouponCode(template);
+        // 优惠券码(对应于每一张优惠券 18位) 前面四位:产品线+类型 中间六位:日期随机 后面八位:0~9随机数
+        CouponCodeGenerator generator = CouponCodeGenerator.of(template);
 
         // study_coupon_template_code_1
         String redisKey = String.format("%s%s", Constant.RedisPrefix.COUPON_TEMPLATE, template.getId().toString());
-        log.info("将优惠券码注入到Redis中:{}", redisTemplate.opsForList().rightPushAll(redisKey, couponCodes));
+        long size = codeInjector.inject(redisKey, generator, buildCodeSource(generator, template));
+        log.info("将优惠券码注入到Redis中:{},{}", redisKey, size);
+        if (size != template.getCount()) {
+            log.error("优惠券码数量与模板不一致:{},{},{}", template.getId(), size, template.getCount());
+            return;
+        }
+
         template.setAvailable(true);
         templateDao.save(template);
+        eventPublisher.publishEvent(new TemplateChangeEvent(this, Collections.singletonList(template.getId())));
 
         watch.stop();
         log.info("花费了:{}ms",watch.elapsed(TimeUnit.MILLISECONDS));
@@ -57,50 +93,15 @@ public class AsyncServiceImpl implements IAsyncService {
     }
 
     /**
-     * 构造优惠券码
-     * 优惠券码(对应于每一张优惠券 18位)
-     * 前面四位:产品线+类型 中间六位:日期随机 后面八位:0~9随机数
+     * 根据生成模式创建优惠券码来源
+     * @param generator
      * @param template
-     * @return Set<String>与template.count相同个数的优惠券码
+     * @return
      */
-    @SuppressWarnings("all")
-    private Set<String> buildCouponCode(CouponTemplate template) {
-        // 创建一个计时器
-        Stopwatch watch = Stopwatch.createStarted();
-
-        Set<String> result = new HashSet<>(template.getCount());
-
-        // 前面四位
-        String prefix4 = template.getProductLine().getCode().toString() + template.getCategory().getCode();
-        // 时间编码
-        String date = new SimpleDateFormat("yyMMdd").format(template.getCreateTime());
-        for (int i = 0; i != template.getCount(); ++i) {
-            result.add(prefix4 + buildCouponCodeSuffix14(date));
+    private CouponCodeSource buildCodeSource(CouponCodeGenerator generator, CouponTemplate template) {
+        if (codeMode == CouponCodeMode.PERMUTATION) {
+            return generator.permutation(CouponCodeGenerator.permutationKey(codeSecret, template.getId()), template.getCount());
         }
-        while (result.size() < template.getCount()) {
-            result.add(prefix4 + buildCouponCodeSuffix14(date));
-        }
-        assert result.size() == template.getCount();
-
-        watch.stop();
-        log.info("花费了:{}ms",watch.elapsed(TimeUnit.MILLISECONDS));
-
-        return result;
-    }
-
-    /**
-     * 构造优惠券码的后14位
-     * @param date 创建优惠券日期
-     * @return 14位优惠券码
-     */
-    private String buildCouponCodeSuffix14(String date) {
-        char[] bases = new char[]{'1', '2', '3', '4', '5', '6', '7', '8', '9'};
-        // 中间6位
-        List<Character> chars = date.chars().mapToObj(e -> (char) e).collect(Collectors.toList());
-        Collections.shuffle(chars);
-        String mid6 = chars.stream().map(Objects::toString).collect(Collectors.joining());
-        // 后面8位
-        String suffix8 = RandomStringUtils.random(1, bases) + RandomStringUtils.randomNumeric(7);
-        return mid6 + suffix8;
+        return generator.stream(template.getCount());
     }
 }
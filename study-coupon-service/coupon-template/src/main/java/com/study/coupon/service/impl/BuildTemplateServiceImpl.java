@@ -2,14 +2,18 @@ package com.study.coupon.service.impl;
 
 import com.study.coupon.dao.CouponTemplateDao;
 import com.study.coupon.entity.CouponTemplate;
+import com.study.coupon.event.TemplateChangeEvent;
 import com.study.coupon.exception.CouponException;
 import com.study.coupon.service.IAsyncService;
 import com.study.coupon.service.IBuildTemplateService;
 import com.study.coupon.vo.TemplateRequest;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.ApplicationEventPublisher;
 import org.springframework.stereotype.Service;
 
+import java.util.Collections;
+
 /**
  * 构建优惠券模板接口实现
  */
@@ -25,6 +29,10 @@ public class BuildTemplateServiceImpl implements IBuildTemplateService {
     @Autowired
     private CouponTemplateDao templateDao;
 
+    // 模板变更事件发布器
+    @Autowired
+    private ApplicationEventPublisher eventPublisher;
+
     /**
      * 创建优惠券模板
      * @param request {@link TemplateRequest} 模板信息请求对象
@@ -46,6 +54,7 @@ public class BuildTemplateServiceImpl implements IBuildTemplateService {
         // 构造CouponTemplate并保存到数据库中
         CouponTemplate template = requestToTemplate(request);
         template = templateDao.save(template);
+        eventPublisher.publishEvent(new TemplateChangeEvent(this, Collections.singletonList(template.getId())));
 
         // 根据优惠券模板异步生成优惠券码
         asyncService.asyncConstructCouponByTemplate(template);
@@ -1,20 +1,18 @@
 package com.study.coupon.service.impl;
 
+import com.study.coupon.cache.TemplateCache;
+import com.study.coupon.cache.TemplateCatalog;
 import com.study.coupon.dao.CouponTemplateDao;
 import com.study.coupon.entity.CouponTemplate;
 import com.study.coupon.exception.CouponException;
 import com.study.coupon.service.ITemplateBaseService;
 import com.study.coupon.vo.CouponTemplateSDK;
+import com.study.coupon.vo.TemplateDelta;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
 
-import java.util.Collection;
-import java.util.List;
-import java.util.Map;
-import java.util.Optional;
-import java.util.function.Function;
-import java.util.stream.Collectors;
+import java.util.*;
 
 /**
  * 优惠券模板基础服务接口实现
@@ -27,6 +25,14 @@ public class TemplateBaseServiceImpl implements ITemplateBaseService {
     @Autowired
     private CouponTemplateDao templateDao;
 
+    // 优惠券模板本地缓存
+    @Autowired
+    private TemplateCache templateCache;
+
+    // 优惠券模板目录版本
+    @Autowired
+    private TemplateCatalog templateCatalog;
+
     /**
      * 根据优惠券模板id获取优惠券模板信息
      * @param id 模板id
@@ -49,8 +55,7 @@ public class TemplateBaseServiceImpl implements ITemplateBaseService {
      */
     @Override
     public List<CouponTemplateSDK> findAllUsableTemplate() {
-        List<CouponTemplate> templates = templateDao.findAllByAvailableAndExpired(true, false);
-        return templates.stream().map(this::template2TemplateSDK).collect(Collectors.toList());
+        return templateCache.findAllUsable();
     }
 
     /**
@@ -60,16 +65,43 @@ public class TemplateBaseServiceImpl implements ITemplateBaseService {
      */
     @Override
     public Map<Integer, CouponTemplateSDK> findIds2TemplateSDK(Collection<Integer> ids) {
-        List<CouponTemplate> templates = templateDao.findAllById(ids);
-        return templates.stream().map(this::template2TemplateSDK).collect(Collectors.toMap(CouponTemplateSDK::getId, Function.identity()));
+        return templateCache.findByIds(ids);
     }
 
     /**
-     * 将CouponTemplate转换为CouponTemplateSDK
-     * @param template
-     * @return
+     * 获取某个目录版本之后的模板变更
+     * 1.客户端版本与当前版本一致 返回notModified
+     * 2.客户端从未同步/版本比服务端新(Redis数据丢失)/版本早于已裁剪的变更记录 返回全量
+     * 3.其余情况只返回变更的模板 仍然可用的放在templates中 否则放在removedIds中
+     * @param version 客户端本地的目录版本号 小于0表示需要全量
+     * @return {@link TemplateDelta}
      */
-    private CouponTemplateSDK template2TemplateSDK(CouponTemplate template) {
-        return new CouponTemplateSDK(template.getId(), template.getName(), template.getLogo(), template.getDesc(), template.getCategory().getCode(), template.getProductLine().getCode(), template.getKey(), template.getTarget().getCode(), template.getRule());
+    @Override
+    public TemplateDelta findTemplateDelta(Long version) {
+        long since = null == version ? -1 : version;
+        TemplateCatalog.Changes changes = templateCatalog.changesSince(since);
+
+        if (since == changes.version) {
+            return TemplateDelta.notModified(changes.version);
+        }
+        if (since < 0 || since > changes.version || since < changes.floor) {
+            log.info("全量同步优惠券模板目录:{},{}", since, changes.version);
+            // 全量数据直接查数据库 不使用本地缓存(本地缓存的版本与目录版本不是同一个计数)
+            // 目录版本在查询之前读取 查询期间的变更会包含在下一次增量中 重复应用没有影响
+            List<CouponTemplateSDK> templates = new ArrayList<>();
+            templateDao.findAllByAvailableAndExpired(true, false).forEach(t -> templates.add(TemplateCache.template2TemplateSDK(t)));
+            return TemplateDelta.full(changes.version, templates);
+        }
+
+        List<CouponTemplateSDK> templates = new ArrayList<>();
+        Set<Integer> removedIds = new HashSet<>(changes.templateIds);
+        templateDao.findAllById(changes.templateIds).forEach(t -> {
+            if (t.getAvailable() && !t.getExpired()) {
+                templates.add(TemplateCache.template2TemplateSDK(t));
+                removedIds.remove(t.getId());
+            }
+        });
+        log.debug("增量同步优惠券模板目录:{}->{},变更:{},下线:{}", since, changes.version, templates.size(), removedIds.size());
+        return new TemplateDelta(changes.version, false, false, templates, new ArrayList<>(removedIds));
     }
 }
@@ -0,0 +1,14 @@
+-- 一致地读取目录版本号以及某个版本之后的变更
+-- KEYS[1]: 目录版本号 KEYS[2]: 变更记录(zset) KEYS[3]: 已裁剪的最大版本号
+-- ARGV[1]: 客户端的版本号
+-- 返回: {当前版本号, floor, 变更的模板ids...}
+local version = redis.call('GET', KEYS[1]) or '0'
+local floor = redis.call('GET', KEYS[3]) or '0'
+local result = {version, floor}
+if tonumber(ARGV[1]) < tonumber(version) then
+    local ids = redis.call('ZRANGEBYSCORE', KEYS[2], '(' .. ARGV[1], version)
+    for i = 1, #ids do
+        result[#result + 1] = ids[i]
+    end
+end
+return result
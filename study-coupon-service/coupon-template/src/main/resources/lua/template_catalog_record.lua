@@ -0,0 +1,19 @@
+-- 记录一次优惠券模板变更: 目录版本号加一 并把变更的模板id记录到变更记录中
+-- KEYS[1]: 目录版本号 KEYS[2]: 变更记录(zset) KEYS[3]: 已裁剪的最大版本号
+-- ARGV[1]: 变更记录保留的最大条数 ARGV[2...]: 变更的模板ids
+local version = redis.call('INCR', KEYS[1])
+for i = 2, #ARGV do
+    redis.call('ZADD', KEYS[2], version, ARGV[i])
+end
+
+-- 超出保留条数时裁剪最旧的记录 并抬高floor
+local excess = redis.call('ZCARD', KEYS[2]) - tonumber(ARGV[1])
+if excess > 0 then
+    local removed = redis.call('ZRANGE', KEYS[2], 0, excess - 1, 'WITHSCORES')
+    local floor = tonumber(removed[#removed])
+    redis.call('ZREMRANGEBYRANK', KEYS[2], 0, excess - 1)
+    if floor > tonumber(redis.call('GET', KEYS[3]) or '0') then
+        redis.call('SET', KEYS[3], floor)
+    end
+end
+return version
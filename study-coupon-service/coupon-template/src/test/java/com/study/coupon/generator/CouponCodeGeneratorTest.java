@@ -0,0 +1,146 @@
+package com.study.coupon.generator;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+/**
+ * 优惠券码生成引擎测试
+ */
+public class CouponCodeGeneratorTest {
+
+    @Test
+    public void testGenerateUniqueCodes() {
+        CouponCodeGenerator generator = new CouponCodeGenerator("1001", "240415");
+        // 超过拆分阈值 走fork-join并行生成
+        List<String> codes = generator.toCodes(generator.generate(200000));
+
+        Set<String> unique = new HashSet<>(codes);
+        assertEquals(200000, unique.size());
+
+        char[] date = "240415".toCharArray();
+        Arrays.sort(date);
+        for (String code : codes) {
+            assertEquals(CouponCodeGenerator.CODE_LENGTH, code.length());
+            assertTrue(code.startsWith("1001"));
+            // 中间六位是日期的一个排列
+            char[] mid = code.substring(4, 10).toCharArray();
+            Arrays.sort(mid);
+            assertArrayEquals(date, mid);
+            // 后面八位首位不为0
+            assertNotEquals('0', code.charAt(10));
+        }
+    }
+
+    @Test
+    public void testStreamChunks() {
+        CouponCodeGenerator generator = new CouponCodeGenerator("2003", "240415");
+        CouponCodeSource source = generator.stream(25000);
+        long[] buffer = new long[10000];
+
+        Set<Long> unique = new HashSet<>();
+        int total = 0;
+        int n;
+        while ((n = source.next(buffer)) > 0) {
+            for (int i = 0; i < n; ++i) {
+                unique.add(buffer[i]);
+            }
+            total += n;
+        }
+        assertEquals(25000, total);
+        assertEquals(25000, unique.size());
+
+        byte[] bytes = new byte[CouponCodeGenerator.CODE_LENGTH];
+        generator.render(buffer[0], bytes, 0);
+        assertEquals(generator.toCode(buffer[0]), new String(bytes));
+    }
+
+    @Test
+    public void testStreamPartitions() {
+        // 每个分区最多1000个 去重集合不随数量增长 分区之间的优惠券码也不重复
+        CouponCodeGenerator generator = new CouponCodeGenerator("2003", "240415", 1000);
+        CouponCodeSource source = generator.stream(2500);
+        long[] buffer = new long[700];
+
+        Set<Long> unique = new HashSet<>();
+        int total = 0;
+        int n;
+        while ((n = source.next(buffer)) > 0) {
+            for (int i = 0; i < n; ++i) {
+                assertTrue(unique.add(buffer[i]));
+                // 3个分区的配额为834,833,833 按输出顺序依次生成
+                int index = total + i;
+                assertEquals(index < 834 ? 0 : index < 1667 ? 1 : 2, (buffer[i] % 100_000_000L - 10_000_000L) % 3);
+            }
+            total += n;
+        }
+        assertEquals(2500, total);
+    }
+
+    @Test
+    public void testPermutationKeyUsesFullSecret() {
+        // "Aa"和"BB"的String.hashCode()相同
+        assertEquals("Aa".hashCode(), "BB".hashCode());
+        assertNotEquals(CouponCodeGenerator.permutationKey("Aa", 12), CouponCodeGenerator.permutationKey("BB", 12));
+        assertNotEquals(CouponCodeGenerator.permutationKey("study-coupon", 12), CouponCodeGenerator.permutationKey("study-coupon", 13));
+        assertEquals(CouponCodeGenerator.permutationKey("study-coupon", 12), CouponCodeGenerator.permutationKey("study-coupon", 12));
+    }
+
+    @Test
+    public void testPermutationCodes() {
+        CouponCodeGenerator generator = new CouponCodeGenerator("1002", "240415");
+        long key = CouponCodeGenerator.permutationKey("study-coupon", 12);
+        // 超过拆分阈值 块内并行计算
+        long[] codes = new long[50000];
+        CouponCodeSource source = generator.permutation(key, 50000);
+        assertEquals(50000, source.next(codes));
+        assertEquals(0, source.next(codes));
+
+        Set<Long> unique = new HashSet<>();
+        for (int i = 0; i < codes.length; ++i) {
+            assertTrue(unique.add(codes[i] % 100_000_000L));
+            // 任意序号都可以重新推导
+            assertEquals(codes[i], generator.codeAt(key, i));
+        }
+        assertTrue(generator.toCode(codes[0]).startsWith("1002"));
+    }
+
+    @Test
+    public void testFeistelPermutationIsBijective() {
+        FeistelPermutation permutation = new FeistelPermutation(42L, 1000);
+        boolean[] hit = new boolean[1000];
+        for (int i = 0; i < 1000; ++i) {
+            int x = (int) permutation.permute(i);
+            assertFalse(hit[x]);
+            hit[x] = true;
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testCodeSpaceExceeded() {
+        // 日期数字完全相同时只有一种排列 码空间为9*10^7
+        new CouponCodeGenerator("1001", "111111").generate(90_000_001);
+    }
+
+    @Test
+    public void testConcurrentLongSet() {
+        ConcurrentLongSet set = new ConcurrentLongSet(100);
+        for (long i = 1; i <= 100; ++i) {
+            assertTrue(set.add(i * 7919));
+        }
+        for (long i = 1; i <= 100; ++i) {
+            assertFalse(set.add(i * 7919));
+            assertTrue(set.contains(i * 7919));
+        }
+        assertFalse(set.contains(3));
+
+        set.clear();
+        assertFalse(set.contains(7919));
+        assertTrue(set.add(7919));
+    }
+}